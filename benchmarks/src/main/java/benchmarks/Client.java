@@ -0,0 +1,51 @@
+package benchmarks;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+
+
+/**
+ * Method handles on the client's classes. They live in the default package, which cannot be imported from a named
+ * one, so benchmarks look them up once in their @Setup methods. Every handle is adapted to take and return Object,
+ * so it can be called with invokeExact on Object-typed arguments
+ */
+final class Client {
+
+    private Client(){
+    }
+
+    static Class<?> type(String name){
+        try {
+            return Class.forName(name);
+        } catch (ClassNotFoundException e) {
+            throw new IllegalStateException("Client class " + name + " not on the classpath, run mvn install in the parent directory first", e);
+        }
+    }
+
+    static MethodHandle constructor(String className, Class<?>... parameters) throws ReflectiveOperationException {
+        return generic(MethodHandles.publicLookup().findConstructor(type(className), MethodType.methodType(void.class, parameters)));
+    }
+
+    static MethodHandle staticMethod(String className, String name, Class<?> returnType, Class<?>... parameters) throws ReflectiveOperationException {
+        return generic(MethodHandles.publicLookup().findStatic(type(className), name, MethodType.methodType(returnType, parameters)));
+    }
+
+    /**
+     * Looks up an instance method, including private ones, with the receiver as the first argument
+     */
+    static MethodHandle method(String className, String name, Class<?> returnType, Class<?>... parameters) throws ReflectiveOperationException {
+        Class<?> type = type(className);
+        MethodHandles.Lookup lookup = MethodHandles.privateLookupIn(type, MethodHandles.lookup());
+        return generic(lookup.findVirtual(type, name, MethodType.methodType(returnType, parameters)));
+    }
+
+    static Object staticField(String className, String name) throws Throwable {
+        Class<?> type = type(className);
+        return MethodHandles.publicLookup().findStaticGetter(type, name, type.getField(name).getType()).invoke();
+    }
+
+    private static MethodHandle generic(MethodHandle handle){
+        return handle.asType(handle.type().generic());
+    }
+}
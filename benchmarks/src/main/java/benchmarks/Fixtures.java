@@ -0,0 +1,81 @@
+package benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * Payloads shaped like the ones the Assistants API sends
+ */
+final class Fixtures {
+
+    private static final String WORDS = "the assistant answers questions about the files attached to it using retrieval ";
+
+    private Fixtures(){
+    }
+
+    /**
+     * @return English-looking text of the given length, with a quote and a newline so escaping is exercised
+     */
+    static String text(int length){
+        StringBuilder text = new StringBuilder(length);
+        while (text.length() < length) text.append(WORDS);
+        text.setLength(length);
+        if (length > 2) text.setCharAt(length / 2, '"');
+        if (length > 3) text.setCharAt(length / 3, '\n');
+        return text.toString();
+    }
+
+    static String messageJson(int index, String role, String text){
+        return """
+                {"id":"msg_%024d","object":"thread.message","created_at":%d,"thread_id":"thread_abc123",\
+                "role":"%s","content":[{"type":"text","text":{"value":"%s","annotations":[]}}],\
+                "assistant_id":%s,"run_id":%s,"attachments":[],"metadata":{}}"""
+                .formatted(index, 1_700_000_000L + index, role, escape(text),
+                        role.equals("assistant") ? "\"asst_abc123\"" : "null",
+                        role.equals("assistant") ? "\"run_abc123\"" : "null");
+    }
+
+    /**
+     * @return a page of GET /threads/{thread_id}/messages, newest message first
+     */
+    static String messageListJson(int messages, int textLength){
+        List<String> data = new ArrayList<>();
+        for (int i = messages - 1; i >= 0; i--) {
+            data.add(messageJson(i, i % 2 == 0 ? "user" : "assistant", text(textLength)));
+        }
+        return """
+                {"object":"list","data":[%s],"first_id":"msg_%024d","last_id":"msg_%024d","has_more":false}"""
+                .formatted(String.join(",", data), messages - 1, 0);
+    }
+
+    /**
+     * @return lines of the event stream of a streamed run whose reply is sent as the given number of deltas
+     */
+    static List<String> runStreamLines(int deltas){
+        List<String> lines = new ArrayList<>();
+        event(lines, "thread.run.created", "{\"id\":\"run_abc123\",\"object\":\"thread.run\",\"status\":\"queued\"}");
+        StringBuilder reply = new StringBuilder();
+        for (int i = 0; i < deltas; i++) {
+            String word = "word" + i + " ";
+            reply.append(word);
+            event(lines, "thread.message.delta", """
+                    {"id":"msg_abc123","object":"thread.message.delta","delta":{"content":\
+                    [{"index":0,"type":"text","text":{"value":"%s","annotations":[]}}]}}""".formatted(word));
+        }
+        event(lines, "thread.message.completed", messageJson(1, "assistant", reply.toString()));
+        event(lines, "thread.run.completed", "{\"id\":\"run_abc123\",\"object\":\"thread.run\",\"status\":\"completed\"}");
+        event(lines, "done", "[DONE]");
+        return lines;
+    }
+
+    private static void event(List<String> lines, String event, String data){
+        lines.add("event: " + event);
+        lines.add("data: " + data);
+        lines.add("");
+    }
+
+    private static String escape(String text){
+        return text.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+}
@@ -0,0 +1,138 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.lang.invoke.MethodHandle;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Building request payloads and binding responses: the body of POST /threads/{thread_id}/messages as built by
+ * createUserMessageAsync, and a page of GET /threads/{thread_id}/messages as read by getMessagesAsync and then
+ * getMostRecentMessage. A received page is bound either as it arrives, by JsonBodySubscriber, or from the String of
+ * the whole body; run with -prof gc to compare what each allocates
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JsonBenchmark {
+
+    // Size of the chunks a response body is handed over in
+    private static final int CHUNK = 16 * 1024;
+
+    private static final Flow.Subscription NO_OP = new Flow.Subscription() {
+        @Override
+        public void request(long n){
+        }
+
+        @Override
+        public void cancel(){
+        }
+    };
+
+    @State(Scope.Benchmark)
+    public static class Request {
+        @Param({"64", "4096"})
+        int textLength;
+
+        MethodHandle createMessage;
+        MethodHandle write;
+        String text;
+
+        @Setup
+        public void setup() throws Throwable {
+            createMessage = Client.constructor("ApiTypes$CreateMessage", String.class, String.class);
+            write = Client.staticMethod("Json", "write", String.class, Object.class);
+            text = Fixtures.text(textLength);
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Response {
+        @Param({"64", "4096"})
+        int textLength;
+
+        @Param({"1", "20"})
+        int messages;
+
+        MethodHandle read;
+        MethodHandle getMostRecentMessage;
+        Object messageListReader;
+        Object conversation;
+        String messageList;
+        byte[] messageListBytes;
+
+        MethodHandle newSubscriber;
+        MethodHandle onSubscribe;
+        MethodHandle onNext;
+        MethodHandle onComplete;
+        MethodHandle getBody;
+
+        @Setup
+        public void setup() throws Throwable {
+            read = Client.staticMethod("Json", "read", Object.class, Client.type("com.fasterxml.jackson.databind.ObjectReader"), String.class);
+            getMostRecentMessage = Client.method("AssistantConversation", "getMostRecentMessage", Object.class, Object.class);
+            messageListReader = Client.staticField("Json", "MESSAGE_LIST");
+            conversation = Client.constructor("AssistantConversation", String.class).invoke("asst_abc123");
+            messageList = Fixtures.messageListJson(messages, textLength);
+            messageListBytes = messageList.getBytes(StandardCharsets.UTF_8);
+
+            Class<?> objectReader = Client.type("com.fasterxml.jackson.databind.ObjectReader");
+            newSubscriber = Client.constructor("JsonBodySubscriber", objectReader);
+            onSubscribe = Client.method("JsonBodySubscriber", "onSubscribe", void.class, Flow.Subscription.class);
+            onNext = Client.method("JsonBodySubscriber", "onNext", void.class, List.class);
+            onComplete = Client.method("JsonBodySubscriber", "onComplete", void.class);
+            getBody = Client.method("JsonBodySubscriber", "getBody", CompletionStage.class);
+        }
+    }
+
+    @Benchmark
+    public Object writeCreateMessage(Request request) throws Throwable {
+        Object payload = (Object) request.createMessage.invokeExact((Object) "user", (Object) request.text);
+        return (Object) request.write.invokeExact(payload);
+    }
+
+    @Benchmark
+    public Object readMessageList(Response response) throws Throwable {
+        return (Object) response.read.invokeExact(response.messageListReader, (Object) response.messageList);
+    }
+
+    /**
+     * The body decoded into a String, as BodySubscribers.ofString does, then bound
+     */
+    @Benchmark
+    public Object receiveMessageListAsString(Response response) throws Throwable {
+        String body = new String(response.messageListBytes, StandardCharsets.UTF_8);
+        return (Object) response.read.invokeExact(response.messageListReader, (Object) body);
+    }
+
+    /**
+     * The body fed to JsonBodySubscriber chunk by chunk, as the HttpClient does
+     */
+    @Benchmark
+    public Object receiveMessageListIncrementally(Response response) throws Throwable {
+        Object subscriber = (Object) response.newSubscriber.invokeExact(response.messageListReader);
+        Object ignored = (Object) response.onSubscribe.invokeExact(subscriber, (Object) NO_OP);
+        byte[] bytes = response.messageListBytes;
+        for (int offset = 0; offset < bytes.length; offset += CHUNK) {
+            List<ByteBuffer> chunk = List.of(ByteBuffer.wrap(bytes, offset, Math.min(CHUNK, bytes.length - offset)));
+            ignored = (Object) response.onNext.invokeExact(subscriber, (Object) chunk);
+        }
+        ignored = (Object) response.onComplete.invokeExact(subscriber);
+        CompletionStage<?> body = (CompletionStage<?>) (Object) response.getBody.invokeExact(subscriber);
+        return body.toCompletableFuture().join();
+    }
+
+    @Benchmark
+    public Object readMostRecentMessage(Response response) throws Throwable {
+        Object page = (Object) response.read.invokeExact(response.messageListReader, (Object) response.messageList);
+        return (Object) response.getMostRecentMessage.invokeExact(response.conversation, page);
+    }
+}
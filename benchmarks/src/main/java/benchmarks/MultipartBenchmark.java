@@ -0,0 +1,104 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.lang.invoke.MethodHandle;
+import java.net.http.HttpRequest;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Generating the multipart/form-data body of POST /files as uploadFileAsync does, and draining it the way the
+ * HttpClient would, so the cost of building the body and of reading the file through it is measured without a
+ * network in between
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MultipartBenchmark {
+
+    @Param({"65536", "16777216"})
+    int fileSize;
+
+    private MethodHandle newBody;
+    private MethodHandle field;
+    private MethodHandle file;
+    private MethodHandle publisher;
+
+    private Path path;
+
+    @Setup
+    public void setup() throws Throwable {
+        newBody = Client.constructor("MultipartBody");
+        field = Client.method("MultipartBody", "field", Client.type("MultipartBody"), String.class, String.class);
+        file = Client.method("MultipartBody", "file", Client.type("MultipartBody"), String.class, Path.class);
+        publisher = Client.method("MultipartBody", "publisher", HttpRequest.BodyPublisher.class);
+
+        byte[] content = new byte[fileSize];
+        ThreadLocalRandom.current().nextBytes(content);
+        path = Files.createTempFile("multipart-benchmark", ".bin");
+        Files.write(path, content);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        Files.deleteIfExists(path);
+    }
+
+    @Benchmark
+    public long uploadBody() throws Throwable {
+        Object body = (Object) newBody.invokeExact();
+        body = (Object) field.invokeExact(body, (Object) "purpose", (Object) "assistants");
+        body = (Object) file.invokeExact(body, (Object) "file", (Object) path);
+        HttpRequest.BodyPublisher bodyPublisher = (HttpRequest.BodyPublisher) (Object) publisher.invokeExact(body);
+
+        Drain drain = new Drain();
+        bodyPublisher.subscribe(drain);
+        if (drain.error != null) throw drain.error;
+        if (!drain.complete || drain.bytes != bodyPublisher.contentLength()) {
+            throw new IllegalStateException("Body not drained: " + drain.bytes + " of " + bodyPublisher.contentLength() + " bytes");
+        }
+        return drain.bytes;
+    }
+
+    /**
+     * Reads every byte of every buffer, as the HttpClient does when writing them to the socket. The parts of the body
+     * are all published synchronously, so the body has been drained when subscribe returns
+     */
+    private static class Drain implements Flow.Subscriber<ByteBuffer> {
+        long bytes;
+        long checksum;
+        boolean complete;
+        Throwable error;
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription){
+            subscription.request(Long.MAX_VALUE);
+        }
+
+        @Override
+        public void onNext(ByteBuffer buffer){
+            bytes += buffer.remaining();
+            while (buffer.remaining() >= Long.BYTES) checksum += buffer.getLong();
+            while (buffer.hasRemaining()) checksum += buffer.get();
+        }
+
+        @Override
+        public void onError(Throwable throwable){
+            error = throwable;
+        }
+
+        @Override
+        public void onComplete(){
+            complete = true;
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.lang.invoke.MethodHandle;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+
+/**
+ * Parsing the server-sent events of a streamed run with RunStreamReader, from the first line to [DONE], including
+ * binding every thread.message.delta and the thread.message.completed message
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RunStreamBenchmark {
+
+    @Param({"10", "500"})
+    int deltas;
+
+    private MethodHandle newReader;
+    private MethodHandle onLine;
+    private MethodHandle getMessage;
+
+    private List<String> lines;
+
+    @Setup
+    public void setup() throws Throwable {
+        newReader = Client.constructor("RunStreamReader", Consumer.class);
+        onLine = Client.method("RunStreamReader", "onLine", void.class, String.class);
+        getMessage = Client.method("RunStreamReader", "getMessage", String.class);
+        lines = Fixtures.runStreamLines(deltas);
+    }
+
+    @Benchmark
+    public Object parseRunStream(Blackhole blackhole) throws Throwable {
+        Consumer<String> onDelta = blackhole::consume;
+        Object reader = (Object) newReader.invokeExact((Object) onDelta);
+        for (String line : lines) {
+            Object ignored = (Object) onLine.invokeExact(reader, (Object) line);
+        }
+        return (Object) getMessage.invokeExact(reader);
+    }
+}
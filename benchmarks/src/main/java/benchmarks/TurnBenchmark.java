@@ -0,0 +1,84 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.lang.invoke.MethodHandle;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+
+/**
+ * End-to-end latency of one conversation turn against an in-process MockAssistantsServer: POST the user message,
+ * then stream the run until the reply is complete. Sampled so percentiles are reported along with the mean.
+ * Each iteration uses a new thread, so the mock's thread does not grow for the whole run. The mock is pinned to no
+ * latency, pacing, faults or rate limit, so only the client and the loopback are measured
+ */
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+// Without TCP_NODELAY the JDK's HttpServer holds small responses back for the client's delayed ACK, tens of ms a turn
+@Fork(value = 1, jvmArgsAppend = "-Dsun.net.httpserver.nodelay=true")
+@State(Scope.Benchmark)
+public class TurnBenchmark {
+
+    @Param({"16", "1024"})
+    int messageLength;
+
+    private Object mockServer;
+    private Object conversation;
+    private MethodHandle createThread;
+    private MethodHandle createUserMessage;
+    private MethodHandle assistantReply;
+
+    private String message;
+
+    @Setup
+    public void setup() throws Throwable {
+        mockServer = Client.constructor("MockAssistantsServer", int.class).invoke(0);
+        Client.method("MockAssistantsServer", "setLatency", void.class, Duration.class, Duration.class).invoke(mockServer, Duration.ZERO, Duration.ZERO);
+        Client.method("MockAssistantsServer", "setTokensPerSecond", void.class, double.class).invoke(mockServer, 0.0);
+        Client.method("MockAssistantsServer", "setErrorRate", void.class, double.class).invoke(mockServer, 0.0);
+        Client.method("MockAssistantsServer", "setErrorAfterApplyRate", void.class, double.class).invoke(mockServer, 0.0);
+        Client.method("MockAssistantsServer", "setPartFailureRate", void.class, double.class).invoke(mockServer, 0.0);
+        Client.method("MockAssistantsServer", "setRequestsPerMinute", void.class, int.class).invoke(mockServer, 0);
+        Client.method("MockAssistantsServer", "start", void.class).invoke(mockServer);
+        String baseUrl = (String) Client.method("MockAssistantsServer", "getBaseUrl", String.class).invoke(mockServer);
+
+        Object builder = Client.staticMethod("OpenAITransport", "builder", Client.type("OpenAITransport$Builder")).invoke();
+        builder = Client.method("OpenAITransport$Builder", "baseUrl", Client.type("OpenAITransport$Builder"), String.class).invoke(builder, baseUrl);
+        builder = Client.method("OpenAITransport$Builder", "apiKey", Client.type("OpenAITransport$Builder"), String.class).invoke(builder, "mock");
+        Object transport = Client.method("OpenAITransport$Builder", "build", Client.type("OpenAITransport")).invoke(builder);
+        conversation = Client.constructor("AssistantConversation", String.class, Client.type("OpenAITransport"))
+                .invoke("asst_benchmark", transport);
+
+        createThread = Client.method("AssistantConversation", "createThreadAsync", CompletableFuture.class);
+        createUserMessage = Client.method("AssistantConversation", "createUserMessageAsync", CompletableFuture.class, String.class);
+        assistantReply = Client.method("AssistantConversation", "assistantReplyAsync", CompletableFuture.class, Consumer.class);
+
+        message = Fixtures.text(messageLength);
+    }
+
+    @Setup(Level.Iteration)
+    public void newThread() throws Throwable {
+        CompletableFuture<?> thread = (CompletableFuture<?>) (Object) createThread.invokeExact(conversation);
+        if ("".equals(thread.join())) throw new IllegalStateException("Could not create a thread on the mock server");
+    }
+
+    @TearDown
+    public void tearDown() throws Throwable {
+        Client.method("MockAssistantsServer", "stop", void.class).invoke(mockServer);
+    }
+
+    @Benchmark
+    public Object turn(Blackhole blackhole) throws Throwable {
+        CompletableFuture<?> userMessage = (CompletableFuture<?>) (Object) createUserMessage.invokeExact(conversation, (Object) message);
+        if (userMessage.join() == null) throw new IllegalStateException("Message not created");
+        Consumer<String> onDelta = blackhole::consume;
+        CompletableFuture<?> reply = (CompletableFuture<?>) (Object) assistantReply.invokeExact(conversation, (Object) onDelta);
+        return reply.join();
+    }
+}
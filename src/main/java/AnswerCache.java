@@ -0,0 +1,184 @@
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.RemovalCause;
+import com.github.benmanes.caffeine.cache.RemovalListener;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.text.Normalizer;
+import java.time.Duration;
+import java.util.HexFormat;
+import java.util.Locale;
+
+
+/**
+ * Replies to questions already answered by the same version of an assistant, so asking them again costs no run. The
+ * version is a digest of the assistant object as read from the API (model, instructions, tools, temperature, files), so
+ * a change made by any process, or through any conversation, keys later answers apart. Questions are matched exactly
+ * after normalisation (case, whitespace, Unicode forms and trailing punctuation). Entries expire after a fixed time and
+ * the cache is bounded in size, evicting with Caffeine's W-TinyLFU policy so frequently asked questions stay cached.
+ *
+ * One cache can be shared by every conversation of a process. Conversations invalidate the entries of their assistant
+ * when they change it, so answers of older versions do not wait for eviction. Subclasses can answer questions that have
+ * no exact match, e.g. SemanticAnswerCache. Caches are created with a static factory, which registers the cache for
+ * removal notifications once it is constructed
+ */
+public class AnswerCache {
+
+    /**
+     * Everything a reply depends on, apart from the conversation before the question
+     * @param version version of the assistant, see version(ApiTypes.Assistant, String)
+     * @param query normalised question
+     */
+    public record Key(String assistantId, String version, String query) {
+
+        public static Key of(String assistantId, String version, String question){
+            return new Key(assistantId, version, normalize(question));
+        }
+    }
+
+    /**
+     * Forwards removals to the cache once it is constructed: the cache cannot pass itself to Caffeine from its own
+     * constructor, a subclass would not be initialised yet
+     */
+    private static class Removals implements RemovalListener<Key, String> {
+        private volatile AnswerCache cache;
+
+        @Override
+        public void onRemoval(Key key, String answer, RemovalCause cause){
+            AnswerCache cache = this.cache;
+            if (cache != null && key != null && cause != RemovalCause.REPLACED) cache.removed(key);
+        }
+    }
+
+    private final Removals removals = new Removals();
+    private final Cache<Key, String> answers;
+
+    /**
+     * @param maximumSize maximum number of answers kept
+     * @param timeToLive time after which an answer is asked again
+     */
+    protected AnswerCache(long maximumSize, Duration timeToLive){
+        this.answers = Caffeine.newBuilder()
+                .maximumSize(maximumSize)
+                .expireAfterWrite(timeToLive)
+                // Run on the thread removing the entry, so removed is called before the key can be put again
+                .executor(Runnable::run)
+                .removalListener(removals)
+                .build();
+    }
+
+    /**
+     * @param maximumSize maximum number of answers kept
+     * @param timeToLive time after which an answer is asked again
+     */
+    public static AnswerCache create(long maximumSize, Duration timeToLive){
+        return register(new AnswerCache(maximumSize, timeToLive));
+    }
+
+    /**
+     * Has removed called on cache from now on. Every factory calls it on the cache it constructed
+     */
+    protected static <C extends AnswerCache> C register(C cache){
+        ((AnswerCache) cache).removals.cache = cache;
+        return cache;
+    }
+
+    /**
+     * Digest of everything of an assistant that its answers depend on, so two objects of the same assistant have the
+     * same version unless it was modified in between
+     * @param assistant assistant as read from the API
+     * @param retrieverVersion version of the local index its messages are given passages from, null if there is none
+     */
+    public static String version(ApiTypes.Assistant assistant, String retrieverVersion){
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(Json.write(assistant).getBytes(StandardCharsets.UTF_8));
+            if (retrieverVersion != null) digest.update(retrieverVersion.getBytes(StandardCharsets.UTF_8));
+            return HexFormat.of().formatHex(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @return the cached answer, or the answer of a similar question if this cache matches them, null if there is none
+     */
+    public String get(Key key){
+        String answer = answers.getIfPresent(key);
+        String result = "hit";
+        if (answer == null) {
+            answer = this.getSimilar(key);
+            result = answer != null ? "similar_hit" : "miss";
+        }
+        Metrics.registry().increment("answer_cache_requests_total", 1, "result", result);
+        return answer;
+    }
+
+    /**
+     * Caches an answer, unless it is empty (the sentinel of a failed run)
+     */
+    public void put(Key key, String answer){
+        if (answer == null || answer.isEmpty()) return;
+        answers.put(key, answer);
+        this.added(key);
+    }
+
+    /**
+     * @return the answer cached for exactly this key, null if there is none
+     */
+    protected String getExact(Key key){
+        return answers.getIfPresent(key);
+    }
+
+    /**
+     * Called on a miss
+     * @return answer to a question similar to the key's, null if there is none
+     */
+    protected String getSimilar(Key key){
+        return null;
+    }
+
+    /**
+     * Called after an answer is put
+     */
+    protected void added(Key key){
+    }
+
+    /**
+     * Called after an answer expired, was evicted or was invalidated
+     */
+    protected void removed(Key key){
+    }
+
+    /**
+     * Drops every answer of an assistant, e.g. after its files or settings changed
+     */
+    public void invalidateAssistant(String assistantId){
+        if (assistantId == null) return;
+        answers.asMap().keySet().removeIf(key -> assistantId.equals(key.assistantId()));
+    }
+
+    public void invalidateAll(){
+        answers.invalidateAll();
+    }
+
+    public long size(){
+        return answers.estimatedSize();
+    }
+
+    /**
+     * Normalises a question so trivially different spellings of it share an entry: Unicode compatibility forms are
+     * folded, case is ignored, runs of whitespace become one space and trailing punctuation is dropped
+     */
+    public static String normalize(String question){
+        String normalized = Normalizer.normalize(question, Normalizer.Form.NFKC)
+                .toLowerCase(Locale.ROOT)
+                .replaceAll("\\s+", " ")
+                .strip();
+        int end = normalized.length();
+        while (end > 0 && ".?!".indexOf(normalized.charAt(end - 1)) >= 0) end--;
+        return normalized.substring(0, end).strip();
+    }
+}
@@ -0,0 +1,103 @@
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.databind.JsonNode;
+
+import java.util.List;
+
+
+/**
+ * Typed request and response payloads of the OpenAI Assistants API. Responses are bound with the shared readers in
+ * Json, unknown fields are ignored
+ */
+public final class ApiTypes {
+
+    private ApiTypes(){
+    }
+
+
+    /*
+     * Responses
+     */
+
+    public record Assistant(String id, String object, @JsonProperty("created_at") long createdAt, String name,
+                            String description, String model, String instructions, List<Tool> tools,
+                            Double temperature, @JsonProperty("file_ids") List<String> fileIds) { }
+
+    public record Tool(String type) { }
+
+    public record Thread(String id, String object, @JsonProperty("created_at") long createdAt) { }
+
+    public record Message(String id, String object, @JsonProperty("created_at") long createdAt,
+                          @JsonProperty("thread_id") String threadId, String role, List<Content> content,
+                          @JsonProperty("assistant_id") String assistantId, @JsonProperty("run_id") String runId) {
+
+        /**
+         * @return text of the message, the values of all its text content parts joined together
+         */
+        public String text(){
+            if (content == null) return "";
+            StringBuilder text = new StringBuilder();
+            for (Content part : content) {
+                if (part.text() != null && part.text().value() != null) text.append(part.text().value());
+            }
+            return text.toString();
+        }
+    }
+
+    public record Content(Integer index, String type, Text text) { }
+
+    public record Text(String value, List<JsonNode> annotations) { }
+
+    /**
+     * A page of a list endpoint, e.g. GET /threads/{thread_id}/messages
+     */
+    public record ListPage<T>(String object, List<T> data, @JsonProperty("first_id") String firstId,
+                              @JsonProperty("last_id") String lastId, @JsonProperty("has_more") boolean hasMore) { }
+
+    public record Run(String id, String object, @JsonProperty("thread_id") String threadId,
+                      @JsonProperty("assistant_id") String assistantId, String status,
+                      @JsonProperty("last_error") JsonNode lastError) { }
+
+    public record Deleted(String id, String object, boolean deleted) { }
+
+    /**
+     * An upload of the Uploads API, file is set once the upload is completed
+     */
+    public record Upload(String id, String object, long bytes, String filename, String purpose, String status,
+                         @JsonProperty("expires_at") long expiresAt, AssistantConversation.FileResponse file) { }
+
+    public record UploadPart(String id, String object, @JsonProperty("upload_id") String uploadId) { }
+
+
+    /*
+     * Stream events
+     */
+
+    /**
+     * Payload of a thread.message.delta event
+     */
+    public record MessageDelta(String id, String object, Delta delta) { }
+
+    public record Delta(List<Content> content) { }
+
+
+    /*
+     * Requests
+     */
+
+    public record CreateAssistant(String model, String name, String instructions, List<Tool> tools) { }
+
+    /**
+     * Body of POST /assistants/{assistant_id}. Null fields are left out of the request and so left unchanged
+     */
+    public record ModifyAssistant(String description, Double temperature) { }
+
+    public record CreateMessage(String role, String content) { }
+
+    public record CreateRun(@JsonProperty("assistant_id") String assistantId, boolean stream) { }
+
+    public record AttachFile(@JsonProperty("file_id") String fileId) { }
+
+    public record CreateUpload(String filename, String purpose, long bytes, @JsonProperty("mime_type") String mimeType) { }
+
+    public record CompleteUpload(@JsonProperty("part_ids") List<String> partIds) { }
+}
@@ -1,41 +1,122 @@
 import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
-import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.ObjectMapper;
 
 import java.io.*;
-import java.net.HttpURLConnection;
-import java.net.URL;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
 import java.util.*;
-import java.util.stream.Collectors;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
 
 
+/**
+ * Conversation with an OpenAI assistant on a single thread. Every operation has a blocking form and an ...Async
+ * form returning a CompletableFuture that completes on the HttpClient's threads, so no thread is parked while a
+ * request is in flight. Async operations on the same conversation should be chained rather than run concurrently
+ */
 public class AssistantConversation {
 
 
 
     String modelName;
-    String assistantId;
-    String threadId;
-    ArrayList<String> chatMessages;
-
-
-    private String API_KEY = System.getenv("OPENAI_API_KEY");
-    private static final String BASE_URL = "https://api.openai.com/v1";
+    volatile String assistantId;
+    volatile String threadId;
+    final ConversationHistory chatMessages;
+
+
+    private final OpenAITransport transport;
+    private final WarmThreadPool threadPool;
+    private CompletableFuture<String> pendingThread;
+    private MessageCache messageCache;
+    private ConversationStore store;
+    private String storeLabel;
+    private FileHashIndex fileIndex;
+    private ChunkedUploader chunkedUploader;
+    private AnswerCache answerCache;
+    // Key of the opening question sent with createUserMessage, its reply is cached by assistantReply
+    private CompletableFuture<AnswerCache.Key> pendingAnswerKey;
+    // Turns answered from answerCache, posted to the thread before the next message so it holds the whole conversation
+    private final List<ConversationHistory.Entry> unsentTurns = new ArrayList<>();
+    private LocalRetriever localRetriever;
+    private int localPassages;
 
     public AssistantConversation(){
-        this.modelName = "gpt-4o-mini";
-        this.assistantId = null;
-        this.createThread();
-        this.chatMessages = new ArrayList<>();
+        this(null, OpenAITransport.shared());
     }
 
     public AssistantConversation(String assistantId){
+        this(assistantId, OpenAITransport.shared());
+    }
+
+    /**
+     * @param assistantId ID of an existing assistant, null if one will be created with createAssistant
+     * @param transport transport used for every API call made by this conversation
+     */
+    public AssistantConversation(String assistantId, OpenAITransport transport){
+        this(assistantId, transport, null);
+    }
+
+    /**
+     * No request is made here: the conversation's thread is only created (or taken from threadPool) when the first
+     * message is sent
+     * @param assistantId ID of an existing assistant, null if one will be created with createAssistant
+     * @param transport transport used for every API call made by this conversation
+     * @param threadPool pool of pre-created threads to take this conversation's thread from, null to create it on
+     *                   demand
+     */
+    public AssistantConversation(String assistantId, OpenAITransport transport, WarmThreadPool threadPool){
         this.modelName = "gpt-4o-mini";
         this.assistantId = assistantId;
-        this.createThread();
-        this.chatMessages = new ArrayList<>();
+        this.transport = transport;
+        this.threadPool = threadPool;
+        this.chatMessages = new ConversationHistory(ConversationHistory.Retention.DEFAULT);
+    }
+
+    /**
+     * Resumes a conversation recorded in a ConversationStore without any API request. Its thread and messages are
+     * taken from the record and new messages keep being recorded in store
+     * @param record conversation read with ConversationStore.load
+     * @param transport transport used for every API call made by this conversation
+     * @param store store the conversation was read from
+     */
+    public static AssistantConversation resume(ConversationStore.ThreadRecord record, OpenAITransport transport, ConversationStore store){
+        AssistantConversation conversation = new AssistantConversation(record.assistantId(), transport);
+        conversation.threadId = record.threadId();
+        for (ConversationHistory.Entry entry : record.messages()) conversation.chatMessages.add(entry);
+        conversation.store = store;
+        conversation.storeLabel = record.label();
+        return conversation;
+    }
+
+    /**
+     * Records this conversation's thread and messages in store from now on, so it can be resumed after a restart
+     * @param store store to record the conversation in
+     * @param label name the conversation is recorded under, e.g. a session id, null if none
+     */
+    public synchronized void persistTo(ConversationStore store, String label){
+        this.store = store;
+        this.storeLabel = label;
+        if (this.threadId != null) store.open(this.threadId, this.assistantId, label);
+    }
+
+    /**
+     * Sets this.threadId and records it in this.store if there is one
+     */
+    private synchronized void threadCreated(String id){
+        this.threadId = id;
+        if (this.store != null) this.store.open(id, this.assistantId, this.storeLabel);
+    }
+
+    /**
+     * Adds a message to the conversation history and records it in this.store if there is one
+     */
+    private void addToHistory(ConversationHistory.Role role, String text){
+        ConversationHistory.Entry entry = this.chatMessages.add(role, text);
+        if (this.store != null) this.store.append(this.threadId, entry);
     }
 
     /** Creates a new OpenAI assistant (with file_search enabled) object and sets this.assistantId to the ID contained
@@ -44,54 +125,7 @@ public class AssistantConversation {
      */
     @Deprecated
     public void createAssistant(){
-        try {
-            URL url = new URL(BASE_URL + "/assistants");
-            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-
-            connection.setRequestMethod("POST");
-            connection.setRequestProperty("Authorization", "Bearer " + API_KEY);
-            connection.setRequestProperty("Content-Type", "application/json");
-            connection.setRequestProperty("OpenAI-Beta", "assistants=v2");
-            connection.setDoOutput(true);
-
-            Map<String, Object> payload = new HashMap<>();
-            payload.put("model", this.modelName);
-            payload.put("name", "API_ACCESS_TEST_JAVA");
-            payload.put("instructions", "You are a helpful assistant.");
-
-            // Add tools configuration
-            List<Map<String, String>> tools = new ArrayList<>();
-            Map<String, String> retrieval = new HashMap<>();
-            retrieval.put("type", "file_search");
-            tools.add(retrieval);
-
-            payload.put("tools", tools);
-
-            ObjectMapper mapper = new ObjectMapper();
-            try (OutputStream os = connection.getOutputStream()) {
-                mapper.writeValue(os, payload);
-            }
-
-            int status = connection.getResponseCode();
-            String response = readResponse(connection);
-
-            System.out.println("Assistant creation status: " + status);
-            System.out.println("Assistant creation response: " + response);
-
-            if (status == 200 || status == 201) {
-                JsonNode rootNode = mapper.readTree(response);
-                this.assistantId = rootNode.get("id").asText();
-                System.out.println("Assistant created successfully with ID: " + this.assistantId);
-            } else {
-                System.err.println("Error creating assistant. Status: " + status);
-                System.err.println("Response: " + response);
-            }
-
-            connection.disconnect();
-        } catch (Exception e) {
-            System.err.println("Failed to create assistant: " + e.getMessage());
-            e.printStackTrace();
-        }
+        this.createAssistant("API_ACCESS_TEST_JAVA", true);
     }
 
 
@@ -100,54 +134,7 @@ public class AssistantConversation {
      * @param assistantName desired name for assistant
      */
     public void createAssistant(String assistantName){
-        try {
-            URL url = new URL(BASE_URL + "/assistants");
-            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-
-            connection.setRequestMethod("POST");
-            connection.setRequestProperty("Authorization", "Bearer " + API_KEY);
-            connection.setRequestProperty("Content-Type", "application/json");
-            connection.setRequestProperty("OpenAI-Beta", "assistants=v2");
-            connection.setDoOutput(true);
-
-            Map<String, Object> payload = new HashMap<>();
-            payload.put("model", this.modelName);
-            payload.put("name", assistantName);
-            payload.put("instructions", "You are a helpful assistant.");
-
-            // Add tools configuration
-            List<Map<String, String>> tools = new ArrayList<>();
-            Map<String, String> retrieval = new HashMap<>();
-            retrieval.put("type", "file_search");
-            tools.add(retrieval);
-
-            payload.put("tools", tools);
-
-            ObjectMapper mapper = new ObjectMapper();
-            try (OutputStream os = connection.getOutputStream()) {
-                mapper.writeValue(os, payload);
-            }
-
-            int status = connection.getResponseCode();
-            String response = readResponse(connection);
-
-            System.out.println("Assistant creation status: " + status);
-            System.out.println("Assistant creation response: " + response);
-
-            if (status == 200 || status == 201) {
-                JsonNode rootNode = mapper.readTree(response);
-                this.assistantId = rootNode.get("id").asText();
-                System.out.println("Assistant created successfully with ID: " + this.assistantId);
-            } else {
-                System.err.println("Error creating assistant. Status: " + status);
-                System.err.println("Response: " + response);
-            }
-
-            connection.disconnect();
-        } catch (Exception e) {
-            System.err.println("Failed to create assistant: " + e.getMessage());
-            e.printStackTrace();
-        }
+        this.createAssistant(assistantName, true);
     }
 
     /**
@@ -155,101 +142,98 @@ public class AssistantConversation {
      * @param assistantName desired name for assistant
      */
     public void createAssistant(String assistantName, boolean verbose){
-        try {
-            URL url = new URL(BASE_URL + "/assistants");
-            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-
-            connection.setRequestMethod("POST");
-            connection.setRequestProperty("Authorization", "Bearer " + API_KEY);
-            connection.setRequestProperty("Content-Type", "application/json");
-            connection.setRequestProperty("OpenAI-Beta", "assistants=v2");
-            connection.setDoOutput(true);
-
-            Map<String, Object> payload = new HashMap<>();
-            payload.put("model", this.modelName);
-            payload.put("name", assistantName);
-            payload.put("instructions", "You are a helpful assistant.");
-
-            // Add tools configuration
-            List<Map<String, String>> tools = new ArrayList<>();
-            Map<String, String> retrieval = new HashMap<>();
-            retrieval.put("type", "file_search");
-            tools.add(retrieval);
-
-            payload.put("tools", tools);
-
-            ObjectMapper mapper = new ObjectMapper();
-            try (OutputStream os = connection.getOutputStream()) {
-                mapper.writeValue(os, payload);
-            }
+        this.createAssistantAsync(assistantName, verbose).join();
+    }
 
-            int status = connection.getResponseCode();
-            String response = readResponse(connection);
+    /**
+     * Sets this.assistantId to assistant created with name assistantName once the request completes
+     * @param assistantName desired name for assistant
+     * @return future completing with the new assistant's ID, null if the request is unsuccessful
+     */
+    public CompletableFuture<String> createAssistantAsync(String assistantName, boolean verbose){
+        // Add tools configuration
+        // With a local retriever, passages are put into the messages and the assistant searches nothing itself
+        List<ApiTypes.Tool> tools = this.localRetriever != null ? List.of() : List.of(new ApiTypes.Tool("file_search"));
+        String body = Json.write(new ApiTypes.CreateAssistant(this.modelName, assistantName, "You are a helpful assistant.", tools));
+
+        return transport.<ApiTypes.Assistant>postAsync("/assistants", body, Json.ASSISTANT)
+                .thenApply(httpResponse -> {
+                    int status = httpResponse.statusCode();
+                    ApiTypes.Assistant assistant = httpResponse.body();
+
+                    if (verbose) {
+                        System.out.println("Assistant creation status: " + status);
+                        System.out.println("Assistant creation response: " + assistant);
+                    }
 
-            if (verbose) {
-                System.out.println("Assistant creation status: " + status);
-                System.out.println("Assistant creation response: " + response);
-            }
+                    if (assistant != null) {
+                        this.assistantId = assistant.id();
+                        System.out.println("Assistant created successfully with ID: " + this.assistantId);
+                        return this.assistantId;
+                    }
+                    System.err.println("Error creating assistant. Status: " + status);
+                    return null;
+                })
+                .exceptionally(e -> {
+                    System.err.println("Failed to create assistant: " + e.getMessage());
+                    e.printStackTrace();
+                    return null;
+                });
+    }
 
-            if (status == 200 || status == 201) {
-                JsonNode rootNode = mapper.readTree(response);
-                this.assistantId = rootNode.get("id").asText();
-                System.out.println("Assistant created successfully with ID: " + this.assistantId);
-            } else {
-                System.err.println("Error creating assistant. Status: " + status);
-                if (verbose) System.err.println("Response: " + response);
-            }
 
-            connection.disconnect();
-        } catch (Exception e) {
-            System.err.println("Failed to create assistant: " + e.getMessage());
-            e.printStackTrace();
-        }
+    /**
+     * Sets this.assistantId to the most recent assistant named assistantName, creating it (with file_search enabled)
+     * if there is none, so running a program again reuses the assistant it created before
+     * @param assistantName desired name for assistant
+     */
+    public void getOrCreateAssistant(String assistantName, boolean verbose){
+        this.getOrCreateAssistantAsync(assistantName, verbose).join();
     }
 
+    /**
+     * Sets this.assistantId to the most recent assistant named assistantName once it is found, creating it (with
+     * file_search enabled) if there is none. Names are resolved once per process by the shared AssistantRegistry
+     * @param assistantName desired name for assistant
+     * @return future completing with the assistant's ID, null if it could neither be found nor created
+     */
+    public CompletableFuture<String> getOrCreateAssistantAsync(String assistantName, boolean verbose){
+        List<ApiTypes.Tool> tools = this.localRetriever != null ? List.of() : List.of(new ApiTypes.Tool("file_search"));
+        ApiTypes.CreateAssistant request = new ApiTypes.CreateAssistant(this.modelName, assistantName, "You are a helpful assistant.", tools);
+
+        return this.assistants().getOrCreateAsync(request).thenApply(id -> {
+            if (id == null) {
+                System.err.println("Error getting or creating assistant " + assistantName);
+                return null;
+            }
+            this.assistantId = id;
+            if (verbose) System.out.println("Using assistant " + assistantName + " with ID: " + id);
+            return id;
+        });
+    }
 
     /**
      * Returns OpenAI Assistant object tied with ID this.assistantId
      * @return OpenAI Assistant Object
      */
     public String getAssistant(String assistantId){
-        String result = "";
-        try {
-            // URL for the OpenAI Chat Completion endpoint
-            URL url = new URL("https://api.openai.com/v1/assistants/" + assistantId);
-            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-
-            // Setting headers
-            connection.setRequestMethod("GET");
-            connection.setRequestProperty("Authorization", "Bearer " + API_KEY);
-            connection.setRequestProperty("Content-Type", "application/json");
-            connection.setRequestProperty("OpenAI-Beta", "assistants=v2");  // Adding the beta HTTP header
-
-            // Handling the response
-            int status = connection.getResponseCode();
-            String msg = connection.getResponseMessage();
-
-            if (status == 200) {
-                try (BufferedReader br = new BufferedReader(new InputStreamReader(connection.getInputStream(), "utf-8"))) {
-                    StringBuilder response = new StringBuilder();
-                    String responseLine;
-                    while ((responseLine = br.readLine()) != null) {
-                        response.append(responseLine.trim());
-                    }
-                    result = response.toString();
-                }
-            } else {
-                System.out.println("Error: " + status);
-                System.out.println("Msg: " + msg);
-            }
-
-            connection.disconnect();
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
+        return this.getAssistantAsync(assistantId).join();
+    }
 
+    /**
+     * Reads the assistant from the shared AssistantRegistry, so only the first lookup in a while makes a request
+     * @return future completing with the OpenAI Assistant object tied with assistantId, empty string if unsuccessful
+     */
+    public CompletableFuture<String> getAssistantAsync(String assistantId){
+        return this.assistants().getAsync(assistantId)
+                .thenApply(assistant -> assistant != null ? Json.write(assistant) : "");
+    }
 
-        return result;
+    /**
+     * @return registry of assistants shared by the conversations using this.transport
+     */
+    private AssistantRegistry assistants(){
+        return AssistantRegistry.of(transport);
     }
 
     /**
@@ -257,51 +241,15 @@ public class AssistantConversation {
      * @param temp 0 to 2
      */
     private void changeTemperature(double temp){
-        assert temp >= 0 && temp <= 2 : "Temperature out of range 0.0 - 2.0";
-
-        try {
-            // URL for the OpenAI Chat Completion endpoint
-            URL url = new URL("https://api.openai.com/v1/assistants/" + assistantId);
-            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-
-            // Setting headers
-            connection.setRequestMethod("POST");
-            connection.setRequestProperty("Authorization", "Bearer " + API_KEY);
-            connection.setRequestProperty("Content-Type", "application/json");
-            connection.setRequestProperty("OpenAI-Beta", "assistants=v2");  // Adding the beta HTTP header
-            connection.setDoOutput(true);
-
-            Map<String, Object> payload = new HashMap<>();
-            payload.put("temperature", temp);
-
-            ObjectMapper mapper = new ObjectMapper();
-            try (OutputStream os = connection.getOutputStream()) {
-                mapper.writeValue(os, payload);
-            }
-
-            // Handling the response
-            int status = connection.getResponseCode();
-            String msg = connection.getResponseMessage();
-
-            if (status == 200) {
-                try (BufferedReader br = new BufferedReader(new InputStreamReader(connection.getInputStream(), "utf-8"))) {
-                    StringBuilder response = new StringBuilder();
-                    String responseLine;
-                    while ((responseLine = br.readLine()) != null) {
-                        response.append(responseLine.trim());
-                    }
-//                    System.out.println("Temperature has been changed to " + temp + "\n" + response);
-                }
-            } else {
-                System.out.println("Error: " + status);
-                System.out.println("Msg: " + msg);
-            }
+        this.changeTemperatureAsync(temp).join();
+    }
 
-            connection.disconnect();
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
+    private CompletableFuture<Void> changeTemperatureAsync(double temp){
+        assert temp >= 0 && temp <= 2 : "Temperature out of range 0.0 - 2.0";
 
+        return this.modifyAssistantAsync(new ApiTypes.ModifyAssistant(null, temp)).thenRun(() -> {
+            if (this.answerCache != null) this.answerCache.invalidateAssistant(this.assistantId);
+        });
     }
 
 
@@ -309,106 +257,16 @@ public class AssistantConversation {
      * Returns description of assistant
      */
     private String generateDescription(){
-        // Create temp thread
-        String tempThreadId = "";
-        String description = "";
-        try {
-            // URL for the OpenAI Chat Completion endpoint
-            URL url = new URL("https://api.openai.com/v1/threads");
-            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-
-            // Setting headers
-            connection.setRequestMethod("POST");
-            connection.setRequestProperty("Authorization", "Bearer " + API_KEY);
-            connection.setRequestProperty("Content-Type", "application/json");
-            connection.setRequestProperty("OpenAI-Beta", "assistants=v2");  // Adding the beta HTTP header
-
-            // Handling the response
-            int status = connection.getResponseCode();
-            String msg = connection.getResponseMessage();
-            if (status == 200) {
-                try (BufferedReader br = new BufferedReader(new InputStreamReader(connection.getInputStream(), "utf-8"))) {
-                    StringBuilder response = new StringBuilder();
-                    String responseLine;
-                    while ((responseLine = br.readLine()) != null) {
-                        response.append(responseLine.trim());
-                    }
-
-                    ObjectMapper objectMapper = new ObjectMapper();
-                    JsonNode rootNode = objectMapper.readTree(response.toString());
-                    tempThreadId = rootNode.get("id").asText();
-
-                }
-            } else {
-                System.out.println("Error: " + status);
-                System.out.println("Msg: " + msg);
-            }
-
-            connection.disconnect();
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
+        return this.generateDescriptionAsync().join();
+    }
 
+    private CompletableFuture<String> generateDescriptionAsync(){
         // Send userMessage asking to generate a description including "A domain expert on <description of documents
         // loaded for that assistant>"
         String message = "Generate a description in quotes starting with 'A domain expert on <description>' where " +
                 "<description> is a summary of the documents that you have loaded and the applications that stem from" +
                 " the information contained in those documents";
-        String userMessageResponse = this.createUserMessage(tempThreadId, message).toString();
-
-        // Run thread and obtain assistant's generated description
-        try {
-            // URL for the OpenAI Chat Completion endpoint
-            URL url = new URL("https://api.openai.com/v1/threads/" + tempThreadId + "/runs");
-            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-
-            // Setting headers
-            connection.setRequestMethod("POST");
-            connection.setRequestProperty("Authorization", "Bearer " + API_KEY);
-            connection.setRequestProperty("Content-Type", "application/json");
-            connection.setRequestProperty("OpenAI-Beta", "assistants=v2");  // Adding the beta HTTP header
-            connection.setDoOutput(true);
-
-            // JSON payload
-            String jsonInputString = "{ \"assistant_id\": \"" +
-                    this.assistantId + "\", \"stream\": " +
-                    true + " }";
-
-            // Sending the request
-            try (OutputStream os = connection.getOutputStream()) {
-                byte[] input = jsonInputString.getBytes("utf-8");
-                os.write(input, 0, input.length);
-            }
-
-
-            // Handling the response
-            int status = connection.getResponseCode();
-            String msg = connection.getResponseMessage();
-            if (status == 200) {
-                try (BufferedReader br = new BufferedReader(new InputStreamReader(connection.getInputStream(), "utf-8"))) {
-                    StringBuilder response = new StringBuilder();
-                    String responseLine;
-                    while ((responseLine = br.readLine()) != null) {
-                        response.append(responseLine.trim());
-                    }
-
-                }
-            } else {
-                System.out.println("Error: " + status);
-                System.out.println("Msg: " + msg);
-            }
-
-            connection.disconnect();
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
-
-        description = this.getMostRecentMessage(this.getMessages(tempThreadId)).toString();
-
-        // Delete temp thread
-        this.deleteThread(tempThreadId);
-
-        return description;
+        return this.runInTempThreadAsync(message);
     }
 
 
@@ -417,104 +275,31 @@ public class AssistantConversation {
      * @return thread title
      */
     private String generateThreadTitle(String messages){
-        // Create temp thread
-        String tempThreadId = "";
-        String threadTitle = "";
-        try {
-            // URL for the OpenAI Chat Completion endpoint
-            URL url = new URL("https://api.openai.com/v1/threads");
-            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-
-            // Setting headers
-            connection.setRequestMethod("POST");
-            connection.setRequestProperty("Authorization", "Bearer " + API_KEY);
-            connection.setRequestProperty("Content-Type", "application/json");
-            connection.setRequestProperty("OpenAI-Beta", "assistants=v2");  // Adding the beta HTTP header
-
-            // Handling the response
-            int status = connection.getResponseCode();
-            String msg = connection.getResponseMessage();
-            if (status == 200) {
-                try (BufferedReader br = new BufferedReader(new InputStreamReader(connection.getInputStream(), "utf-8"))) {
-                    StringBuilder response = new StringBuilder();
-                    String responseLine;
-                    while ((responseLine = br.readLine()) != null) {
-                        response.append(responseLine.trim());
-                    }
-
-                    ObjectMapper objectMapper = new ObjectMapper();
-                    JsonNode rootNode = objectMapper.readTree(response.toString());
-                    tempThreadId = rootNode.get("id").asText();
-
-                }
-            } else {
-                System.out.println("Error: " + status);
-                System.out.println("Msg: " + msg);
-            }
-
-            connection.disconnect();
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
+        return this.generateThreadTitleAsync(messages).join();
+    }
 
+    private CompletableFuture<String> generateThreadTitleAsync(String messages){
         // Send userMessage asking to generate a description
         // For some reason, appending the assistant's message to the below string leads to a bad request, but the context still gets a good threadTitle without the assistant's message in there
         String message = "You are given a String of two messages in the following format: User: <User's message> Assistant: <Your reply to the user's question>. You are required to give a short title describing the user's question, given any files you have loaded if the user is inquiring about them in their question and your reply to that user's question as context for your title. Leave out any 'Title' label in your reply. See the following messages: " + messages;
-        String userMessageResponse = this.createUserMessage(tempThreadId, message).toString();
-
-        // Run thread and obtain assistant's generated description
-        try {
-            // URL for the OpenAI Chat Completion endpoint
-            URL url = new URL("https://api.openai.com/v1/threads/" + tempThreadId + "/runs");
-            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-
-            // Setting headers
-            connection.setRequestMethod("POST");
-            connection.setRequestProperty("Authorization", "Bearer " + API_KEY);
-            connection.setRequestProperty("Content-Type", "application/json");
-            connection.setRequestProperty("OpenAI-Beta", "assistants=v2");  // Adding the beta HTTP header
-            connection.setDoOutput(true);
-
-            // JSON payload
-            String jsonInputString = "{ \"assistant_id\": \"" +
-                    this.assistantId + "\", \"stream\": " +
-                    true + " }";
-
-            // Sending the request
-            try (OutputStream os = connection.getOutputStream()) {
-                byte[] input = jsonInputString.getBytes("utf-8");
-                os.write(input, 0, input.length);
-            }
-
-
-            // Handling the response
-            int status = connection.getResponseCode();
-            String msg = connection.getResponseMessage();
-            if (status == 200) {
-                try (BufferedReader br = new BufferedReader(new InputStreamReader(connection.getInputStream(), "utf-8"))) {
-                    StringBuilder response = new StringBuilder();
-                    String responseLine;
-                    while ((responseLine = br.readLine()) != null) {
-                        response.append(responseLine.trim());
-                    }
-
-                }
-            } else {
-                System.out.println("Error: " + status);
-                System.out.println("Msg: " + msg);
-            }
-
-            connection.disconnect();
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
-
-        threadTitle = this.getMostRecentMessage(this.getMessages(tempThreadId)).toString();
-
-        // Delete temp thread
-        this.deleteThread(tempThreadId);
+        return this.runInTempThreadAsync(message);
+    }
 
-        return threadTitle;
+    /**
+     * Takes a temp thread from the scratch pool, posts message to it and runs it. The thread is handed back to the
+     * pool to be deleted in the background, so only the message and the run are on the request path. All of its
+     * requests are background requests, so they never hold up a conversation's own replies
+     * @param message user message to be answered
+     * @return future completing with the assistant's reply
+     */
+    private CompletableFuture<String> runInTempThreadAsync(String message){
+        // Nobody is waiting on these replies, so they are sent as background requests
+        AssistantConversation background = new AssistantConversation(this.assistantId, transport.background());
+        WarmThreadPool scratchThreads = WarmThreadPool.scratch(transport.background());
+        return scratchThreads.take()
+                .thenCompose(tempThreadId -> background.createUserMessageAsync(tempThreadId, message)
+                        .thenCompose(userMessage -> background.streamRunAsync(tempThreadId, delta -> {}, completed -> {}))
+                        .whenComplete((reply, e) -> scratchThreads.release(tempThreadId)));
     }
 
 
@@ -523,305 +308,443 @@ public class AssistantConversation {
      * @return list of Assistant objects
      */
     private Object getAssistants(int N){
-        assert N > 0 && N <= 100 : "Number is out of range: 1 - 100";
-        try {
-            URL url = new URL(BASE_URL + "/assistants?order=desc&limit="+N);
-            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        return this.getAssistantsAsync(N).join();
+    }
 
-            connection.setRequestMethod("GET");
-            connection.setRequestProperty("Authorization", "Bearer " + API_KEY);
-            connection.setRequestProperty("Content-Type", "application/json");
-            connection.setRequestProperty("OpenAI-Beta", "assistants=v2");
+    private CompletableFuture<ApiTypes.ListPage<ApiTypes.Assistant>> getAssistantsAsync(int N){
+        return this.assistants().recentAsync(N)
+                .thenApply(assistants -> {
+                    if (assistants != null) System.out.println("Assistants retrieved successfully: " + assistants.data().size());
+                    return assistants;
+                });
+    }
 
+    /**
+     * Creates conversation thread and sets this.threadId to the id tied to the OpenAI Thread object
+     */
+    private void createThread(){
+        this.createThreadAsync().join();
+    }
 
-            int status = connection.getResponseCode();
-            String response = readResponse(connection);
+    /**
+     * Creates conversation thread and sets this.threadId to the id tied to the OpenAI Thread object once the request
+     * completes
+     * @return future completing with the id tied to OpenAI Thread object, empty string if POST request is unsuccessful
+     */
+    public CompletableFuture<String> createThreadAsync(){
+        return this.postThreadAsync().thenApply(id -> {
+            if (!id.isEmpty()) this.threadCreated(id);
+            return id;
+        });
+    }
 
+    /**
+     * Creates an OpenAI Thread object
+     * @return future completing with the id tied to OpenAI Thread object, empty string if POST request is unsuccessful
+     */
+    private CompletableFuture<String> postThreadAsync(){
+        return Metrics.timed("createThread", () -> transport.<ApiTypes.Thread>postAsync("/threads", "{}", Json.THREAD)
+                .thenApply(response -> response.body() == null ? "" : response.body().id())
+                .exceptionally(AssistantConversation::printFailure));
+    }
 
-            if (status == 200 || status == 201) {
-                System.out.println("Assistants retrieved successfully: " + response);
-                return response;
-            } else {
-                System.err.println("Error creating assistant. Status: " + status);
-                System.err.println("Response: " + response);
-            }
+    private void deleteThread(String threadId){
+        this.deleteThreadAsync(threadId).join();
+    }
 
-            connection.disconnect();
-        } catch (Exception e) {
-            System.err.println("Failed to create assistant: " + e.getMessage());
-            e.printStackTrace();
-        }
-        return "";
+    public CompletableFuture<Boolean> deleteThreadAsync(String threadId){
+        return transport.deleteAsync("/threads/" + threadId)
+                .thenApply(response -> {
+                    int status = response.statusCode();
+                    if (status == 200) {
+                        System.out.println("Thread deleted: " + response.body());
+                    } else {
+                        System.out.println("Error in deleting thread: " + status);
+                        System.out.println("Msg: " + response.body());
+                    }
+                    return status == 200;
+                })
+                .exceptionally(e -> {
+                    e.printStackTrace();
+                    return false;
+                })
+                .whenComplete((deleted, e) -> {
+                    if (threadId.equals(this.threadId)) {
+                        if (this.store != null) this.store.delete(threadId);
+                        this.threadId = null;
+                    }
+                });
+    }
+
+    private Object getThread(String threadId){
+        return this.getThreadAsync(threadId).join();
     }
 
     /**
-     * Creates conversation thread and sets this.threadId to the id tied to the OpenAI Thread object
-     * @return id tied to OpenAI Thread object, empty string if POST request is unsuccessful
+     * @return future completing with the OpenAI Thread object, empty string if unsuccessful
      */
-    private void createThread(){
-        try {
-            // URL for the OpenAI Chat Completion endpoint
-            URL url = new URL("https://api.openai.com/v1/threads");
-            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-
-            // Setting headers
-            connection.setRequestMethod("POST");
-            connection.setRequestProperty("Authorization", "Bearer " + API_KEY);
-            connection.setRequestProperty("Content-Type", "application/json");
-            connection.setRequestProperty("OpenAI-Beta", "assistants=v2");  // Adding the beta HTTP header
-
-            // Handling the response
-            int status = connection.getResponseCode();
-            String msg = connection.getResponseMessage();
-            if (status == 200) {
-                try (BufferedReader br = new BufferedReader(new InputStreamReader(connection.getInputStream(), "utf-8"))) {
-                    StringBuilder response = new StringBuilder();
-                    String responseLine;
-                    while ((responseLine = br.readLine()) != null) {
-                        response.append(responseLine.trim());
-                    }
+    public CompletableFuture<String> getThreadAsync(String threadId){
+        return transport.getAsync("/threads/" + threadId)
+                .thenApply(response -> bodyIfOk(response, ""))
+                .exceptionally(AssistantConversation::printFailure);
+    }
 
-                    ObjectMapper objectMapper = new ObjectMapper();
-                    JsonNode rootNode = objectMapper.readTree(response.toString());
-                    this.threadId = rootNode.get("id").asText();
+    private void setThread(){
+        this.setThreadAsync().join();
+    }
 
+    /**
+     * Sets this.threadId if it hasn't been set yet, taking a thread from this.threadPool if there is one. Concurrent
+     * callers share the same pending request
+     * @return future completing with this.threadId, empty string if a thread could not be created
+     */
+    private synchronized CompletableFuture<String> setThreadAsync(){
+        if (this.threadId != null) return CompletableFuture.completedFuture(this.threadId);
+        if (this.pendingThread == null) {
+            CompletableFuture<String> thread = this.threadPool != null ? this.threadPool.take() : this.postThreadAsync();
+            this.pendingThread = thread.thenApply(id -> {
+                synchronized (this) {
+                    if (!id.isEmpty()) this.threadCreated(id);
+                    this.pendingThread = null;
                 }
-            } else {
-                System.out.println("Error: " + status);
-                System.out.println("Msg: " + msg);
-            }
+                return id;
+            });
+        }
+        return this.pendingThread;
+    }
 
-            connection.disconnect();
-        } catch (Exception e) {
-            e.printStackTrace();
+    /**
+     * Returns the local message cache of this.threadId, replacing it if the conversation has moved to another thread
+     * @return cache of this conversation's thread, null if no thread has been created yet
+     */
+    private synchronized MessageCache messageCache(){
+        if (this.threadId == null) return null;
+        if (this.messageCache == null || !this.messageCache.getThreadId().equals(this.threadId)) {
+            this.messageCache = new MessageCache(transport, this.threadId);
         }
+        return this.messageCache;
     }
 
-    private void deleteThread(String threadId){
-        try {
-            // URL for the OpenAI Chat Completion endpoint
-            URL url = new URL("https://api.openai.com/v1/threads/" + threadId);
-            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-
-            // Setting headers
-            connection.setRequestMethod("DELETE");
-            connection.setRequestProperty("Authorization", "Bearer " + API_KEY);
-            connection.setRequestProperty("Content-Type", "application/json");
-            connection.setRequestProperty("OpenAI-Beta", "assistants=v2");  // Adding the beta HTTP header
-
-            // Handling the response
-            int status = connection.getResponseCode();
-            String msg = connection.getResponseMessage();
-            if (status == 200) {
-                try (BufferedReader br = new BufferedReader(new InputStreamReader(connection.getInputStream(), "utf-8"))) {
-                    StringBuilder response = new StringBuilder();
-                    String responseLine;
-                    while ((responseLine = br.readLine()) != null) {
-                        response.append(responseLine.trim());
-                    }
-                    System.out.println("Thread deleted: " + response.toString());
-                }
-            } else {
-                System.out.println("Error in deleting thread: " + status);
-                System.out.println("Msg: " + msg);
-            }
+    /**
+     * Brings the local copy of this conversation's messages up to date, fetching only messages posted after the last
+     * one the previous sync read. Messages sent and replies received through this conversation are cached without a
+     * request
+     * @return future completing with the messages that were not cached yet, oldest first
+     */
+    public CompletableFuture<List<ApiTypes.Message>> syncMessagesAsync(){
+        MessageCache cache = this.messageCache();
+        return cache == null ? CompletableFuture.completedFuture(List.of()) : cache.sync();
+    }
 
-            connection.disconnect();
-        } catch (Exception e) {
-            e.printStackTrace();
+    /**
+     * @return locally cached messages of this conversation's thread, oldest first, without making a request
+     */
+    public List<ApiTypes.Message> getCachedMessages(){
+        MessageCache cache = this.messageCache();
+        return cache == null ? List.of() : cache.getMessages();
+    }
+
+    /**
+     * Adds a user message to this conversation's thread, creating the thread first if this is the first message
+     * @param message content of the message
+     * @return OpenAI Message object, null if unsuccessful
+     */
+    public Object createUserMessage(String message){
+        return this.createUserMessageAsync(message).join();
+    }
+
+    /**
+     * Adds a user message to this conversation's thread, creating the thread first if this is the first message
+     * @param message content of the message
+     * @return future completing with the OpenAI Message object, null if unsuccessful
+     */
+    public CompletableFuture<ApiTypes.Message> createUserMessageAsync(String message){
+        synchronized (this) {
+            this.pendingAnswerKey = this.answerCache != null && this.isOpeningQuestion() ? this.answerKeyAsync(message) : null;
         }
-        if (this.threadId.equals(threadId)) this.threadId = null;
+        String content = this.withPassages(message);
+        return this.setThreadAsync().thenCompose(id -> id.isEmpty() ? CompletableFuture.completedFuture(null)
+                : this.postUnsentTurnsAsync(id).thenCompose(v -> this.createUserMessageAsync(id, message, content)));
+    }
 
+    /**
+     * Retrieves the passages of files given to uploadFileToAssistant locally instead of with the file_search tool.
+     * Files are indexed by the retriever rather than uploaded, assistants created afterwards have no file_search tool,
+     * and the passages most relevant to each user message are sent in it, ahead of the question. The conversation
+     * history keeps the message as it was written
+     * @param retriever index of the files, may be shared by conversations, null to use file_search again
+     * @param passages number of passages sent with each message
+     */
+    public void setLocalRetriever(LocalRetriever retriever, int passages){
+        this.localRetriever = retriever;
+        this.localPassages = passages;
     }
 
-    private Object getThread(String threadId){
-        try {
-            // URL for the OpenAI Chat Completion endpoint
-            URL url = new URL("https://api.openai.com/v1/threads/" + threadId);
-            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-
-            // Setting headers
-            connection.setRequestMethod("GET");
-            connection.setRequestProperty("Authorization", "Bearer " + API_KEY);
-            connection.setRequestProperty("Content-Type", "application/json");
-            connection.setRequestProperty("OpenAI-Beta", "assistants=v2");  // Adding the beta HTTP header
-
-            // Handling the response
-            int status = connection.getResponseCode();
-            String msg = connection.getResponseMessage();
-            if (status == 200) {
-                try (BufferedReader br = new BufferedReader(new InputStreamReader(connection.getInputStream(), "utf-8"))) {
-                    StringBuilder response = new StringBuilder();
-                    String responseLine;
-                    while ((responseLine = br.readLine()) != null) {
-                        response.append(responseLine.trim());
-                    }
-                    return response;
-                }
-            } else {
-                System.out.println("Error: " + status);
-                System.out.println("Msg: " + msg);
-            }
+    /**
+     * @return retriever of the files given to this conversation, null if they are uploaded for file_search
+     */
+    public LocalRetriever getLocalRetriever(){
+        return this.localRetriever;
+    }
 
-            connection.disconnect();
-            return status;
-        } catch (Exception e) {
-            e.printStackTrace();
+    /**
+     * @return message preceded by the passages localRetriever finds for it, message itself if there are none
+     */
+    private String withPassages(String message){
+        if (this.localRetriever == null) return message;
+        List<LocalRetriever.Passage> passages = this.localRetriever.search(message, this.localPassages);
+        if (passages.isEmpty()) return message;
+        StringBuilder content = new StringBuilder("Answer using these excerpts of the user's files where they are relevant.\n\n");
+        for (int i = 0; i < passages.size(); i++) {
+            LocalRetriever.Passage passage = passages.get(i);
+            content.append('[').append(i + 1).append("] ").append(Path.of(passage.source()).getFileName()).append('\n')
+                    .append(passage.text()).append("\n\n");
         }
-        return null;
+        return content.append("Question: ").append(message).toString();
     }
 
-    private void setThread(){
-        if (this.threadId == null){
-            try {
-                // URL for the OpenAI Chat Completion endpoint
-                URL url = new URL("https://api.openai.com/v1/threads");
-                HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-
-                // Setting headers
-                connection.setRequestMethod("POST");
-                connection.setRequestProperty("Authorization", "Bearer " + API_KEY);
-                connection.setRequestProperty("Content-Type", "application/json");
-                connection.setRequestProperty("OpenAI-Beta", "assistants=v2");  // Adding the beta HTTP header
-
-                // Handling the response
-                int status = connection.getResponseCode();
-                String msg = connection.getResponseMessage();
-                if (status == 200) {
-                    try (BufferedReader br = new BufferedReader(new InputStreamReader(connection.getInputStream(), "utf-8"))) {
-                        StringBuilder response = new StringBuilder();
-                        String responseLine;
-                        while ((responseLine = br.readLine()) != null) {
-                            response.append(responseLine.trim());
-                        }
-//                    System.out.println("Response from OpenAI: " + response.toString());
-                        ObjectMapper objectMapper = new ObjectMapper();
-                        JsonNode rootNode = objectMapper.readTree(response.toString());
-                        this.threadId = rootNode.get("id").asText();
-                    }
-                } else {
-                    System.out.println("Error: " + status);
-                    System.out.println("Msg: " + msg);
-                }
+    /**
+     * Caches the replies of opening questions in answerCache, and answers opening questions from it with ask. Only
+     * the first question of a conversation is cached, as later ones may depend on the answers before them
+     * @param answerCache cache shared by conversations, null to always run the assistant
+     */
+    public void setAnswerCache(AnswerCache answerCache){
+        this.answerCache = answerCache;
+    }
 
-                connection.disconnect();
-            } catch (Exception e) {
-                e.printStackTrace();
-            }
-        }
+    /**
+     * Answers an opening question from answerCache without any request but, at most once in a while, reading the
+     * assistant. The turn is added to the conversation history, and is posted to the thread before the next message
+     * so later runs see it
+     * @param question user message
+     * @return the cached reply, null if there is no cache, the question is not the opening one or it is not cached
+     */
+    public String cachedReply(String question){
+        return this.cachedReplyAsync(question).join();
     }
 
-    private Object createUserMessage(String threadId, String message){
-        try {
-            // URL for the OpenAI Chat Completion endpoint
-            URL url = new URL("https://api.openai.com/v1/threads/" + threadId + "/messages");
-            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-
-            // Setting headers
-            connection.setRequestMethod("POST");
-            connection.setRequestProperty("Authorization", "Bearer " + API_KEY);
-            connection.setRequestProperty("Content-Type", "application/json");
-            connection.setRequestProperty("OpenAI-Beta", "assistants=v2");  // Adding the beta HTTP header
-            connection.setDoOutput(true);
-
-            // JSON payload
-            String jsonInputString = "{ \"role\": \"" + "user" +
-                    "\", \"content\": \"" + message +
-                    "\" }";
-
-            // Sending the request
-            try (OutputStream os = connection.getOutputStream()) {
-                byte[] input = jsonInputString.getBytes("utf-8");
-                os.write(input, 0, input.length);
+    /**
+     * See cachedReply
+     * @return future completing with the cached reply, null if there is none
+     */
+    public CompletableFuture<String> cachedReplyAsync(String question){
+        AnswerCache answers = this.answerCache;
+        if (answers == null || !this.isOpeningQuestion()) return CompletableFuture.completedFuture(null);
+        return this.answerKeyAsync(question).thenApply(key -> {
+            String reply = key == null ? null : answers.get(key);
+            if (reply == null) return null;
+            synchronized (this) {
+                // Another message was sent while the assistant was read
+                if (!this.isOpeningQuestion()) return null;
+                this.unsentTurns.add(this.chatMessages.add(ConversationHistory.Role.USER, question));
+                this.unsentTurns.add(this.chatMessages.add(ConversationHistory.Role.ASSISTANT, reply));
             }
+            return reply;
+        });
+    }
 
+    /**
+     * Sends a user message and streams the assistant's reply, or returns the reply from the answer cache without any
+     * request if this is the opening question and it was answered before
+     * @param onDelta called with each text fragment of the reply, once with the whole reply if it was cached
+     * @return full text of the assistant's reply, empty string if unsuccessful
+     */
+    public String ask(String question, Consumer<String> onDelta){
+        return this.askAsync(question, onDelta).join();
+    }
 
-            // Handling the response
-            int status = connection.getResponseCode();
-            String msg = connection.getResponseMessage();
-            if (status == 200) {
-                if (threadId.equals(this.threadId)) this.chatMessages.add(message);
-                try (BufferedReader br = new BufferedReader(new InputStreamReader(connection.getInputStream(), "utf-8"))) {
-                    StringBuilder response = new StringBuilder();
-                    String responseLine;
-                    while ((responseLine = br.readLine()) != null) {
-                        response.append(responseLine.trim());
-                    }
-//                    System.out.println("Response from OpenAI: " + response.toString());
-                    return response;
-
-                }
-            } else {
-                System.out.println("Error: " + status);
-                System.out.println("Msg: " + msg);
+    /**
+     * Sends a user message and streams the assistant's reply, or returns the reply from the answer cache without any
+     * request if this is the opening question and it was answered before
+     * @param onDelta called with each text fragment of the reply, once with the whole reply if it was cached
+     * @return future completing with the full text of the assistant's reply, empty string if unsuccessful
+     */
+    public CompletableFuture<String> askAsync(String question, Consumer<String> onDelta){
+        return this.cachedReplyAsync(question).thenCompose(cached -> {
+            if (cached != null) {
+                onDelta.accept(cached);
+                return CompletableFuture.completedFuture(cached);
             }
-
-            connection.disconnect();
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
-        return "";
+            return this.createUserMessageAsync(question).thenCompose(userMessage ->
+                    userMessage == null ? CompletableFuture.completedFuture("") : this.assistantReplyAsync(onDelta));
+        });
     }
 
-    private Object assistantReply(){
-        try {
-            // URL for the OpenAI Chat Completion endpoint
-            URL url = new URL("https://api.openai.com/v1/threads/" + this.threadId + "/runs");
-            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+    private boolean isOpeningQuestion(){
+        return this.chatMessages.size() == 0;
+    }
 
-            // Setting headers
-            connection.setRequestMethod("POST");
-            connection.setRequestProperty("Authorization", "Bearer " + API_KEY);
-            connection.setRequestProperty("Content-Type", "application/json");
-            connection.setRequestProperty("OpenAI-Beta", "assistants=v2");  // Adding the beta HTTP header
-            connection.setDoOutput(true);
+    /**
+     * @return future completing with the key of the question's answer for the current version of the assistant, read
+     * from the shared AssistantRegistry, null if the assistant could not be read
+     */
+    private CompletableFuture<AnswerCache.Key> answerKeyAsync(String question){
+        String assistantId = this.assistantId;
+        return this.answerVersionAsync(assistantId)
+                .thenApply(version -> version == null ? null : AnswerCache.Key.of(assistantId, version, question));
+    }
 
-            // JSON payload
-//            String jsonInputString = "{ \"assistant_id\": \"" + this.assistantId + "\"}";
+    /**
+     * @return future completing with the version of the assistant answers are keyed on, null if it could not be read
+     */
+    private CompletableFuture<String> answerVersionAsync(String assistantId){
+        if (assistantId == null) return CompletableFuture.completedFuture(null);
+        LocalRetriever retriever = this.localRetriever;
+        return this.assistants().getAsync(assistantId).thenApply(assistant -> assistant == null ? null
+                : AnswerCache.version(assistant, retriever != null ? retriever.version() : null));
+    }
 
-            // JSON payload
-            String jsonInputString = "{ \"assistant_id\": \"" +
-                    this.assistantId + "\", \"stream\": " +
-                    true + " }";
+    /**
+     * Posts the turns answered from the answer cache to the thread, in order, and records them in this.store
+     */
+    private CompletableFuture<Void> postUnsentTurnsAsync(String threadId){
+        List<ConversationHistory.Entry> turns;
+        synchronized (this) {
+            if (this.unsentTurns.isEmpty()) return CompletableFuture.completedFuture(null);
+            turns = new ArrayList<>(this.unsentTurns);
+            this.unsentTurns.clear();
+        }
+        CompletableFuture<Void> posted = CompletableFuture.completedFuture(null);
+        for (ConversationHistory.Entry turn : turns) {
+            String body = Json.write(new ApiTypes.CreateMessage(turn.role().name().toLowerCase(Locale.ROOT), turn.text()));
+            posted = posted.thenCompose(v -> transport.<ApiTypes.Message>postAsync("/threads/" + threadId + "/messages", body, Json.MESSAGE)
+                    .thenAccept(response -> {
+                        if (response.body() == null) System.err.println("Error posting cached turn. Status: " + response.statusCode());
+                        if (this.store != null) this.store.append(threadId, turn);
+                    }));
+        }
+        return posted.exceptionally(e -> {
+            e.printStackTrace();
+            return null;
+        });
+    }
 
-//            jsonInputString = "{ \"assistant_id\": \"" +
-//                    this.assistantId + "\"}";
+    private Object createUserMessage(String threadId, String message){
+        return this.createUserMessageAsync(threadId, message).join();
+    }
 
+    /**
+     * Adds a user message to the given thread
+     * @param threadId ID corresponding to thread the message is added to
+     * @param message content of the message
+     * @return future completing with the OpenAI Message object, null if unsuccessful
+     */
+    public CompletableFuture<ApiTypes.Message> createUserMessageAsync(String threadId, String message){
+        return this.createUserMessageAsync(threadId, message, message);
+    }
 
+    /**
+     * Posts content to the thread and adds message to the conversation history
+     */
+    private CompletableFuture<ApiTypes.Message> createUserMessageAsync(String threadId, String message, String content){
+        // JSON payload
+        String jsonInputString = Json.write(new ApiTypes.CreateMessage("user", content));
+
+        return Metrics.timed("createUserMessage", () -> transport.<ApiTypes.Message>postAsync("/threads/" + threadId + "/messages", jsonInputString, Json.MESSAGE)
+                .thenApply(response -> {
+                    ApiTypes.Message userMessage = response.body();
+                    if (userMessage != null && threadId.equals(this.threadId)) {
+                        this.addToHistory(ConversationHistory.Role.USER, message);
+                        this.messageCache().add(userMessage);
+                    }
+                    return userMessage;
+                })
+                .exceptionally(e -> {
+                    e.printStackTrace();
+                    return null;
+                }));
+    }
 
-            // Sending the request
-            try (OutputStream os = connection.getOutputStream()) {
-                byte[] input = jsonInputString.getBytes("utf-8");
-                os.write(input, 0, input.length);
-            }
+    private Object assistantReply(){
+        return this.assistantReply(delta -> {});
+    }
 
+    /**
+     * Runs this.threadId and streams the assistant's reply as it is generated
+     * @param onDelta called with each text fragment of the reply as soon as the server sends it
+     * @return full text of the assistant's reply, empty string if the run could not be started
+     */
+    public String assistantReply(Consumer<String> onDelta){
+        return this.assistantReplyAsync(onDelta).join();
+    }
 
-            // Handling the response
-            int status = connection.getResponseCode();
-            String msg = connection.getResponseMessage();
-            if (status == 200) {
-                try (BufferedReader br = new BufferedReader(new InputStreamReader(connection.getInputStream(), "utf-8"))) {
-                    StringBuilder response = new StringBuilder();
-                    String responseLine;
-                    while ((responseLine = br.readLine()) != null) {
-                        response.append(responseLine.trim());
-                    }
-//                    System.out.println("Response from OpenAI: " + response.toString());
-                    String assistantMessage = this.getMostRecentMessage(this.getMessages(this.threadId)).toString();
-                    this.chatMessages.add(assistantMessage);
-                    return assistantMessage;
+    /**
+     * Runs this.threadId and streams the assistant's reply as it is generated
+     * @param onDelta called on an HttpClient thread with each text fragment of the reply as soon as the server sends it
+     * @return future completing with the full text of the assistant's reply, empty string if the run could not be
+     * started
+     */
+    public CompletableFuture<String> assistantReplyAsync(Consumer<String> onDelta){
+        if (this.threadId == null) {
+            System.out.println("No message has been sent on this conversation yet");
+            return CompletableFuture.completedFuture("");
+        }
+        MessageCache cache = this.messageCache();
+        CompletableFuture<AnswerCache.Key> answerKey;
+        synchronized (this) {
+            answerKey = this.pendingAnswerKey;
+            this.pendingAnswerKey = null;
+        }
+        return this.streamRunAsync(this.threadId, onDelta, cache::add).thenCompose(assistantMessage -> {
+            // Empty if the run failed, then neither recorded nor cached
+            if (assistantMessage.isEmpty()) return CompletableFuture.completedFuture(assistantMessage);
+            this.addToHistory(ConversationHistory.Role.ASSISTANT, assistantMessage);
+            AnswerCache answers = this.answerCache;
+            if (answers == null || answerKey == null) return CompletableFuture.completedFuture(assistantMessage);
+            return answerKey.thenCompose(key -> key == null ? CompletableFuture.completedFuture(null)
+                    : this.answerVersionAsync(key.assistantId()).thenAccept(version -> {
+                        // Not cached if the assistant changed during the run, the reply may predate the change
+                        if (key.version().equals(version)) answers.put(key, assistantMessage);
+                    }))
+                    .thenApply(v -> assistantMessage);
+        });
+    }
 
-                }
-            } else {
-                System.out.println("Error: " + status);
-                System.out.println("Msg: " + msg);
+    /**
+     * Creates a streaming run on the given thread and assembles the reply from its thread.message.delta events, so no
+     * follow-up request for the thread's messages is needed. Event lines are pushed to a RunStreamReader as they are
+     * received rather than read by a blocked thread
+     * @param threadId ID corresponding to thread to be run
+     * @param onDelta called with each text fragment of the reply as soon as the server sends it
+     * @param onCompleted called with the reply's Message object once the server has sent all of it
+     * @return future completing with the full text of the assistant's reply, empty string if the run could not be
+     * started or did not complete (failed, or its stream broke)
+     */
+    private CompletableFuture<String> streamRunAsync(String threadId, Consumer<String> onDelta, Consumer<ApiTypes.Message> onCompleted){
+        // JSON payload
+        String jsonInputString = Json.write(new ApiTypes.CreateRun(this.assistantId, true));
+
+        HttpRequest request = transport.newRequest("/threads/" + threadId + "/runs")
+                .header("Accept", "text/event-stream")
+                .POST(HttpRequest.BodyPublishers.ofString(jsonInputString))
+                .build();
+
+        // Time to first token: from sending the run until its first delta arrives
+        long start = System.nanoTime();
+        AtomicBoolean firstDelta = new AtomicBoolean();
+        Consumer<String> timedOnDelta = delta -> {
+            if (firstDelta.compareAndSet(false, true)) Metrics.registry().recordTime("run_ttft_seconds", System.nanoTime() - start);
+            onDelta.accept(delta);
+        };
+
+        HttpResponse.BodyHandler<String> handler = responseInfo -> {
+            if (responseInfo.statusCode() == 200) {
+                RunStreamReader reader = new RunStreamReader(timedOnDelta);
+                return HttpResponse.BodySubscribers.mapping(reader.bodySubscriber(), reply -> {
+                    if (reader.getCompletedMessage() != null) onCompleted.accept(reader.getCompletedMessage());
+                    return reply;
+                });
             }
-
-            connection.disconnect();
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
-        return "";
+            return HttpResponse.BodySubscribers.mapping(HttpResponse.BodySubscribers.ofString(StandardCharsets.UTF_8), body -> {
+                System.out.println("Error: " + responseInfo.statusCode());
+                System.out.println("Msg: " + body);
+                return "";
+            });
+        };
+
+        return Metrics.timed("run", () -> transport.sendAsync(request, handler)
+                .thenApply(HttpResponse::body)
+                .exceptionally(AssistantConversation::printFailure));
     }
 
     /**
@@ -830,52 +753,34 @@ public class AssistantConversation {
      * @return list of Message objects
      */
     private Object getMessages(String threadId){
-        try {
-            // URL for the OpenAI Chat Completion endpoint
-            URL url = new URL("https://api.openai.com/v1/threads/" + threadId + "/messages");
-            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-
-            // Setting headers
-            connection.setRequestMethod("GET");
-            connection.setRequestProperty("Authorization", "Bearer " + API_KEY);
-            connection.setRequestProperty("Content-Type", "application/json");
-            connection.setRequestProperty("OpenAI-Beta", "assistants=v2");  // Adding the beta HTTP header
-
-
-            // Handling the response
-            int status = connection.getResponseCode();
-            String msg = connection.getResponseMessage();
-            if (status == 200) {
-                try (BufferedReader br = new BufferedReader(new InputStreamReader(connection.getInputStream(), "utf-8"))) {
-                    StringBuilder response = new StringBuilder();
-                    String responseLine;
-                    while ((responseLine = br.readLine()) != null) {
-                        response.append(responseLine.trim());
-                    }
-                    return response;
-                }
-            } else {
-                System.out.println("Error: " + status);
-                System.out.println("Msg: " + msg);
-            }
+        return this.getMessagesAsync(threadId).join();
+    }
 
-            connection.disconnect();
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
-        return "";
+    /**
+     * The page is bound while it is received rather than read into a String first
+     * @param threadId ID corresponding to thread containing the messages
+     * @return future completing with the page of Message objects sorted by created_at in descending order, null if
+     * unsuccessful
+     */
+    public CompletableFuture<ApiTypes.ListPage<ApiTypes.Message>> getMessagesAsync(String threadId){
+        return Metrics.timed("getMessages", () -> transport.<ApiTypes.ListPage<ApiTypes.Message>>getAsync("/threads/" + threadId + "/messages", Json.MESSAGE_LIST)
+                .thenApply(HttpResponse::body)
+                .exceptionally(e -> {
+                    e.printStackTrace();
+                    return null;
+                }));
     }
 
     /**
-     * Uses getMessages method to return list of OpenAI Message objects and returns most recent one. Since messages are presented by timestamp in descending order, this is the first message
+     * Uses getMessages method to return list of OpenAI message objects and returns most recent one. Since messages are presented by timestamp in descending order, this is the first message
      * @param messages List of OpenAI message objects
      * @return most recent OpenAI message
      */
+    @SuppressWarnings("unchecked")
     private Object getMostRecentMessage(Object messages){
         try {
-            ObjectMapper objectMapper = new ObjectMapper();
-            JsonNode rootNode = objectMapper.readTree(messages.toString());
-            return rootNode.path("data").get(0).get("content").get(0).path("text").path("value");
+            ApiTypes.ListPage<ApiTypes.Message> page = (ApiTypes.ListPage<ApiTypes.Message>) messages;
+            return page.data().getFirst().text();
         } catch (Exception e) {
             e.printStackTrace();
         }
@@ -890,73 +795,115 @@ public class AssistantConversation {
      * @return fileID of the OpenAI File Object
      */
     public String uploadFile(String filePath) {
-        try {
-            File file = new File(filePath);
-            if (!file.exists()) {
-                throw new FileNotFoundException("File does not exist: " + filePath);
-            }
-
-            URL url = new URL(BASE_URL + "/files");
-            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-
-            String boundary = "----WebKitFormBoundary" + System.currentTimeMillis();
-            connection.setRequestMethod("POST");
-            connection.setRequestProperty("Authorization", "Bearer " + API_KEY);
-            connection.setRequestProperty("Content-Type", "multipart/form-data; boundary=" + boundary);
-            connection.setDoOutput(true);
+        return this.uploadFileAsync(filePath).join();
+    }
 
-            try (OutputStream os = connection.getOutputStream();
-                 PrintWriter writer = new PrintWriter(new OutputStreamWriter(os, StandardCharsets.UTF_8), true)) {
+    /**
+     * Skips uploads of files whose content was already uploaded, looking them up by hash in fileIndex
+     * @param fileIndex index of uploaded files, null to always upload
+     */
+    public void setFileIndex(FileHashIndex fileIndex) {
+        this.fileIndex = fileIndex;
+    }
 
-                writer.append("--").append(boundary).append("\r\n");
-                writer.append("Content-Disposition: form-data; name=\"purpose\"\r\n\r\n");
-                writer.append("assistants").append("\r\n");
+    /**
+     * Uploads files larger than one part with chunkedUploader, so a failed upload can be resumed instead of sent again
+     * @param chunkedUploader uploader for large files, null to upload every file in a single request
+     */
+    public void setChunkedUploader(ChunkedUploader chunkedUploader) {
+        this.chunkedUploader = chunkedUploader;
+    }
 
-                writer.append("--").append(boundary).append("\r\n");
-                writer.append("Content-Disposition: form-data; name=\"file\"; filename=\"").append(file.getName()).append("\"\r\n");
-                writer.append("Content-Type: application/octet-stream\r\n\r\n");
-                writer.flush();
+    /**
+     * Uploads local file to OpenAI. If a file index is set and a file with the same content was uploaded before, its
+     * id is returned instead once getFileInfo confirms that it still exists
+     * @param filePath location of file to be uploaded
+     * @return future completing with the fileID of the OpenAI File Object, null if the upload failed
+     */
+    public CompletableFuture<String> uploadFileAsync(String filePath) {
+        return Metrics.timed("uploadFile", () -> this.uploadOrReuseFileAsync(filePath));
+    }
 
-                Files.copy(file.toPath(), os);
-                os.flush();
+    private CompletableFuture<String> uploadOrReuseFileAsync(String filePath) {
+        FileHashIndex index = this.fileIndex;
+        String hash = index == null ? null : index.hash(Path.of(filePath));
+        if (hash == null) return this.postFileAsync(filePath);
+
+        String knownId = index.get(hash);
+        CompletableFuture<Boolean> known;
+        if (knownId == null) known = CompletableFuture.completedFuture(false);
+        else if (index.isValidated(knownId)) known = CompletableFuture.completedFuture(true);
+        else known = this.getFileInfoAsync(knownId).thenApply(info -> info != null && !"error".equals(info.getStatus()));
+
+        return known.thenCompose(valid -> {
+            if (valid) {
+                index.markValidated(knownId);
+                System.out.println("File already uploaded. File ID: " + knownId);
+                return CompletableFuture.completedFuture(knownId);
+            }
+            if (knownId != null) index.remove(hash);
+            return this.postFileAsync(filePath).thenApply(fileId -> {
+                if (fileId != null) index.put(hash, Path.of(filePath), fileId);
+                return fileId;
+            });
+        });
+    }
 
-                writer.append("\r\n");
-                writer.append("--").append(boundary).append("--").append("\r\n");
+    /**
+     * Uploads local file to OpenAI. The file is streamed from disk rather than read into memory first, in resumable
+     * parts if it is larger than the chunked uploader's part size
+     * @param filePath location of file to be uploaded
+     * @return future completing with the fileID of the OpenAI File Object, null if the upload failed
+     */
+    private CompletableFuture<String> postFileAsync(String filePath) {
+        HttpRequest request;
+        long bytes;
+        try {
+            File file = new File(filePath);
+            if (!file.exists()) {
+                throw new FileNotFoundException("File does not exist: " + filePath);
+            }
+            bytes = file.length();
+            if (this.chunkedUploader != null && bytes > this.chunkedUploader.getPartSize()) {
+                return this.chunkedUploader.upload(file.toPath()).thenApply(fileId -> {
+                    // Counted once the file exists, not when the upload starts
+                    if (fileId != null) Metrics.registry().increment("upload_bytes_total", bytes);
+                    return fileId;
+                });
             }
 
-            int status = connection.getResponseCode();
-            String response = readResponse(connection);
+            MultipartBody body = new MultipartBody()
+                    .field("purpose", "assistants")
+                    .file("file", file.toPath());
 
-            if (status == 200 || status == 201) {
-                ObjectMapper mapper = new ObjectMapper();
-                JsonNode rootNode = mapper.readTree(response);
-                String fileId = rootNode.get("id").asText();
-                System.out.println("File uploaded successfully. File ID: " + fileId);
-                return fileId;
-            } else {
-                System.err.println("Error uploading file. Status: " + status);
-                System.err.println("Response: " + response);
-                return null;
-            }
+            request = transport.newRequest("/files")
+                    .setHeader("Content-Type", body.contentType())
+                    .POST(body.publisher())
+                    .build();
         } catch (Exception e) {
             System.err.println("Upload failed: " + e.getMessage());
             e.printStackTrace();
-            return null;
+            return CompletableFuture.completedFuture(null);
         }
-    }
 
-    /**
-     * Convenient helper method to be used to read responses from API requests
-     * @param connection HttpURLConnection object
-     * @return response
-     * @throws IOException
-     */
-    private String readResponse(HttpURLConnection connection) throws IOException {
-        try (InputStream is = connection.getResponseCode() >= 400 ?
-                connection.getErrorStream() : connection.getInputStream();
-             BufferedReader br = new BufferedReader(new InputStreamReader(is, StandardCharsets.UTF_8))) {
-            return br.lines().collect(Collectors.joining("\n"));
-        }
+        return transport.sendAsync(request, JsonBodySubscriber.<FileResponse>handler(Json.FILE))
+                .thenApply(httpResponse -> {
+                    FileResponse response = httpResponse.body();
+
+                    if (response != null) {
+                        String fileId = response.getId();
+                        Metrics.registry().increment("upload_bytes_total", bytes);
+                        System.out.println("File uploaded successfully. File ID: " + fileId);
+                        return fileId;
+                    }
+                    System.err.println("Error uploading file. Status: " + httpResponse.statusCode());
+                    return (String) null;
+                })
+                .exceptionally(e -> {
+                    System.err.println("Upload failed: " + e.getMessage());
+                    e.printStackTrace();
+                    return null;
+                });
     }
 
     /**
@@ -965,29 +912,27 @@ public class AssistantConversation {
      * @return FileResponse object containing file details, or null if failed
      */
     public FileResponse getFileInfo(String fileId) {
-        try {
-            URL url = new URL(BASE_URL + "/files/" + fileId);
-            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-
-            connection.setRequestMethod("GET");
-            connection.setRequestProperty("Authorization", "Bearer " + API_KEY);
-
-            int status = connection.getResponseCode();
-            String response = readResponse(connection);
+        return this.getFileInfoAsync(fileId).join();
+    }
 
-            if (status == 200) {
-                ObjectMapper mapper = new ObjectMapper();
-                return mapper.readValue(response, FileResponse.class);
-            } else {
-                System.err.println("Error getting file info. Status: " + status);
-                System.err.println("Response: " + response);
-                return null;
-            }
-        } catch (Exception e) {
-            System.err.println("Failed to get file info: " + e.getMessage());
-            e.printStackTrace();
-            return null;
-        }
+    /**
+     * Retrieves file information after upload
+     * @param fileId The ID of the uploaded file
+     * @return future completing with the FileResponse object containing file details, or null if failed
+     */
+    public CompletableFuture<FileResponse> getFileInfoAsync(String fileId) {
+        return transport.<FileResponse>getAsync("/files/" + fileId, Json.FILE)
+                .thenApply(httpResponse -> {
+                    if (httpResponse.body() == null) {
+                        System.err.println("Error getting file info. Status: " + httpResponse.statusCode());
+                    }
+                    return httpResponse.body();
+                })
+                .exceptionally(e -> {
+                    System.err.println("Failed to get file info: " + e.getMessage());
+                    e.printStackTrace();
+                    return null;
+                });
     }
 
     /**
@@ -996,45 +941,41 @@ public class AssistantConversation {
      * @return boolean indicating success
      */
     public boolean attachFileToAssistant(String fileId) {
+        return this.attachFileToAssistantAsync(fileId).join();
+    }
+
+    /**
+     * Attaches an uploaded file to the assistant
+     * @param fileId The ID of the uploaded file
+     * @return future completing with a boolean indicating success
+     */
+    public CompletableFuture<Boolean> attachFileToAssistantAsync(String fileId) {
         if (assistantId == null) {
             System.err.println("No assistant ID available. Create an assistant first.");
-            return false;
+            return CompletableFuture.completedFuture(false);
         }
 
-        try {
-            URL url = new URL(BASE_URL + "/assistants/" + assistantId + "/files");  // Changed endpoint
-            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-
-            connection.setRequestMethod("POST");
-            connection.setRequestProperty("Authorization", "Bearer " + API_KEY);
-            connection.setRequestProperty("Content-Type", "application/json");
-            connection.setRequestProperty("OpenAI-Beta", "assistants=v2");
-            connection.setDoOutput(true);
-
-            Map<String, String> payload = new HashMap<>();
-            payload.put("file_id", fileId);  // Changed to single file_id
+        String body = Json.write(new ApiTypes.AttachFile(fileId));  // Changed to single file_id
 
-            ObjectMapper mapper = new ObjectMapper();
-            try (OutputStream os = connection.getOutputStream()) {
-                mapper.writeValue(os, payload);
-            }
+        return transport.postAsync("/assistants/" + assistantId + "/files", body)  // Changed endpoint
+                .thenApply(httpResponse -> {
+                    int status = httpResponse.statusCode();
 
-            int status = connection.getResponseCode();
-            String response = readResponse(connection);
-
-            if (status == 200 || status == 201) {
-                System.out.println("File attached to assistant successfully.");
-                return true;
-            } else {
-                System.err.println("Error attaching file. Status: " + status);
-                System.err.println("Response: " + response);
-                return false;
-            }
-        } catch (Exception e) {
-            System.err.println("Failed to attach file: " + e.getMessage());
-            e.printStackTrace();
-            return false;
-        }
+                    if (status == 200 || status == 201) {
+                        System.out.println("File attached to assistant successfully.");
+                        this.assistants().invalidate(this.assistantId);
+                        if (this.answerCache != null) this.answerCache.invalidateAssistant(this.assistantId);
+                        return true;
+                    }
+                    System.err.println("Error attaching file. Status: " + status);
+                    System.err.println("Response: " + httpResponse.body());
+                    return false;
+                })
+                .exceptionally(e -> {
+                    System.err.println("Failed to attach file: " + e.getMessage());
+                    e.printStackTrace();
+                    return false;
+                });
     }
 
     /**
@@ -1042,22 +983,7 @@ public class AssistantConversation {
      * @return true if file was uploaded to assistant object, false otherwise
      */
     public boolean uploadFileToAssistant(String filePath) {
-        String fileId = uploadFile(filePath);
-        if (fileId != null) {
-            // Get file info
-            FileResponse fileInfo = this.getFileInfo(fileId);
-            if (fileInfo != null) {
-                System.out.println("File status: " + fileInfo.getStatus());
-                System.out.println("File size: " + fileInfo.getBytes() + " bytes");
-            }
-//
-            // Attach file to assistant
-            boolean attached = this.attachFileToAssistant(fileId);
-            System.out.println("File attached to assistant: " + attached);
-            return attached;
-        }
-        System.out.println("No file was uploaded, fileId was null");
-        return false;
+        return this.uploadFileToAssistantAsync(filePath, true).join();
     }
 
     /**
@@ -1065,24 +991,81 @@ public class AssistantConversation {
      * @return true if file was uploaded to assistant object, false otherwise
      */
     public boolean uploadFileToAssistant(String filePath, boolean verbose) {
-        String fileId = uploadFile(filePath);
-        if (fileId != null) {
-            // Get file info
-            FileResponse fileInfo = this.getFileInfo(fileId);
-            if (fileInfo != null) {
-                if (verbose) {
-                    System.out.println("File status: " + fileInfo.getStatus());
-                    System.out.println("File size: " + fileInfo.getBytes() + " bytes");
-                }
+        return this.uploadFileToAssistantAsync(filePath, verbose).join();
+    }
+
+    /**
+     * Cradle-to-grave method combining uploadFileAsync, getFileInfoAsync and attachFileToAssistantAsync
+     * @return future completing with true if file was uploaded to assistant object, false otherwise
+     */
+    public CompletableFuture<Boolean> uploadFileToAssistantAsync(String filePath, boolean verbose) {
+        if (this.localRetriever != null) return this.indexFileAsync(filePath, verbose);
+        return this.uploadFileAsync(filePath).thenCompose(fileId -> {
+            if (fileId == null) {
+                System.out.println("No file was uploaded, fileId was null");
+                return CompletableFuture.completedFuture(false);
             }
-//
-            // Attach file to assistant
-            boolean attached = this.attachFileToAssistant(fileId);
-            System.out.println("File attached to assistant: " + attached);
-            return attached;
-        }
-        System.out.println("No file was uploaded, fileId was null");
-        return false;
+            // Get file info
+            return this.getFileInfoAsync(fileId)
+                    .thenCompose(fileInfo -> {
+                        if (fileInfo != null && verbose) {
+                            System.out.println("File status: " + fileInfo.getStatus());
+                            System.out.println("File size: " + fileInfo.getBytes() + " bytes");
+                        }
+                        // Attach file to assistant
+                        return this.attachFileToAssistantAsync(fileId);
+                    })
+                    .thenApply(attached -> {
+                        System.out.println("File attached to assistant: " + attached);
+                        return attached;
+                    });
+        });
+    }
+
+    /**
+     * Indexes a file in localRetriever instead of uploading it
+     * @return future completing with true if the file is in the index, false otherwise
+     */
+    public CompletableFuture<Boolean> indexFileAsync(String filePath, boolean verbose) {
+        LocalRetriever retriever = this.localRetriever;
+        if (retriever == null) return CompletableFuture.completedFuture(false);
+        return retriever.indexAsync(Path.of(filePath)).thenApply(passages -> {
+            if (passages < 0) return false;
+            if (verbose) System.out.println("Passages indexed: " + passages + " (0 if already indexed)");
+            // Answers now depend on the file, as they would on an attached one. The retriever's version keys them apart
+            if (this.answerCache != null) this.answerCache.invalidateAssistant(this.assistantId);
+            System.out.println("File indexed locally: " + filePath);
+            return true;
+        });
+    }
+
+    /**
+     * Uploads every file in a directory and attaches them to the assistant, several at a time
+     * @param directory directory to upload, including its subdirectories
+     * @param parallelism maximum number of files in flight at once
+     * @return per-file results and throughput of the upload
+     */
+    public BulkUploader.Report uploadDirectoryToAssistant(String directory, int parallelism) {
+        BulkUploader.Report report = new BulkUploader(this, parallelism).uploadDirectory(Path.of(directory));
+        System.out.println("Bulk upload: " + report);
+        return report;
+    }
+
+    /**
+     * Returns the body of a successful (200) response, printing the status and body otherwise
+     * @param response completed API response
+     * @param fallback value returned if the request was unsuccessful
+     */
+    private static String bodyIfOk(HttpResponse<String> response, String fallback){
+        if (response.statusCode() == 200) return response.body();
+        System.out.println("Error: " + response.statusCode());
+        System.out.println("Msg: " + response.body());
+        return fallback;
+    }
+
+    private static String printFailure(Throwable e){
+        e.printStackTrace();
+        return "";
     }
 
     // Response class for file information
@@ -1128,12 +1111,14 @@ public class AssistantConversation {
             System.out.print("Query: ");
             input = scan.nextLine();
 
-            Object userMessage = this.createUserMessage(this.threadId, input);
+            Object userMessage = this.createUserMessage(input);
 
-            Object assistantReply = this.assistantReply();
-            Object conversation = this.getMessages(this.threadId);
             //note: Only the assistant message is printed out here since the CLI retains the user's query
-            System.out.println(this.getMostRecentMessage(conversation));
+            this.assistantReply(delta -> {
+                System.out.print(delta);
+                System.out.flush();
+            });
+            System.out.println();
 
 
         } while (!input.equals("quit"));
@@ -1145,56 +1130,34 @@ public class AssistantConversation {
      * @param description
      */
     private void addDescriptionToAssistant(String description){
-        try {
-            // URL for the OpenAI Chat Completion endpoint
-            URL url = new URL("https://api.openai.com/v1/assistants/" + assistantId);
-            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-
-            // Setting headers
-            connection.setRequestMethod("POST");
-            connection.setRequestProperty("Authorization", "Bearer " + API_KEY);
-            connection.setRequestProperty("Content-Type", "application/json");
-            connection.setRequestProperty("OpenAI-Beta", "assistants=v2");  // Adding the beta HTTP header
-            connection.setDoOutput(true);
-
-            Map<String, Object> payload = new HashMap<>();
-            payload.put("description", description);
-
-            ObjectMapper mapper = new ObjectMapper();
-            try (OutputStream os = connection.getOutputStream()) {
-                mapper.writeValue(os, payload);
-            }
-
-            // Handling the response
-            int status = connection.getResponseCode();
-            String msg = connection.getResponseMessage();
+        this.addDescriptionToAssistantAsync(description).join();
+    }
 
-            if (status == 200) {
-                try (BufferedReader br = new BufferedReader(new InputStreamReader(connection.getInputStream(), "utf-8"))) {
-                    StringBuilder response = new StringBuilder();
-                    String responseLine;
-                    while ((responseLine = br.readLine()) != null) {
-                        response.append(responseLine.trim());
-                    }
-//                    System.out.println("Temperature has been changed to " + temp + "\n" + response);
-                }
-            } else {
-                System.out.println("Error: " + status);
-                System.out.println("Msg: " + msg);
-            }
+    private CompletableFuture<Void> addDescriptionToAssistantAsync(String description){
+        return this.modifyAssistantAsync(new ApiTypes.ModifyAssistant(description, null));
+    }
 
-            connection.disconnect();
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
+    /**
+     * Modifies fields of the assistant object tied with this.assistantId
+     * @param payload fields to be modified, null fields are left unchanged
+     */
+    private CompletableFuture<Void> modifyAssistantAsync(ApiTypes.ModifyAssistant payload){
+        return transport.postAsync("/assistants/" + assistantId, Json.write(payload))
+                .thenAccept(response -> {
+                    bodyIfOk(response, "");
+                    this.assistants().invalidate(this.assistantId);
+                })
+                .exceptionally(e -> {
+                    e.printStackTrace();
+                    return null;
+                });
     }
 
 
     /**
      * Gives demonstrations on the following main functions:
      * 1) Assistant creation
-     * 2) Local file upload //note: need to figure out how bulk upload will work (e.g. filepath iteration and
-     *                         .uploadFileToAssistant method calls
+     * 2) Local file upload
      * 3) Assistant domain expertise description generation
      * 4) Assistant temperature tuning
      * 5) Conversation history
@@ -1204,15 +1167,22 @@ public class AssistantConversation {
     public static void main(String[] args){
 
         AssistantConversation conversation = new AssistantConversation();
+        try {
+            conversation.setFileIndex(new FileHashIndex(Path.of(".openai-files.index")));
+            conversation.setChunkedUploader(new ChunkedUploader(OpenAITransport.shared(), Path.of(".openai-uploads"), ChunkedUploader.DEFAULT_PART_SIZE, 4));
+            conversation.setAnswerCache(AnswerCache.create(1_000, Duration.ofDays(1)));
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
 
         // Method calls demonstrating file upload and addition to assistant
-        // 1) Assistant creation
-        conversation.createAssistant("DEMO_ASSISTANT", false);
+        // 1) Assistant creation, reusing the DEMO_ASSISTANT created by an earlier run
+        conversation.getOrCreateAssistant("DEMO_ASSISTANT", false);
 
         // 2) Local file upload and adding to assistant
         System.out.println("File has been uploaded to assistant: " + conversation.uploadFileToAssistant("cs514_exception_handling_worksheet.pdf", false));
         System.out.println("File has been uploaded to assistant: " + conversation.uploadFileToAssistant("Javascript and React Worksheet.pdf", false));
-//
+
         // 3) Method calls demonstrating description generation on assistant's domain expertise then adding it to the
         // Assistant object on OpenAIs end
 //        String description = conversation.generateDescription();
@@ -1226,22 +1196,24 @@ public class AssistantConversation {
 //        conversation.changeTemperature(0.2);
 //        System.out.println("Assistant object after temperature add:\n" + conversation.getAssistant(conversation.assistantId));
 
-        // 5) Method calls demonstrating back and forth with conversation history ArrayList addition
-        conversation.createUserMessage(conversation.threadId, "What is the answer to problem 3?");
+        // 5) Method calls demonstrating back and forth with conversation history addition
+        conversation.createUserMessage("What is the answer to problem 3?");
         conversation.assistantReply();
-        conversation.createUserMessage(conversation.threadId, "Can you explain your solution in simpler terms?");
+        conversation.createUserMessage("Can you explain your solution in simpler terms?");
         conversation.assistantReply();
 //
         // 6) Conversation history
         System.out.println("\n\nConversation history:");
-        for (String message : conversation.chatMessages) {
-            System.out.println("Message:\n" + message + "\n");
+        for (ConversationHistory.Entry message : conversation.chatMessages) {
+            System.out.println(message.role() + ":\n" + message.text() + "\n");
         }
 
         // 7) Method calls demonstrating thread title generation following a userMessage
-//        String threadTitle = conversation.generateThreadTitle("User: " + conversation.chatMessages.get(0) + "\nAssistant: " + conversation.chatMessages.get(1));
-        String threadTitle = conversation.generateThreadTitle(conversation.chatMessages.getFirst());
+//        String threadTitle = conversation.generateThreadTitle("User: " + conversation.chatMessages.getEntries().get(0).text() + "\nAssistant: " + conversation.chatMessages.getEntries().get(1).text());
+        String threadTitle = conversation.generateThreadTitle(conversation.chatMessages.getFirst().text());
         System.out.println("Thread title: " + threadTitle);
 
+        WarmThreadPool.closeScratchPools();
+
     }
 }
\ No newline at end of file
@@ -0,0 +1,202 @@
+import com.github.benmanes.caffeine.cache.AsyncLoadingCache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+
+
+/**
+ * Process-wide cache of assistant objects, so assistants are looked up once instead of on every call, and
+ * get-or-create of assistants by name, so starting a program again reuses the assistant it created the last time
+ * instead of creating another one.
+ *
+ * Assistants are kept for a time to live. An assistant read after half of it is revalidated in the background while
+ * the cached object is returned, so assistants in use are read from memory and never go stale by more than that. A
+ * name resolves to the same id until that assistant is found to be deleted (404), it is then resolved again
+ */
+public class AssistantRegistry {
+
+    public static final Duration DEFAULT_TIME_TO_LIVE = Duration.ofMinutes(10);
+
+    private static final int LIST_LIMIT = 100;
+
+    private static final Map<OpenAITransport, AssistantRegistry> registries = new ConcurrentHashMap<>();
+
+    private final OpenAITransport transport;
+    // Assistants by id. Deleted assistants are null and failed lookups fail, neither is cached
+    private final AsyncLoadingCache<String, ApiTypes.Assistant> assistants;
+    // Most recent assistants by number requested
+    private final AsyncLoadingCache<Integer, ApiTypes.ListPage<ApiTypes.Assistant>> recent;
+    // Ids of assistants by name, including lookups in flight so concurrent callers share them
+    private final Map<String, CompletableFuture<String>> idsByName = new ConcurrentHashMap<>();
+
+    /**
+     * @param timeToLive time after which a cached assistant is looked up again
+     */
+    public AssistantRegistry(OpenAITransport transport, Duration timeToLive){
+        this.transport = transport;
+        this.assistants = Caffeine.newBuilder()
+                .expireAfterWrite(timeToLive)
+                .refreshAfterWrite(timeToLive.dividedBy(2))
+                .buildAsync((assistantId, executor) -> this.fetch(assistantId));
+        this.recent = Caffeine.newBuilder()
+                .expireAfterWrite(timeToLive)
+                .buildAsync((n, executor) -> this.fetchRecent(n));
+    }
+
+    /**
+     * @return the registry shared by every conversation using this transport
+     */
+    public static AssistantRegistry of(OpenAITransport transport){
+        return registries.computeIfAbsent(transport, t -> new AssistantRegistry(t, DEFAULT_TIME_TO_LIVE));
+    }
+
+    /**
+     * @return future completing with the assistant, null if it does not exist or could not be looked up
+     */
+    public CompletableFuture<ApiTypes.Assistant> getAsync(String assistantId){
+        return assistants.get(assistantId).exceptionally(e -> null);
+    }
+
+    /**
+     * @param n number of assistants, 1 to 100
+     * @return future completing with the n most recently created assistants, null if they could not be listed
+     */
+    public CompletableFuture<ApiTypes.ListPage<ApiTypes.Assistant>> recentAsync(int n){
+        assert n > 0 && n <= LIST_LIMIT : "Number is out of range: 1 - 100";
+        return recent.get(n).exceptionally(e -> null);
+    }
+
+    /**
+     * Returns the most recently created assistant named request.name(), creating it with request if there is none.
+     * An existing assistant is returned as it is, even if its model, instructions or tools differ from request's
+     * @return future completing with the assistant's id, null if it could neither be found nor created
+     */
+    public CompletableFuture<String> getOrCreateAsync(ApiTypes.CreateAssistant request){
+        return this.getOrCreateAsync(request, true);
+    }
+
+    /**
+     * @param revalidate whether to resolve the name again if the id it resolved to is of a deleted assistant
+     */
+    private CompletableFuture<String> getOrCreateAsync(ApiTypes.CreateAssistant request, boolean revalidate){
+        String name = request.name();
+        CompletableFuture<String> id = idsByName.computeIfAbsent(name, n -> this.findByNameAsync(n, null)
+                .thenCompose(found -> found != null ? CompletableFuture.completedFuture(found) : this.createAsync(request)));
+        return id.thenCompose(assistantId -> {
+            if (assistantId == null) {
+                // Not kept, so the next call tries again
+                idsByName.remove(name, id);
+                return CompletableFuture.completedFuture(null);
+            }
+            // Read from memory unless the assistant expired, a failed lookup keeps the id
+            return assistants.get(assistantId).handle((assistant, e) -> e == null && assistant == null).thenCompose(deleted -> {
+                if (!deleted || !revalidate) return CompletableFuture.completedFuture(assistantId);
+                System.out.println("Assistant " + assistantId + " named " + name + " no longer exists, resolving the name again");
+                idsByName.remove(name, id);
+                return this.getOrCreateAsync(request, false);
+            });
+        });
+    }
+
+    /**
+     * Drops the cached assistant, e.g. after it was modified, so the next lookup reads it again
+     */
+    public void invalidate(String assistantId){
+        if (assistantId == null) return;
+        assistants.synchronous().invalidate(assistantId);
+        recent.synchronous().invalidateAll();
+    }
+
+    /**
+     * Drops the cached assistant and forgets that its name resolves to it, e.g. after it was deleted
+     */
+    public void forget(String assistantId){
+        this.invalidate(assistantId);
+        idsByName.entrySet().removeIf(entry -> {
+            CompletableFuture<String> id = entry.getValue();
+            return id.isDone() && assistantId.equals(id.getNow(null));
+        });
+    }
+
+    /**
+     * @return future completing with the assistant, null if it does not exist, exceptionally if it could not be read
+     */
+    private CompletableFuture<ApiTypes.Assistant> fetch(String assistantId){
+        return transport.<ApiTypes.Assistant>getAsync("/assistants/" + assistantId, Json.ASSISTANT)
+                .thenApply(response -> {
+                    if (response.body() != null || response.statusCode() == 404) return response.body();
+                    System.err.println("Error retrieving assistant " + assistantId + ". Status: " + response.statusCode());
+                    throw new CompletionException(new IOException("Status " + response.statusCode() + " retrieving assistant " + assistantId));
+                });
+    }
+
+    private CompletableFuture<ApiTypes.ListPage<ApiTypes.Assistant>> fetchRecent(int n){
+        return transport.<ApiTypes.ListPage<ApiTypes.Assistant>>getAsync("/assistants?order=desc&limit=" + n, Json.ASSISTANT_LIST)
+                .thenApply(response -> {
+                    ApiTypes.ListPage<ApiTypes.Assistant> page = response.body();
+                    if (page == null) {
+                        System.err.println("Error retrieving assistants. Status: " + response.statusCode());
+                        return null;
+                    }
+                    for (ApiTypes.Assistant assistant : page.data()) this.cache(assistant);
+                    return page;
+                });
+    }
+
+    /**
+     * Pages through the assistants, most recent first, until one is named name. Every assistant read is cached
+     * @param after id of the last assistant of the previous page, null for the first page
+     * @return future completing with the id of the assistant, null if there is none or the list could not be read
+     */
+    private CompletableFuture<String> findByNameAsync(String name, String after){
+        String path = "/assistants?order=desc&limit=" + LIST_LIMIT + (after != null ? "&after=" + after : "");
+        return transport.<ApiTypes.ListPage<ApiTypes.Assistant>>getAsync(path, Json.ASSISTANT_LIST)
+                .thenCompose(response -> {
+                    ApiTypes.ListPage<ApiTypes.Assistant> page = response.body();
+                    if (page == null) {
+                        System.err.println("Error retrieving assistants. Status: " + response.statusCode());
+                        return CompletableFuture.completedFuture(null);
+                    }
+                    for (ApiTypes.Assistant assistant : page.data()) {
+                        this.cache(assistant);
+                        if (name.equals(assistant.name())) return CompletableFuture.completedFuture(assistant.id());
+                    }
+                    if (!page.hasMore() || page.lastId() == null) return CompletableFuture.completedFuture(null);
+                    return this.findByNameAsync(name, page.lastId());
+                })
+                .exceptionally(e -> {
+                    System.err.println("Failed to retrieve assistants: " + e.getMessage());
+                    e.printStackTrace();
+                    return null;
+                });
+    }
+
+    private CompletableFuture<String> createAsync(ApiTypes.CreateAssistant request){
+        return transport.<ApiTypes.Assistant>postAsync("/assistants", Json.write(request), Json.ASSISTANT)
+                .thenApply(response -> {
+                    ApiTypes.Assistant assistant = response.body();
+                    if (assistant == null) {
+                        System.err.println("Error creating assistant. Status: " + response.statusCode());
+                        return null;
+                    }
+                    this.cache(assistant);
+                    recent.synchronous().invalidateAll();
+                    System.out.println("Assistant created successfully with ID: " + assistant.id());
+                    return assistant.id();
+                })
+                .exceptionally(e -> {
+                    System.err.println("Failed to create assistant: " + e.getMessage());
+                    e.printStackTrace();
+                    return null;
+                });
+    }
+
+    private void cache(ApiTypes.Assistant assistant){
+        assistants.put(assistant.id(), CompletableFuture.completedFuture(assistant));
+    }
+}
@@ -0,0 +1,165 @@
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.stream.Stream;
+
+
+/**
+ * Uploads many files to a conversation's assistant. Each file goes through uploadFileAsync, getFileInfoAsync and
+ * attachFileToAssistantAsync without waiting on the other files, so one file can be attaching while the next ones
+ * are uploading. At most parallelism files are in flight at once: the files are only read from the directory listing
+ * as permits free up, so a large corpus neither floods the API nor gets loaded into memory ahead of the uploads.
+ *
+ * For example, new BulkUploader(conversation, 8).uploadGlob(Path.of("docs"), "*.pdf") uploads every PDF in docs,
+ * eight at a time, and returns a Report of each file's outcome and the overall throughput;
+ * AssistantConversation.uploadDirectoryToAssistant does the same for a whole directory.
+ *
+ * If the conversation uses a LocalRetriever, the files are indexed by it instead, as uploadFileToAssistantAsync does
+ */
+public class BulkUploader {
+
+    private final AssistantConversation conversation;
+    private final int parallelism;
+
+    /**
+     * Outcome of one file
+     * @param path file that was uploaded
+     * @param fileId ID of the OpenAI File Object, null if the upload failed or the file was indexed locally
+     * @param attached whether the file was attached to the assistant, or is in the conversation's local index
+     * @param bytes size of the file
+     * @param millis time from the start of the upload to the end of the attach
+     * @param error stage that failed, null if the file was attached
+     */
+    public record FileResult(Path path, String fileId, boolean attached, long bytes, long millis, String error) { }
+
+    /**
+     * Outcome of a bulk upload
+     * @param files per-file results, in the order the files were submitted
+     * @param elapsedMillis wall-clock time of the whole upload
+     */
+    public record Report(List<FileResult> files, long elapsedMillis) {
+
+        public long succeeded(){
+            return files.stream().filter(FileResult::attached).count();
+        }
+
+        public long failed(){
+            return files.size() - this.succeeded();
+        }
+
+        /**
+         * @return total size of the files that were attached
+         */
+        public long bytes(){
+            return files.stream().filter(FileResult::attached).mapToLong(FileResult::bytes).sum();
+        }
+
+        public double filesPerSecond(){
+            return elapsedMillis == 0 ? 0 : this.succeeded() * 1000.0 / elapsedMillis;
+        }
+
+        public double megabytesPerSecond(){
+            return elapsedMillis == 0 ? 0 : this.bytes() / 1_048_576.0 * 1000.0 / elapsedMillis;
+        }
+
+        @Override
+        public String toString(){
+            return String.format("%d/%d files attached in %d ms (%.2f files/s, %.2f MB/s)",
+                    this.succeeded(), files.size(), elapsedMillis, this.filesPerSecond(), this.megabytesPerSecond());
+        }
+    }
+
+    /**
+     * @param conversation conversation whose assistant the files are attached to
+     * @param parallelism maximum number of files in flight at once
+     */
+    public BulkUploader(AssistantConversation conversation, int parallelism){
+        this.conversation = conversation;
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Uploads every regular file in directory and its subdirectories
+     */
+    public Report uploadDirectory(Path directory){
+        try (Stream<Path> files = Files.walk(directory)) {
+            return this.upload(files.filter(Files::isRegularFile).iterator());
+        } catch (IOException e) {
+            System.err.println("Failed to list " + directory + ": " + e.getMessage());
+            e.printStackTrace();
+            return new Report(List.of(), 0);
+        }
+    }
+
+    /**
+     * Uploads the files under directory matching a glob relative to it, e.g. "**.pdf" or "worksheets/*.pdf"
+     */
+    public Report uploadGlob(Path directory, String glob){
+        PathMatcher matcher = directory.getFileSystem().getPathMatcher("glob:" + glob);
+        try (Stream<Path> files = Files.walk(directory)) {
+            return this.upload(files.filter(path -> Files.isRegularFile(path) && matcher.matches(directory.relativize(path))).iterator());
+        } catch (IOException e) {
+            System.err.println("Failed to list " + directory + ": " + e.getMessage());
+            e.printStackTrace();
+            return new Report(List.of(), 0);
+        }
+    }
+
+    public Report upload(List<Path> paths){
+        return this.upload(paths.iterator());
+    }
+
+    /**
+     * Starts a file whenever fewer than parallelism are in flight and waits for the last one to finish
+     */
+    private Report upload(Iterator<Path> paths){
+        long start = System.nanoTime();
+        Semaphore permits = new Semaphore(parallelism);
+        List<CompletableFuture<FileResult>> results = new ArrayList<>();
+        try {
+            while (paths.hasNext()) {
+                permits.acquire();
+                results.add(this.uploadOne(paths.next()).whenComplete((result, e) -> permits.release()));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            System.err.println("Bulk upload interrupted, waiting for the files already started");
+        }
+
+        List<FileResult> files = new ArrayList<>(results.size());
+        for (CompletableFuture<FileResult> result : results) files.add(result.join());
+        return new Report(files, (System.nanoTime() - start) / 1_000_000);
+    }
+
+    private CompletableFuture<FileResult> uploadOne(Path path){
+        long start = System.nanoTime();
+        long bytes;
+        try {
+            bytes = Files.size(path);
+        } catch (IOException e) {
+            return CompletableFuture.completedFuture(new FileResult(path, null, false, 0, 0, "read failed: " + e.getMessage()));
+        }
+
+        if (conversation.getLocalRetriever() != null) {
+            return conversation.indexFileAsync(path.toString(), false)
+                    .thenApply(indexed -> new FileResult(path, null, indexed, bytes, elapsedMillis(start), indexed ? null : "index failed"))
+                    .exceptionally(e -> new FileResult(path, null, false, bytes, elapsedMillis(start), e.toString()));
+        }
+        return conversation.uploadFileAsync(path.toString()).thenCompose(fileId -> {
+            if (fileId == null) {
+                return CompletableFuture.completedFuture(new FileResult(path, null, false, bytes, elapsedMillis(start), "upload failed"));
+            }
+            return conversation.getFileInfoAsync(fileId)
+                    .thenCompose(fileInfo -> conversation.attachFileToAssistantAsync(fileId))
+                    .thenApply(attached -> new FileResult(path, fileId, attached, bytes, elapsedMillis(start), attached ? null : "attach failed"));
+        }).exceptionally(e -> new FileResult(path, null, false, bytes, elapsedMillis(start), e.toString()));
+    }
+
+    private static long elapsedMillis(long start){
+        return (System.nanoTime() - start) / 1_000_000;
+    }
+}
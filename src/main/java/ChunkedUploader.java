@@ -0,0 +1,275 @@
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import java.io.IOException;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+
+
+/**
+ * Uploads large files in parts through the Uploads API (POST /uploads, /uploads/{id}/parts, /uploads/{id}/complete).
+ * Parts are sent several at a time, each streamed from its region of the file, and the id of every part that went
+ * through is saved to a manifest in manifestDirectory. If a part fails the upload returns null and keeps its
+ * manifest, so uploading the same unchanged file again only sends the missing parts
+ */
+public class ChunkedUploader {
+
+    /** Parts may be at most 64 MB */
+    public static final long DEFAULT_PART_SIZE = 16L << 20;
+
+    private final OpenAITransport transport;
+    private final Path manifestDirectory;
+    private final long partSize;
+    private final int parallelism;
+    private final ReentrantLock manifestLock = new ReentrantLock();
+
+    /**
+     * Progress of an upload, saved after every part
+     * @param partIds id of each part in file order, null for parts not uploaded yet
+     */
+    private record Manifest(@JsonProperty("upload_id") String uploadId, String path, long size, long modified,
+                            @JsonProperty("part_size") long partSize, @JsonProperty("expires_at") long expiresAt,
+                            @JsonProperty("part_ids") List<String> partIds) { }
+
+    /**
+     * @param transport transport the upload requests are sent with
+     * @param manifestDirectory directory the manifests of unfinished uploads are kept in
+     * @param partSize size of every part but the last
+     * @param parallelism maximum number of parts in flight at once
+     */
+    public ChunkedUploader(OpenAITransport transport, Path manifestDirectory, long partSize, int parallelism){
+        this.transport = transport;
+        this.manifestDirectory = manifestDirectory;
+        this.partSize = partSize;
+        this.parallelism = parallelism;
+    }
+
+    public long getPartSize(){
+        return partSize;
+    }
+
+    /**
+     * Uploads file, resuming the upload recorded in its manifest if the file has not changed since and the upload has
+     * not expired
+     * @return future completing with the id of the OpenAI File Object, null if a part or the completion failed
+     */
+    public CompletableFuture<String> upload(Path file){
+        Path path = file.toAbsolutePath().normalize();
+        BasicFileAttributes attributes;
+        try {
+            Files.createDirectories(manifestDirectory);
+            attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        } catch (IOException e) {
+            System.err.println("Upload failed: " + e.getMessage());
+            e.printStackTrace();
+            return CompletableFuture.completedFuture(null);
+        }
+        long size = attributes.size();
+        long modified = attributes.lastModifiedTime().toMillis();
+
+        Manifest manifest = this.readManifest(path);
+        if (manifest != null && (manifest.size() != size || manifest.modified() != modified || manifest.partSize() != partSize
+                || manifest.expiresAt() * 1000 < System.currentTimeMillis())) {
+            System.out.println("Discarding stale upload " + manifest.uploadId() + " of " + path);
+            manifest = null;
+        }
+
+        CompletableFuture<Manifest> started;
+        if (manifest != null) {
+            long done = manifest.partIds().stream().filter(id -> id != null).count();
+            System.out.println("Resuming upload " + manifest.uploadId() + ": " + done + "/" + manifest.partIds().size() + " parts done");
+            started = CompletableFuture.completedFuture(manifest);
+        } else {
+            started = this.createUpload(path, size, modified);
+        }
+
+        return started.thenCompose(upload -> {
+            if (upload == null) return CompletableFuture.completedFuture((String) null);
+            return this.uploadParts(path, upload).thenCompose(complete -> {
+                if (!complete) {
+                    System.err.println("Upload " + upload.uploadId() + " incomplete, upload the file again to resume it");
+                    return CompletableFuture.completedFuture((String) null);
+                }
+                return this.completeUpload(path, upload);
+            });
+        });
+    }
+
+    private CompletableFuture<Manifest> createUpload(Path path, long size, long modified){
+        String body = Json.write(new ApiTypes.CreateUpload(path.getFileName().toString(), "assistants", size, mimeType(path)));
+        return transport.<ApiTypes.Upload>postAsync("/uploads", body, Json.UPLOAD)
+                .thenApply(response -> {
+                    ApiTypes.Upload upload = response.body();
+                    if (upload == null) return null;
+                    int parts = (int) Math.max(1, (size + partSize - 1) / partSize);
+                    Manifest manifest = new Manifest(upload.id(), path.toString(), size, modified, partSize,
+                            upload.expiresAt(), new ArrayList<>(Collections.nCopies(parts, null)));
+                    this.writeManifest(path, manifest);
+                    return manifest;
+                })
+                .exceptionally(e -> {
+                    System.err.println("Failed to create upload: " + e.getMessage());
+                    e.printStackTrace();
+                    return null;
+                });
+    }
+
+    /**
+     * Sends the parts missing from the manifest with parallelism workers, each taking the next missing part once
+     * its previous one is done
+     * @return future completing with true if every part has been uploaded
+     */
+    private CompletableFuture<Boolean> uploadParts(Path path, Manifest manifest){
+        Queue<Integer> missing = new ConcurrentLinkedQueue<>();
+        for (int part = 0; part < manifest.partIds().size(); part++) {
+            if (manifest.partIds().get(part) == null) missing.add(part);
+        }
+        AtomicBoolean failed = new AtomicBoolean();
+        CompletableFuture<?>[] workers = new CompletableFuture<?>[Math.min(parallelism, Math.max(1, missing.size()))];
+        for (int i = 0; i < workers.length; i++) workers[i] = this.nextPart(path, manifest, missing, failed);
+        return CompletableFuture.allOf(workers).thenApply(done -> !failed.get());
+    }
+
+    private CompletableFuture<Void> nextPart(Path path, Manifest manifest, Queue<Integer> missing, AtomicBoolean failed){
+        Integer part = missing.poll();
+        if (part == null) return CompletableFuture.completedFuture(null);
+        return this.uploadPart(path, manifest, part).thenCompose(uploaded -> {
+            if (!uploaded) failed.set(true);
+            return this.nextPart(path, manifest, missing, failed);
+        });
+    }
+
+    private CompletableFuture<Boolean> uploadPart(Path path, Manifest manifest, int part){
+        long offset = part * partSize;
+        long length = Math.min(partSize, manifest.size() - offset);
+        MultipartBody body = new MultipartBody().file("data", path.getFileName() + ".part" + part, path, offset, length);
+        HttpRequest request = transport.newRequest("/uploads/" + manifest.uploadId() + "/parts")
+                .setHeader("Content-Type", body.contentType())
+                .POST(body.publisher())
+                .build();
+
+        return transport.sendAsync(request, JsonBodySubscriber.<ApiTypes.UploadPart>handler(Json.UPLOAD_PART))
+                .thenApply(HttpResponse::body)
+                .thenApply(uploaded -> {
+                    if (uploaded == null) return false;
+                    manifestLock.lock();
+                    try {
+                        manifest.partIds().set(part, uploaded.id());
+                        this.writeManifest(path, manifest);
+                    } finally {
+                        manifestLock.unlock();
+                    }
+                    return true;
+                })
+                .exceptionally(e -> {
+                    System.err.println("Part " + part + " of upload " + manifest.uploadId() + " failed: " + e.getMessage());
+                    return false;
+                });
+    }
+
+    private CompletableFuture<String> completeUpload(Path path, Manifest manifest){
+        String body = Json.write(new ApiTypes.CompleteUpload(manifest.partIds()));
+        return transport.<ApiTypes.Upload>postAsync("/uploads/" + manifest.uploadId() + "/complete", body, Json.UPLOAD)
+                .thenApply(response -> {
+                    ApiTypes.Upload upload = response.body();
+                    if (response.statusCode() / 100 == 4) this.deleteManifest(path);
+                    if (upload == null || upload.file() == null) return (String) null;
+                    this.deleteManifest(path);
+                    System.out.println("File uploaded successfully. File ID: " + upload.file().getId());
+                    return upload.file().getId();
+                })
+                .exceptionally(e -> {
+                    System.err.println("Failed to complete upload " + manifest.uploadId() + ": " + e.getMessage());
+                    e.printStackTrace();
+                    return null;
+                });
+    }
+
+    private Path manifestPath(Path file){
+        return manifestDirectory.resolve(file.getFileName() + "-" + Integer.toHexString(file.toString().hashCode()) + ".upload.json");
+    }
+
+    private Manifest readManifest(Path file){
+        Path manifest = this.manifestPath(file);
+        if (!Files.exists(manifest)) return null;
+        try {
+            return Json.MAPPER.readValue(manifest.toFile(), Manifest.class);
+        } catch (IOException e) {
+            System.err.println("Ignoring unreadable manifest " + manifest + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Replaces the manifest atomically, so a crash leaves either the previous or the new one
+     */
+    private void writeManifest(Path file, Manifest manifest){
+        Path target = this.manifestPath(file);
+        Path temporary = target.resolveSibling(target.getFileName() + ".tmp");
+        try {
+            Files.write(temporary, Json.WRITER.writeValueAsBytes(manifest));
+            Files.move(temporary, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.err.println("Failed to save manifest " + target + ": " + e.getMessage());
+            e.printStackTrace();
+        }
+    }
+
+    private void deleteManifest(Path file){
+        try {
+            Files.deleteIfExists(this.manifestPath(file));
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Uploads a generated file to a MockAssistantsServer that drops a share of part requests halfway through, uploading
+     * again until the upload completes, and checks that the assembled file matches the original
+     * @param args [size in MB] [failure rate]
+     */
+    public static void main(String[] args) throws Exception {
+        int megabytes = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+        double failureRate = args.length > 1 ? Double.parseDouble(args[1]) : 0.3;
+
+        MockAssistantsServer mock = new MockAssistantsServer(0);
+        mock.setPartFailureRate(failureRate);
+        mock.start();
+        OpenAITransport transport = OpenAITransport.builder().baseUrl(mock.getBaseUrl()).apiKey("mock").build();
+
+        Path directory = Files.createTempDirectory("chunked-upload");
+        Path file = directory.resolve("large.bin");
+        byte[] content = new byte[megabytes << 20];
+        new java.util.Random(42).nextBytes(content);
+        Files.write(file, content);
+
+        ChunkedUploader uploader = new ChunkedUploader(transport, directory.resolve("manifests"), 4 << 20, 4);
+        String fileId = null;
+        for (int attempt = 1; attempt <= 20 && fileId == null; attempt++) {
+            fileId = uploader.upload(file).join();
+            System.out.println("Attempt " + attempt + ": " + fileId);
+        }
+        System.out.println("Content matches: " + java.util.Arrays.equals(content, mock.getFileContent(fileId)));
+        mock.stop();
+    }
+
+    private static String mimeType(Path path){
+        try {
+            String type = Files.probeContentType(path);
+            return type != null ? type : "application/octet-stream";
+        } catch (IOException e) {
+            return "application/octet-stream";
+        }
+    }
+}
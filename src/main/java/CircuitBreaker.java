@@ -0,0 +1,88 @@
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Circuit breaker of one API endpoint. After FAILURE_THRESHOLD consecutive failures (5xx responses, timeouts or
+ * connection errors) the circuit opens and requests to the endpoint fail immediately instead of waiting on an
+ * upstream that is down. After OPEN_SECONDS a single trial request is let through: if it succeeds the circuit closes,
+ * otherwise it opens again
+ */
+public class CircuitBreaker {
+
+    private static final int FAILURE_THRESHOLD = 5;
+    private static final long OPEN_SECONDS = 15;
+
+    public enum State { CLOSED, OPEN, HALF_OPEN }
+
+    /**
+     * Failure of a request that was not sent because its endpoint's circuit is open
+     */
+    public static class OpenException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public OpenException(String endpoint){
+            super("Circuit open for " + endpoint + ", not sending request");
+        }
+    }
+
+    private final String endpoint;
+    private State state = State.CLOSED;
+    private int failures;
+    private long openedAt;
+    private boolean trialInFlight;
+
+    public CircuitBreaker(String endpoint){
+        this.endpoint = endpoint;
+    }
+
+    public String getEndpoint(){
+        return endpoint;
+    }
+
+    /**
+     * @return whether a request may be sent now. In the half-open state only one trial request is allowed at a time
+     */
+    public synchronized boolean tryAcquire(){
+        if (state == State.OPEN && System.nanoTime() - openedAt >= TimeUnit.SECONDS.toNanos(OPEN_SECONDS)) {
+            state = State.HALF_OPEN;
+        }
+        return switch (state) {
+            case CLOSED -> true;
+            case OPEN -> false;
+            case HALF_OPEN -> {
+                if (trialInFlight) yield false;
+                trialInFlight = true;
+                yield true;
+            }
+        };
+    }
+
+    /**
+     * @return whether requests currently fail without being sent, without taking the trial request
+     */
+    public synchronized boolean isOpen(){
+        return state == State.OPEN && System.nanoTime() - openedAt < TimeUnit.SECONDS.toNanos(OPEN_SECONDS);
+    }
+
+    public synchronized void onSuccess(){
+        failures = 0;
+        trialInFlight = false;
+        if (state != State.CLOSED) System.out.println("Circuit closed for " + endpoint);
+        state = State.CLOSED;
+    }
+
+    public synchronized void onFailure(){
+        trialInFlight = false;
+        failures++;
+        if (state == State.HALF_OPEN || (state == State.CLOSED && failures >= FAILURE_THRESHOLD)) {
+            System.out.println("Circuit opened for " + endpoint + " after " + failures + " failures");
+            state = State.OPEN;
+            openedAt = System.nanoTime();
+        }
+    }
+
+    public synchronized State getState(){
+        return state;
+    }
+}
@@ -0,0 +1,177 @@
+import dev.langchain4j.model.Tokenizer;
+import dev.langchain4j.model.openai.OpenAiChatModelName;
+import dev.langchain4j.model.openai.OpenAiTokenizer;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+
+/**
+ * Local history of a conversation's messages, oldest first, with a retention policy. Messages are kept as UTF-8 byte
+ * arrays, the unit of the size limit, and decoded only when read. For Latin-1 text this is the size of a compact
+ * String; text with any other character, which a String stores as UTF-16, takes up to half as much when it is mostly
+ * ASCII. When a limit is exceeded the oldest messages are dropped, so a long-lived session holds a bounded amount of
+ * heap
+ */
+public class ConversationHistory implements Iterable<ConversationHistory.Entry> {
+
+    // Loading the encoding takes a while, so it is only done once a history with a token limit needs it
+    private static class TokenizerHolder {
+        static final Tokenizer TOKENIZER = new OpenAiTokenizer(OpenAiChatModelName.GPT_4_O);
+    }
+
+    public enum Role { USER, ASSISTANT }
+
+    /**
+     * A message of the history
+     * @param role author of the message
+     * @param timestamp time the message was added, in milliseconds since the epoch
+     * @param text content of the message
+     */
+    public record Entry(Role role, long timestamp, String text) { }
+
+    /**
+     * Limits on what the history keeps. A limit of 0 means unlimited
+     * @param maxMessages maximum number of messages
+     * @param maxBytes maximum total UTF-8 size of the messages
+     * @param maxTokens maximum total number of tokens of the messages, counted with the gpt-4o tokenizer
+     */
+    public record Retention(int maxMessages, long maxBytes, long maxTokens) {
+
+        public static final Retention UNBOUNDED = new Retention(0, 0, 0);
+
+        /** Default retention of a conversation: its last 256 messages, at most 1 MiB of text */
+        public static final Retention DEFAULT = new Retention(256, 1 << 20, 0);
+
+        public static Retention ofMessages(int maxMessages){
+            return new Retention(maxMessages, 0, 0);
+        }
+
+        public static Retention ofBytes(long maxBytes){
+            return new Retention(0, maxBytes, 0);
+        }
+
+        public static Retention ofTokens(long maxTokens){
+            return new Retention(0, 0, maxTokens);
+        }
+    }
+
+    private record StoredEntry(Role role, long timestamp, byte[] utf8, int tokens) { }
+
+    private final ArrayDeque<StoredEntry> entries = new ArrayDeque<>();
+    private Retention retention;
+    private long bytes;
+    private long tokens;
+
+    public ConversationHistory(Retention retention){
+        this.retention = retention;
+    }
+
+    /**
+     * Adds a message timestamped now, see add(Entry)
+     * @param role author of the message
+     * @param text content of the message
+     * @return the added entry
+     */
+    public Entry add(Role role, String text){
+        Entry entry = new Entry(role, System.currentTimeMillis(), text);
+        this.add(entry);
+        return entry;
+    }
+
+    /**
+     * Adds a message and drops the oldest messages until the history is within its retention limits again. The
+     * newest message is always kept, even if it exceeds a limit on its own
+     */
+    public synchronized void add(Entry entry){
+        byte[] utf8 = entry.text().getBytes(StandardCharsets.UTF_8);
+        int messageTokens = retention.maxTokens() > 0 ? TokenizerHolder.TOKENIZER.estimateTokenCountInText(entry.text()) : 0;
+        entries.addLast(new StoredEntry(entry.role(), entry.timestamp(), utf8, messageTokens));
+        bytes += utf8.length;
+        tokens += messageTokens;
+        this.trim();
+    }
+
+    /**
+     * Changes the retention policy, dropping messages immediately if the new policy is stricter. Token counts are
+     * only kept while a token limit is set, so switching one on counts tokens from then on
+     */
+    public synchronized void setRetention(Retention retention){
+        this.retention = retention;
+        this.trim();
+    }
+
+    public synchronized Retention getRetention(){
+        return retention;
+    }
+
+    private void trim(){
+        while (entries.size() > 1 && this.exceedsRetention()) {
+            StoredEntry dropped = entries.removeFirst();
+            bytes -= dropped.utf8().length;
+            tokens -= dropped.tokens();
+        }
+    }
+
+    private boolean exceedsRetention(){
+        return (retention.maxMessages() > 0 && entries.size() > retention.maxMessages())
+                || (retention.maxBytes() > 0 && bytes > retention.maxBytes())
+                || (retention.maxTokens() > 0 && tokens > retention.maxTokens());
+    }
+
+    /**
+     * @return copy of the retained messages, oldest first
+     */
+    public synchronized List<Entry> getEntries(){
+        List<Entry> copy = new ArrayList<>(entries.size());
+        for (StoredEntry entry : entries) copy.add(decode(entry));
+        return copy;
+    }
+
+    /**
+     * @return oldest retained message, null if the history is empty
+     */
+    public synchronized Entry getFirst(){
+        return entries.isEmpty() ? null : decode(entries.getFirst());
+    }
+
+    /**
+     * @return newest message, null if the history is empty
+     */
+    public synchronized Entry getLast(){
+        return entries.isEmpty() ? null : decode(entries.getLast());
+    }
+
+    public synchronized int size(){
+        return entries.size();
+    }
+
+    /**
+     * @return total UTF-8 size of the retained messages
+     */
+    public synchronized long getBytes(){
+        return bytes;
+    }
+
+    /**
+     * @return total number of tokens of the retained messages, 0 if no token limit is set
+     */
+    public synchronized long getTokens(){
+        return tokens;
+    }
+
+    /**
+     * Iterates over a snapshot of the history, so the history can be added to while it is being iterated
+     */
+    @Override
+    public Iterator<Entry> iterator(){
+        return this.getEntries().iterator();
+    }
+
+    private static Entry decode(StoredEntry entry){
+        return new Entry(entry.role(), entry.timestamp(), new String(entry.utf8(), StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,331 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+
+/**
+ * Embedded HTTP front end hosting many independent AssistantConversations keyed by session id. Every request is
+ * handled on its own virtual thread, so a blocked call to the Assistants API only parks a virtual thread, and
+ * replies are streamed back to the client as server-sent events while the run is generating them
+ *
+ * POST   /sessions                    creates a session, optional ?assistant_id= overrides the default assistant.
+ *                                     No API request is made until the session's first message
+ * POST   /sessions/{id}/messages      sends {"content": "..."} and streams the reply as delta events
+ * GET    /sessions/{id}/messages      returns the session's conversation history
+ * DELETE /sessions/{id}               ends the session
+ * GET    /metrics                     client metrics (latencies, statuses, bytes, time to first token) in the
+ *                                     Prometheus text format
+ *
+ * With a ConversationStore, sessions are recorded as they go and resumed from disk when the server is restarted
+ */
+public class ConversationServer {
+
+    /** Number of answers cached by main when --semantic-cache is given without --answer-cache */
+    public static final long DEFAULT_ANSWER_CACHE_SIZE = 1_000;
+
+    private final HttpServer server;
+    private final OpenAITransport transport;
+    private final String defaultAssistantId;
+    private final WarmThreadPool threadPool;
+    private final ConversationStore store;
+    private volatile AnswerCache answerCache;
+    private volatile LocalRetriever localRetriever;
+    private volatile int localPassages;
+
+    private final Map<String, Session> sessions = new ConcurrentHashMap<>();
+
+    /**
+     * A hosted conversation. The lock serialises turns on the same session, and is a ReentrantLock rather than a
+     * monitor so that waiting virtual threads don't pin their carrier
+     */
+    private record Session(AssistantConversation conversation, ReentrantLock lock) { }
+
+    /**
+     * Body of POST /sessions/{id}/messages
+     */
+    private record SendMessage(String content) { }
+
+    /**
+     * @param port port to listen on, 0 for any free port
+     * @param defaultAssistantId assistant used by sessions that don't specify one
+     * @param transport transport shared by every hosted conversation
+     * @param warmThreads number of threads kept pre-created for new sessions, 0 to create them on demand
+     */
+    public ConversationServer(int port, String defaultAssistantId, OpenAITransport transport, int warmThreads) throws IOException {
+        this(port, defaultAssistantId, transport, warmThreads, null);
+    }
+
+    /**
+     * Resumes the sessions recorded in store, then compacts it so deleted sessions don't have to be read again on the
+     * next restart. Sessions that never sent a message have no thread and are not recorded
+     * @param port port to listen on, 0 for any free port
+     * @param defaultAssistantId assistant used by sessions that don't specify one
+     * @param transport transport shared by every hosted conversation
+     * @param warmThreads number of threads kept pre-created for new sessions, 0 to create them on demand
+     * @param store store sessions are recorded in and resumed from, null to keep them in memory only
+     */
+    public ConversationServer(int port, String defaultAssistantId, OpenAITransport transport, int warmThreads, ConversationStore store) throws IOException {
+        this.transport = transport;
+        this.store = store;
+        this.defaultAssistantId = defaultAssistantId;
+        this.threadPool = warmThreads > 0 ? WarmThreadPool.start(transport, warmThreads) : null;
+        this.server = HttpServer.create(new InetSocketAddress(port), 0);
+        this.server.setExecutor(Executors.newVirtualThreadPerTaskExecutor());
+        this.server.createContext("/sessions", this::handleSessions);
+        this.server.createContext("/metrics", this::handleMetrics);
+        if (store != null) this.resumeSessions();
+    }
+
+    private void resumeSessions(){
+        long start = System.nanoTime();
+        for (ConversationStore.ThreadRecord record : store.load().values()) {
+            if (record.label() == null) continue;
+            AssistantConversation conversation = AssistantConversation.resume(record, transport, store);
+            sessions.put(record.label(), new Session(conversation, new ReentrantLock()));
+        }
+        store.compact();
+        System.out.println("Resumed " + sessions.size() + " sessions in " + (System.nanoTime() - start) / 1_000_000 + " ms");
+    }
+
+    /**
+     * Answers the opening question of new sessions from answerCache when it was asked before, and caches the replies
+     * @param answerCache cache shared by every session, null to always run the assistant
+     */
+    public void setAnswerCache(AnswerCache answerCache){
+        this.answerCache = answerCache;
+    }
+
+    /**
+     * Sends the passages of a local index most relevant to each message of new sessions along with it
+     * @param retriever index shared by every session, null to send messages as they are
+     * @param passages number of passages sent with each message
+     */
+    public void setLocalRetriever(LocalRetriever retriever, int passages){
+        this.localRetriever = retriever;
+        this.localPassages = passages;
+    }
+
+    public void start(){
+        server.start();
+    }
+
+    /**
+     * Stops the server and closes its pool of warm threads, deleting them
+     */
+    public void stop(){
+        server.stop(0);
+        if (threadPool != null) threadPool.close();
+    }
+
+    public int getPort(){
+        return server.getAddress().getPort();
+    }
+
+    public int getSessionCount(){
+        return sessions.size();
+    }
+
+    private void handleSessions(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            // /sessions[/{session_id}[/messages]]
+            String[] path = exchange.getRequestURI().getPath().split("/");
+            String method = exchange.getRequestMethod();
+            String sessionId = path.length > 2 ? path[2] : null;
+            String resource = path.length > 3 ? path[3] : null;
+
+            if (sessionId == null) {
+                if (method.equals("POST")) createSession(exchange);
+                else sendJson(exchange, 405, Map.of("error", "Method not allowed"));
+                return;
+            }
+
+            Session session = sessions.get(sessionId);
+            if (session == null) {
+                sendJson(exchange, 404, Map.of("error", "No session with id " + sessionId));
+            } else if (resource == null && method.equals("DELETE")) {
+                sessions.remove(sessionId);
+                String threadId = session.conversation().threadId;
+                if (store != null && threadId != null) store.delete(threadId);
+                sendJson(exchange, 200, Map.of("session_id", sessionId, "deleted", true));
+            } else if ("messages".equals(resource) && method.equals("POST")) {
+                sendMessage(exchange, session);
+            } else if ("messages".equals(resource) && method.equals("GET")) {
+                List<ConversationHistory.Entry> history = session.conversation().chatMessages.getEntries();
+                sendJson(exchange, 200, Map.of("session_id", sessionId, "messages", history));
+            } else {
+                sendJson(exchange, 404, Map.of("error", "Unsupported request " + method + " " + exchange.getRequestURI()));
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void handleMetrics(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            if (Metrics.registry() != Metrics.inMemory()) {
+                sendJson(exchange, 404, Map.of("error", "Metrics are recorded into " + Metrics.registry().getClass().getName()));
+                return;
+            }
+            byte[] bytes = Metrics.inMemory().text().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, bytes.length);
+            exchange.getResponseBody().write(bytes);
+        }
+    }
+
+    private void createSession(HttpExchange exchange) throws IOException {
+        String assistantId = defaultAssistantId;
+        String query = exchange.getRequestURI().getQuery();
+        if (query != null) {
+            for (String parameter : query.split("&")) {
+                if (parameter.startsWith("assistant_id=")) assistantId = parameter.substring("assistant_id=".length());
+            }
+        }
+
+        String sessionId = UUID.randomUUID().toString();
+        AssistantConversation conversation = new AssistantConversation(assistantId, transport, threadPool);
+        if (store != null) conversation.persistTo(store, sessionId);
+        conversation.setAnswerCache(answerCache);
+        if (localRetriever != null) conversation.setLocalRetriever(localRetriever, localPassages);
+        sessions.put(sessionId, new Session(conversation, new ReentrantLock()));
+        sendJson(exchange, 201, Map.of("session_id", sessionId));
+    }
+
+    /**
+     * Adds the user's message to the session's thread and streams the assistant's reply back as it is generated
+     */
+    private void sendMessage(HttpExchange exchange, Session session) throws IOException {
+        String content = Json.MAPPER.readValue(exchange.getRequestBody(), SendMessage.class).content();
+        if (content == null || content.isEmpty()) {
+            sendJson(exchange, 400, Map.of("error", "Request body must be {\"content\": \"...\"}"));
+            return;
+        }
+
+        session.lock().lock();
+        try {
+            AssistantConversation conversation = session.conversation();
+            String cached = conversation.cachedReply(content);
+            if (cached == null) {
+                ApiTypes.Message userMessage = conversation.createUserMessageAsync(content).join();
+                if (userMessage == null) {
+                    sendJson(exchange, 502, Map.of("error", "Message could not be added to the thread"));
+                    return;
+                }
+            }
+
+            exchange.getResponseHeaders().set("Content-Type", "text/event-stream");
+            exchange.getResponseHeaders().set("Cache-Control", "no-cache");
+            exchange.sendResponseHeaders(200, 0);
+            EventWriter events = new EventWriter(exchange.getResponseBody());
+
+            Consumer<String> onDelta = delta -> events.send("delta", Map.of("text", delta));
+            String reply;
+            if (cached != null) {
+                onDelta.accept(cached);
+                reply = cached;
+            } else {
+                reply = conversation.assistantReply(onDelta);
+            }
+            // Empty if the run failed, the deltas sent so far are not a reply
+            if (reply.isEmpty()) events.send("error", Map.of("error", "The run did not complete"));
+            else events.send("done", Map.of("text", reply));
+        } finally {
+            session.lock().unlock();
+        }
+    }
+
+    private void sendJson(HttpExchange exchange, int status, Object body) throws IOException {
+        byte[] bytes = Json.WRITER.writeValueAsBytes(body);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, bytes.length);
+        exchange.getResponseBody().write(bytes);
+    }
+
+    /**
+     * Writes server-sent events to a client. Deltas are written from HttpClient threads while the handler's virtual
+     * thread waits for the run, so a client that has gone away is remembered rather than failing the run
+     */
+    private class EventWriter {
+        private final OutputStream os;
+        private boolean closed;
+
+        EventWriter(OutputStream os){
+            this.os = os;
+        }
+
+        synchronized void send(String event, Object data){
+            if (closed) return;
+            try {
+                os.write(("event: " + event + "\ndata: " + Json.write(data) + "\n\n").getBytes(StandardCharsets.UTF_8));
+                os.flush();
+            } catch (IOException e) {
+                closed = true;
+            }
+        }
+    }
+
+
+    /**
+     * Starts a server on the given port (default 8080). With --mock, conversations are backed by an in-process
+     * MockAssistantsServer instead of the OpenAI API. With --data, sessions are recorded in and resumed from a
+     * ConversationStore in the given directory. With --answer-cache, repeated opening questions are answered from an
+     * AnswerCache of the given number of answers, kept for a day. With --semantic-cache, paraphrases of them are too;
+     * it implies an answer cache of DEFAULT_ANSWER_CACHE_SIZE answers if --answer-cache is not given.
+     * With --index, the files given after it are indexed in a LocalRetriever in the given directory and the 4 passages
+     * most relevant to each message are sent with it
+     * @param args [port] [--mock] [--data directory] [--answer-cache size] [--semantic-cache]
+     *             [--index directory [file ...]]
+     */
+    public static void main(String[] args) throws IOException {
+        int port = 8080;
+        boolean mock = false;
+        ConversationStore store = null;
+        long answerCacheSize = 0;
+        boolean semanticCache = false;
+        LocalRetriever retriever = null;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--mock")) mock = true;
+            else if (args[i].equals("--data")) store = new ConversationStore(Path.of(args[++i]));
+            else if (args[i].equals("--answer-cache")) answerCacheSize = Long.parseLong(args[++i]);
+            else if (args[i].equals("--semantic-cache")) semanticCache = true;
+            else if (args[i].equals("--index")) {
+                retriever = new LocalRetriever(Path.of(args[++i]));
+                while (i + 1 < args.length && !args[i + 1].startsWith("--")) retriever.index(Path.of(args[++i]));
+                System.out.println("Local index holds " + retriever.passageCount() + " passages");
+            }
+            else port = Integer.parseInt(args[i]);
+        }
+        if (semanticCache && answerCacheSize <= 0) answerCacheSize = DEFAULT_ANSWER_CACHE_SIZE;
+        AnswerCache answerCache = null;
+        if (answerCacheSize > 0) {
+            answerCache = semanticCache
+                    ? SemanticAnswerCache.create(answerCacheSize, Duration.ofDays(1), SemanticAnswerCache.DEFAULT_THRESHOLD)
+                    : AnswerCache.create(answerCacheSize, Duration.ofDays(1));
+        }
+
+        OpenAITransport transport = OpenAITransport.shared();
+        if (mock) {
+            MockAssistantsServer mockServer = new MockAssistantsServer(0);
+            mockServer.start();
+            transport = OpenAITransport.builder().baseUrl(mockServer.getBaseUrl()).apiKey("mock").build();
+            System.out.println("Mock Assistants API listening on " + mockServer.getBaseUrl());
+        }
+
+        ConversationServer server = new ConversationServer(port, System.getenv("OPENAI_ASSISTANT_ID"), transport, 8, store);
+        server.setAnswerCache(answerCache);
+        server.setLocalRetriever(retriever, 4);
+        server.start();
+        System.out.println("Conversation server listening on port " + server.getPort());
+    }
+}
@@ -0,0 +1,389 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+
+/**
+ * Durable local record of conversations, keyed by thread id, so a restarted process can resume its conversations
+ * from disk instead of fetching every thread's messages from the API.
+ *
+ * Records are appended to segment files (segment-000001.log, ...) in a directory, each framed as
+ * [payload length][CRC32 of payload][payload]. A record is forced to disk before its append returns; appends made
+ * while another one is being forced share the next force (group commit), so concurrent conversations do not wait on
+ * one sync each. A record torn by a crash fails its length or checksum and ends the segment, and the writer truncates
+ * it before appending again. Segments are read back through a read-only memory mapping, so rehydrating thousands of
+ * conversations is a sequential scan of local files
+ */
+public class ConversationStore implements AutoCloseable {
+
+    private static final long SEGMENT_SIZE = 64L << 20;
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    // Compacted segment being written, only renamed to a segment once it is complete and on disk
+    private static final String COMPACTION_FILE = "compaction.tmp";
+
+    private static final byte OPEN = 1;
+    private static final byte MESSAGE = 2;
+    private static final byte DELETE = 3;
+    // First record of a compacted segment: everything read before it is superseded
+    private static final byte CHECKPOINT = 4;
+
+    /**
+     * A conversation as recorded in the store
+     * @param threadId id of the conversation's thread
+     * @param assistantId assistant the conversation runs, null if unknown
+     * @param label caller defined name of the conversation, e.g. a ConversationServer session id, null if none
+     * @param messages recorded messages, oldest first
+     */
+    public record ThreadRecord(String threadId, String assistantId, String label, List<ConversationHistory.Entry> messages) { }
+
+    private final Path directory;
+    private final ReentrantLock lock = new ReentrantLock();
+    private FileChannel segment;
+    private int segmentNumber;
+    // Number of records appended, under lock, and of records known to be on disk, under syncLock
+    private long appended;
+    private long synced;
+    private final ReentrantLock syncLock = new ReentrantLock();
+
+    /**
+     * Opens the store in directory, creating the directory if needed. A torn record at the end of the newest segment
+     * is cut off so that new records follow the last complete one
+     */
+    public ConversationStore(Path directory) throws IOException {
+        this.directory = directory;
+        Files.createDirectories(directory);
+        // Left by a compaction that did not finish, the segments it would have replaced are all still there
+        Files.deleteIfExists(directory.resolve(COMPACTION_FILE));
+        List<Path> segments = this.segments();
+        if (segments.isEmpty()) {
+            this.openSegment(1);
+        } else {
+            Path newest = segments.getLast();
+            this.segmentNumber = segmentNumber(newest);
+            this.segment = FileChannel.open(newest, StandardOpenOption.WRITE, StandardOpenOption.READ);
+            long validLength = scan(newest, null);
+            if (validLength < segment.size()) {
+                System.out.println("Truncating torn record at " + newest + ":" + validLength);
+                segment.truncate(validLength);
+            }
+            segment.position(validLength);
+        }
+    }
+
+    /**
+     * Records that the thread belongs to a conversation
+     * @return true if the record was written
+     */
+    public boolean open(String threadId, String assistantId, String label){
+        return this.append(openRecord(threadId, assistantId, label));
+    }
+
+    /**
+     * Records a message of the thread
+     * @return true if the record was written
+     */
+    public boolean append(String threadId, ConversationHistory.Entry entry){
+        return this.append(messageRecord(threadId, entry));
+    }
+
+    /**
+     * Records that the thread's conversation has ended, so it is not rehydrated anymore
+     * @return true if the record was written
+     */
+    public boolean delete(String threadId){
+        ByteBuffer payload = ByteBuffer.allocate(1 + encodedLength(threadId));
+        payload.put(DELETE);
+        putString(payload, threadId);
+        return this.append(payload.flip());
+    }
+
+    /**
+     * Writes a record and waits until it is on disk
+     */
+    private boolean append(ByteBuffer payload){
+        long sequence;
+        lock.lock();
+        try {
+            if (segment.position() > 0 && segment.position() + 8 + payload.remaining() > SEGMENT_SIZE) {
+                segment.force(false);
+                segment.close();
+                this.openSegment(segmentNumber + 1);
+            }
+            write(segment, payload);
+            sequence = ++appended;
+        } catch (IOException e) {
+            System.err.println("Failed to write to conversation store " + directory + ": " + e.getMessage());
+            e.printStackTrace();
+            return false;
+        } finally {
+            lock.unlock();
+        }
+        return this.sync(sequence);
+    }
+
+    /**
+     * Forces the current segment unless a force since the record was written already covered it
+     * @param sequence number of the record, from appended
+     */
+    private boolean sync(long sequence){
+        syncLock.lock();
+        try {
+            if (synced >= sequence) return true;
+            FileChannel channel;
+            long upTo;
+            lock.lock();
+            try {
+                channel = segment;
+                upTo = appended;
+            } finally {
+                lock.unlock();
+            }
+            try {
+                channel.force(false);
+            } catch (ClosedChannelException e) {
+                // Rolled or compacted meanwhile, which forced the segment before closing it
+            }
+            synced = upTo;
+            return true;
+        } catch (IOException e) {
+            System.err.println("Failed to sync conversation store " + directory + ": " + e.getMessage());
+            e.printStackTrace();
+            return false;
+        } finally {
+            syncLock.unlock();
+        }
+    }
+
+    /**
+     * Reads every segment and rebuilds the conversations that have not been deleted
+     * @return conversations by thread id, in the order they were first recorded
+     */
+    public Map<String, ThreadRecord> load(){
+        lock.lock();
+        try {
+            Map<String, ThreadRecord> threads = new LinkedHashMap<>();
+            for (Path path : this.segments()) scan(path, threads);
+            return threads;
+        } catch (IOException e) {
+            System.err.println("Failed to read conversation store " + directory + ": " + e.getMessage());
+            e.printStackTrace();
+            return new LinkedHashMap<>();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Rewrites the live conversations into a new segment and removes the older ones, dropping deleted
+     * conversations. The new segment is written to a temporary file and forced to disk before it is renamed into
+     * place, so a crash before the rename leaves the old segments as they were. It starts with a checkpoint record,
+     * so if the process dies after the rename but before the old segments are removed they are ignored on the next
+     * load
+     * @return true if the store was compacted
+     */
+    public boolean compact(){
+        lock.lock();
+        try {
+            Map<String, ThreadRecord> threads = this.load();
+            List<Path> previous = this.segments();
+            segment.force(false);
+            segment.close();
+
+            Path compaction = directory.resolve(COMPACTION_FILE);
+            try (FileChannel channel = FileChannel.open(compaction, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                write(channel, ByteBuffer.allocate(1).put(CHECKPOINT).flip());
+                for (ThreadRecord thread : threads.values()) {
+                    write(channel, openRecord(thread.threadId(), thread.assistantId(), thread.label()));
+                    for (ConversationHistory.Entry entry : thread.messages()) write(channel, messageRecord(thread.threadId(), entry));
+                }
+                channel.force(true);
+            }
+            Files.move(compaction, this.segmentPath(segmentNumber + 1), StandardCopyOption.ATOMIC_MOVE);
+            this.forceDirectory();
+            this.openSegment(segmentNumber + 1);
+            for (Path path : previous) Files.deleteIfExists(path);
+            return true;
+        } catch (IOException e) {
+            System.err.println("Failed to compact conversation store " + directory + ": " + e.getMessage());
+            e.printStackTrace();
+            // Keep appending to the newest segment, whichever it is now
+            try {
+                if (!segment.isOpen()) this.openSegment(this.segments().isEmpty() ? segmentNumber + 1 : segmentNumber(this.segments().getLast()));
+            } catch (IOException reopen) {
+                reopen.printStackTrace();
+            }
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void close(){
+        lock.lock();
+        try {
+            segment.force(false);
+            segment.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void openSegment(int number) throws IOException {
+        this.segmentNumber = number;
+        this.segment = FileChannel.open(this.segmentPath(number), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.READ);
+        this.segment.position(segment.size());
+    }
+
+    private Path segmentPath(int number){
+        return directory.resolve(String.format("%s%06d%s", SEGMENT_PREFIX, number, SEGMENT_SUFFIX));
+    }
+
+    /**
+     * Makes a rename in the directory durable. Not every platform can open a directory, there the rename is left to
+     * the file system
+     */
+    private void forceDirectory(){
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            // Not supported here
+        }
+    }
+
+    /**
+     * Writes a payload framed as [length][CRC32][payload]
+     */
+    private static void write(FileChannel channel, ByteBuffer payload) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(payload.duplicate());
+        ByteBuffer header = ByteBuffer.allocate(8).putInt(payload.remaining()).putInt((int) crc.getValue()).flip();
+        ByteBuffer[] record = {header, payload};
+        while (payload.hasRemaining()) channel.write(record);
+    }
+
+    private static ByteBuffer openRecord(String threadId, String assistantId, String label){
+        ByteBuffer payload = ByteBuffer.allocate(1 + encodedLength(threadId) + encodedLength(assistantId) + encodedLength(label));
+        payload.put(OPEN);
+        putString(payload, threadId);
+        putString(payload, assistantId);
+        putString(payload, label);
+        return payload.flip();
+    }
+
+    private static ByteBuffer messageRecord(String threadId, ConversationHistory.Entry entry){
+        byte[] text = entry.text().getBytes(StandardCharsets.UTF_8);
+        ByteBuffer payload = ByteBuffer.allocate(1 + encodedLength(threadId) + 1 + 8 + 4 + text.length);
+        payload.put(MESSAGE);
+        putString(payload, threadId);
+        payload.put((byte) entry.role().ordinal());
+        payload.putLong(entry.timestamp());
+        payload.putInt(text.length);
+        payload.put(text);
+        return payload.flip();
+    }
+
+    private List<Path> segments() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(path -> {
+                        String name = path.getFileName().toString();
+                        return name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX);
+                    })
+                    .sorted(Comparator.comparingInt(ConversationStore::segmentNumber))
+                    .toList();
+        }
+    }
+
+    private static int segmentNumber(Path path){
+        String name = path.getFileName().toString();
+        return Integer.parseInt(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+    }
+
+    /**
+     * Applies the complete records of a segment to threads, stopping at the first torn or corrupt record
+     * @param threads conversations to update, null to only validate the segment
+     * @return length of the segment's valid prefix
+     */
+    private static long scan(Path path, Map<String, ThreadRecord> threads) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (channel.size() == 0) return 0;
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            CRC32 crc = new CRC32();
+            while (buffer.remaining() >= 8) {
+                int start = buffer.position();
+                int length = buffer.getInt();
+                int checksum = buffer.getInt();
+                if (length <= 0 || length > buffer.remaining()) return start;
+
+                ByteBuffer payload = buffer.slice(buffer.position(), length);
+                crc.reset();
+                crc.update(payload.duplicate());
+                if ((int) crc.getValue() != checksum) return start;
+
+                if (threads != null) apply(payload, threads);
+                buffer.position(buffer.position() + length);
+            }
+            return buffer.position();
+        }
+    }
+
+    private static void apply(ByteBuffer payload, Map<String, ThreadRecord> threads){
+        byte type = payload.get();
+        if (type == CHECKPOINT) {
+            threads.clear();
+            return;
+        }
+        String threadId = getString(payload);
+        switch (type) {
+            case OPEN -> {
+                ThreadRecord previous = threads.get(threadId);
+                List<ConversationHistory.Entry> messages = previous == null ? new ArrayList<>() : previous.messages();
+                threads.put(threadId, new ThreadRecord(threadId, getString(payload), getString(payload), messages));
+            }
+            case MESSAGE -> {
+                ConversationHistory.Role role = ConversationHistory.Role.values()[payload.get()];
+                long timestamp = payload.getLong();
+                byte[] text = new byte[payload.getInt()];
+                payload.get(text);
+                threads.computeIfAbsent(threadId, id -> new ThreadRecord(id, null, null, new ArrayList<>()))
+                        .messages().add(new ConversationHistory.Entry(role, timestamp, new String(text, StandardCharsets.UTF_8)));
+            }
+            case DELETE -> threads.remove(threadId);
+            default -> System.out.println("Skipping unknown conversation store record type " + type);
+        }
+    }
+
+    private static int encodedLength(String value){
+        return 4 + (value == null ? 0 : value.getBytes(StandardCharsets.UTF_8).length);
+    }
+
+    // Strings are stored as their UTF-8 length (-1 for null) followed by the bytes
+    private static void putString(ByteBuffer buffer, String value){
+        if (value == null) {
+            buffer.putInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        buffer.putInt(bytes.length);
+        buffer.put(bytes);
+    }
+
+    private static String getString(ByteBuffer buffer){
+        int length = buffer.getInt();
+        if (length < 0) return null;
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
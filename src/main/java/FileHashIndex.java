@@ -0,0 +1,154 @@
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+
+/**
+ * Persistent index from the SHA-256 of a file's content to the id of the OpenAI File Object it was uploaded as, so
+ * the same document is only uploaded once. The size and modification time of every indexed path are kept with its
+ * hash, so an unchanged file is recognised from its attributes alone without reading it again.
+ *
+ * The index is a text file of put and remove lines that is appended to and replayed on open
+ */
+public class FileHashIndex {
+
+    private static final int HASH_CHUNK = 8 << 20;
+
+    private record Stat(long size, long modified, String hash) { }
+
+    private final Path indexFile;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Map<String, String> fileIds = new ConcurrentHashMap<>();
+    private final Map<Path, Stat> stats = new ConcurrentHashMap<>();
+    // File ids confirmed to still exist since this index was opened
+    private final Set<String> validated = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Opens the index stored in indexFile, creating it on the first put
+     */
+    public FileHashIndex(Path indexFile) throws IOException {
+        this.indexFile = indexFile;
+        if (!Files.exists(indexFile)) return;
+        for (String line : Files.readAllLines(indexFile, StandardCharsets.UTF_8)) {
+            // put <hash> <file id> <size> <modified> <path> | remove <hash>
+            String[] fields = line.split(" ", 6);
+            if (fields[0].equals("put") && fields.length == 6) {
+                fileIds.put(fields[1], fields[2]);
+                stats.put(Path.of(fields[5]), new Stat(Long.parseLong(fields[3]), Long.parseLong(fields[4]), fields[1]));
+            } else if (fields[0].equals("remove") && fields.length == 2) {
+                fileIds.remove(fields[1]);
+            }
+        }
+    }
+
+    /**
+     * Returns the hex SHA-256 of the file's content, reusing the hash recorded for the path if its size and
+     * modification time have not changed
+     * @return hash of the file, null if it could not be read
+     */
+    public String hash(Path file){
+        try {
+            Path path = file.toAbsolutePath().normalize();
+            BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+            long modified = attributes.lastModifiedTime().toMillis();
+            Stat stat = stats.get(path);
+            if (stat != null && stat.size() == attributes.size() && stat.modified() == modified) return stat.hash();
+
+            String hash = sha256(path);
+            stats.put(path, new Stat(attributes.size(), modified, hash));
+            return hash;
+        } catch (IOException e) {
+            System.err.println("Failed to hash " + file + ": " + e.getMessage());
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * @return id of the file uploaded with this content, null if none is indexed
+     */
+    public String get(String hash){
+        return fileIds.get(hash);
+    }
+
+    /**
+     * Records that the file with this content was uploaded as fileId
+     */
+    public void put(String hash, Path file, String fileId){
+        Path path = file.toAbsolutePath().normalize();
+        Stat stat = stats.get(path);
+        fileIds.put(hash, fileId);
+        validated.add(fileId);
+        if (stat != null && stat.hash().equals(hash)) {
+            this.write("put " + hash + " " + fileId + " " + stat.size() + " " + stat.modified() + " " + path);
+        } else {
+            this.write("put " + hash + " " + fileId + " -1 -1 " + path);
+        }
+    }
+
+    /**
+     * Forgets the file uploaded with this content, e.g. because it was deleted from OpenAI
+     */
+    public void remove(String hash){
+        String fileId = fileIds.remove(hash);
+        if (fileId != null) {
+            validated.remove(fileId);
+            this.write("remove " + hash);
+        }
+    }
+
+    /**
+     * @return whether fileId was uploaded or confirmed to exist since this index was opened
+     */
+    public boolean isValidated(String fileId){
+        return validated.contains(fileId);
+    }
+
+    public void markValidated(String fileId){
+        validated.add(fileId);
+    }
+
+    private void write(String line){
+        lock.lock();
+        try {
+            Files.writeString(indexFile, line + "\n", StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        } catch (IOException e) {
+            System.err.println("Failed to write file index " + indexFile + ": " + e.getMessage());
+            e.printStackTrace();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Hashes the file through a read-only memory mapping, a chunk at a time
+     */
+    static String sha256(Path path) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            for (long position = 0; position < size; position += HASH_CHUNK) {
+                MappedByteBuffer chunk = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(HASH_CHUNK, size - position));
+                digest.update(chunk);
+            }
+        }
+        return HexFormat.of().formatHex(digest.digest());
+    }
+}
@@ -0,0 +1,247 @@
+import javax.management.*;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+
+/**
+ * Default MetricsRegistry, keeping every metric in memory. Histograms use fixed log-linear buckets (8 per power of
+ * two, so quantiles are within about 10%) of lock-free counters, so recording a value never allocates or blocks.
+ *
+ * Metrics can be read as Prometheus text with text(), and are published over JMX as the attributes of
+ * AssistantConversation:type=Metrics, one per counter and gauge and p50/p99/max/count per histogram
+ */
+public class InMemoryMetrics implements MetricsRegistry {
+
+    private static final String OBJECT_NAME = "AssistantConversation:type=Metrics";
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99};
+
+    private final Map<String, Histogram> histograms = new ConcurrentHashMap<>();
+    private final Map<String, LongAdder> counters = new ConcurrentHashMap<>();
+    private final Map<String, LongAdder> gauges = new ConcurrentHashMap<>();
+
+    @Override
+    public void recordTime(String name, long nanos, String... labels){
+        histograms.computeIfAbsent(key(name, labels), k -> new Histogram()).record(nanos);
+    }
+
+    @Override
+    public void increment(String name, long amount, String... labels){
+        counters.computeIfAbsent(key(name, labels), k -> new LongAdder()).add(amount);
+    }
+
+    @Override
+    public void adjust(String name, long delta, String... labels){
+        gauges.computeIfAbsent(key(name, labels), k -> new LongAdder()).add(delta);
+    }
+
+    /**
+     * @return quantile in seconds of a histogram, NaN if nothing was recorded under this name and labels
+     */
+    public double quantile(double quantile, String name, String... labels){
+        Histogram histogram = histograms.get(key(name, labels));
+        return histogram == null ? Double.NaN : histogram.quantile(quantile) / 1e9;
+    }
+
+    /**
+     * @return value of a counter or gauge, 0 if nothing was recorded under this name and labels
+     */
+    public long value(String name, String... labels){
+        String key = key(name, labels);
+        LongAdder value = counters.containsKey(key) ? counters.get(key) : gauges.get(key);
+        return value == null ? 0 : value.sum();
+    }
+
+    /**
+     * Renders every metric in the Prometheus text exposition format. Histograms are rendered as summaries with
+     * their p50, p90 and p99 in seconds
+     */
+    public String text(){
+        StringBuilder text = new StringBuilder();
+        String type = null;
+        for (Map.Entry<String, Histogram> entry : new TreeMap<>(histograms).entrySet()) {
+            String name = name(entry.getKey());
+            if (!name.equals(type)) text.append("# TYPE ").append(name).append(" summary\n");
+            type = name;
+            Histogram histogram = entry.getValue();
+            for (double quantile : QUANTILES) {
+                text.append(withLabel(entry.getKey(), "quantile", String.valueOf(quantile)))
+                        .append(' ').append(histogram.quantile(quantile) / 1e9).append('\n');
+            }
+            text.append(suffixed(entry.getKey(), "_sum")).append(' ').append(histogram.sum.sum() / 1e9).append('\n');
+            text.append(suffixed(entry.getKey(), "_count")).append(' ').append(histogram.count.sum()).append('\n');
+        }
+        appendValues(text, counters, "counter");
+        appendValues(text, gauges, "gauge");
+        return text.toString();
+    }
+
+    private static void appendValues(StringBuilder text, Map<String, LongAdder> values, String kind){
+        String type = null;
+        for (Map.Entry<String, LongAdder> entry : new TreeMap<>(values).entrySet()) {
+            String name = name(entry.getKey());
+            if (!name.equals(type)) text.append("# TYPE ").append(name).append(' ').append(kind).append('\n');
+            type = name;
+            text.append(entry.getKey()).append(' ').append(entry.getValue().sum()).append('\n');
+        }
+    }
+
+    /**
+     * Publishes the metrics on the platform MBean server, once per JVM
+     */
+    public void registerMBean(){
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (!server.isRegistered(name)) server.registerMBean(new MetricsMBean(), name);
+        } catch (JMException e) {
+            System.err.println("Failed to register metrics MBean: " + e.getMessage());
+        }
+    }
+
+    // name{label="value",...}
+    private static String key(String name, String... labels){
+        if (labels.length == 0) return name;
+        StringBuilder key = new StringBuilder(name).append('{');
+        for (int i = 0; i + 1 < labels.length; i += 2) {
+            if (i > 0) key.append(',');
+            key.append(labels[i]).append("=\"").append(labels[i + 1].replace("\\", "\\\\").replace("\"", "\\\"")).append('"');
+        }
+        return key.append('}').toString();
+    }
+
+    private static String name(String key){
+        int brace = key.indexOf('{');
+        return brace < 0 ? key : key.substring(0, brace);
+    }
+
+    private static String suffixed(String key, String suffix){
+        String name = name(key);
+        return name + suffix + key.substring(name.length());
+    }
+
+    private static String withLabel(String key, String label, String value){
+        String pair = label + "=\"" + value + "\"";
+        return key.endsWith("}") ? key.substring(0, key.length() - 1) + "," + pair + "}" : key + "{" + pair + "}";
+    }
+
+    /**
+     * Log-linear histogram of durations in microseconds: values below 8 have their own bucket, above that every
+     * power of two is split into 8 buckets
+     */
+    private static class Histogram {
+        private static final int SUB_BUCKETS = 8;
+        private static final int SUB_BUCKET_BITS = 3;
+
+        private final AtomicLongArray buckets = new AtomicLongArray(64 * SUB_BUCKETS);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sum = new LongAdder();
+        private final AtomicLong max = new AtomicLong();
+
+        void record(long nanos){
+            long micros = Math.max(0, nanos / 1000);
+            buckets.incrementAndGet(index(micros));
+            count.increment();
+            sum.add(nanos);
+            max.accumulateAndGet(nanos, Math::max);
+        }
+
+        private static int index(long micros){
+            if (micros < SUB_BUCKETS) return (int) micros;
+            int magnitude = 63 - Long.numberOfLeadingZeros(micros);
+            int sub = (int) (micros >>> (magnitude - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+            return (magnitude - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+        }
+
+        /**
+         * @return upper bound in nanoseconds of the bucket holding the value at this index
+         */
+        private static double upperBound(int index){
+            if (index < SUB_BUCKETS) return (index + 1) * 1000.0;
+            int magnitude = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+            int sub = index % SUB_BUCKETS;
+            return ((SUB_BUCKETS + sub + 1L) << (magnitude - SUB_BUCKET_BITS)) * 1000.0;
+        }
+
+        /**
+         * @return quantile in nanoseconds, capped at the largest value recorded
+         */
+        double quantile(double quantile){
+            long total = count.sum();
+            if (total == 0) return 0;
+            long rank = (long) Math.ceil(quantile * total);
+            long seen = 0;
+            for (int i = 0; i < buckets.length(); i++) {
+                seen += buckets.get(i);
+                if (seen >= rank) return Math.min(upperBound(i), max.get());
+            }
+            return max.get();
+        }
+    }
+
+    /**
+     * Read-only MBean whose attributes are the current metrics, so the attribute list grows as metrics appear
+     */
+    private class MetricsMBean implements DynamicMBean {
+
+        private Map<String, Object> attributes(){
+            Map<String, Object> attributes = new TreeMap<>();
+            histograms.forEach((key, histogram) -> {
+                attributes.put(key + " p50", histogram.quantile(0.5) / 1e9);
+                attributes.put(key + " p99", histogram.quantile(0.99) / 1e9);
+                attributes.put(key + " max", histogram.max.get() / 1e9);
+                attributes.put(key + " count", histogram.count.sum());
+            });
+            counters.forEach((key, value) -> attributes.put(key, value.sum()));
+            gauges.forEach((key, value) -> attributes.put(key, value.sum()));
+            return attributes;
+        }
+
+        @Override
+        public Object getAttribute(String attribute) throws AttributeNotFoundException {
+            Object value = this.attributes().get(attribute);
+            if (value == null) throw new AttributeNotFoundException(attribute);
+            return value;
+        }
+
+        @Override
+        public AttributeList getAttributes(String[] names){
+            Map<String, Object> attributes = this.attributes();
+            AttributeList list = new AttributeList();
+            for (String name : names) {
+                if (attributes.containsKey(name)) list.add(new Attribute(name, attributes.get(name)));
+            }
+            return list;
+        }
+
+        @Override
+        public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+            throw new AttributeNotFoundException("Metrics are read-only");
+        }
+
+        @Override
+        public AttributeList setAttributes(AttributeList attributes){
+            return new AttributeList();
+        }
+
+        @Override
+        public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+            throw new ReflectionException(new NoSuchMethodException(actionName));
+        }
+
+        @Override
+        public MBeanInfo getMBeanInfo(){
+            List<MBeanAttributeInfo> infos = new ArrayList<>();
+            this.attributes().forEach((name, value) -> infos.add(new MBeanAttributeInfo(name, value.getClass().getName(),
+                    name, true, false, false)));
+            return new MBeanInfo(InMemoryMetrics.class.getName(), "Assistants API client metrics",
+                    infos.toArray(new MBeanAttributeInfo[0]), null, null, null);
+        }
+    }
+}
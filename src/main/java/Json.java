@@ -0,0 +1,73 @@
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+
+/**
+ * The single ObjectMapper of the client, configured once, with readers and writers built ahead of time for every
+ * payload type. ObjectReader and ObjectWriter are immutable and thread-safe, so they are shared by every request
+ */
+public final class Json {
+
+    public static final ObjectMapper MAPPER = new ObjectMapper()
+            .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false)
+            .setSerializationInclusion(JsonInclude.Include.NON_NULL);
+
+    public static final ObjectWriter WRITER = MAPPER.writer();
+    public static final ObjectReader TREE = MAPPER.reader();
+
+    public static final ObjectReader ASSISTANT = MAPPER.readerFor(ApiTypes.Assistant.class);
+    public static final ObjectReader ASSISTANT_LIST = MAPPER.readerFor(new TypeReference<ApiTypes.ListPage<ApiTypes.Assistant>>() { });
+    public static final ObjectReader THREAD = MAPPER.readerFor(ApiTypes.Thread.class);
+    public static final ObjectReader MESSAGE = MAPPER.readerFor(ApiTypes.Message.class);
+    public static final ObjectReader MESSAGE_LIST = MAPPER.readerFor(new TypeReference<ApiTypes.ListPage<ApiTypes.Message>>() { });
+    public static final ObjectReader MESSAGE_DELTA = MAPPER.readerFor(ApiTypes.MessageDelta.class);
+    public static final ObjectReader RUN = MAPPER.readerFor(ApiTypes.Run.class);
+    public static final ObjectReader DELETED = MAPPER.readerFor(ApiTypes.Deleted.class);
+    public static final ObjectReader FILE = MAPPER.readerFor(AssistantConversation.FileResponse.class);
+    public static final ObjectReader UPLOAD = MAPPER.readerFor(ApiTypes.Upload.class);
+    public static final ObjectReader UPLOAD_PART = MAPPER.readerFor(ApiTypes.UploadPart.class);
+
+    private Json(){
+    }
+
+    /**
+     * Binds json with the given reader
+     * @throws UncheckedIOException if json is not valid for the reader's type
+     */
+    public static <T> T read(ObjectReader reader, String json){
+        try {
+            return reader.readValue(json);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public static JsonNode readTree(String json){
+        try {
+            return TREE.readTree(json);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Serialises value, leaving out null fields
+     * @throws UncheckedIOException if value cannot be serialised
+     */
+    public static String write(Object value){
+        try {
+            return WRITER.writeValueAsString(value);
+        } catch (JsonProcessingException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
@@ -0,0 +1,118 @@
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.async.ByteArrayFeeder;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.util.TokenBuffer;
+
+import java.io.IOException;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Flow;
+
+
+/**
+ * Binds a JSON response body while it is being received. Each chunk handed over by the HttpClient is fed to Jackson's
+ * non-blocking parser, so parsing overlaps with receiving and no thread blocks on the socket. Databind cannot bind
+ * from a parser that may run out of input, so the tokens are collected in a TokenBuffer and bound once the body has
+ * ended: the whole body is held until then, as tokens rather than as a String. Chunks are requested one at a time,
+ * so the client only reads ahead of the parser by what it buffers itself
+ */
+public class JsonBodySubscriber<T> implements HttpResponse.BodySubscriber<T> {
+
+    private final ObjectReader reader;
+    private final JsonParser parser;
+    private final ByteArrayFeeder feeder;
+    private final TokenBuffer tokens;
+    private final CompletableFuture<T> body = new CompletableFuture<>();
+
+    private Flow.Subscription subscription;
+    private byte[] chunk = new byte[8192];
+
+    public JsonBodySubscriber(ObjectReader reader){
+        this.reader = reader;
+        try {
+            this.parser = Json.MAPPER.getFactory().createNonBlockingByteArrayParser();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        this.feeder = (ByteArrayFeeder) parser.getNonBlockingInputFeeder();
+        this.tokens = new TokenBuffer(parser);
+    }
+
+    /**
+     * Returns a handler that binds 2xx bodies with reader. Any other body is printed with its status and the
+     * response's body is null
+     * @param reader reader for the expected response type
+     */
+    public static <T> HttpResponse.BodyHandler<T> handler(ObjectReader reader){
+        return responseInfo -> {
+            if (responseInfo.statusCode() / 100 == 2) return new JsonBodySubscriber<>(reader);
+            return HttpResponse.BodySubscribers.mapping(HttpResponse.BodySubscribers.ofString(StandardCharsets.UTF_8), error -> {
+                System.out.println("Error: " + responseInfo.statusCode());
+                System.out.println("Msg: " + error);
+                return null;
+            });
+        };
+    }
+
+    @Override
+    public CompletionStage<T> getBody(){
+        return body;
+    }
+
+    @Override
+    public void onSubscribe(Flow.Subscription subscription){
+        this.subscription = subscription;
+        subscription.request(1);
+    }
+
+    @Override
+    public void onNext(List<ByteBuffer> buffers){
+        if (body.isDone()) return;
+        try {
+            for (ByteBuffer buffer : buffers) {
+                int length = buffer.remaining();
+                if (length > chunk.length) chunk = new byte[length];
+                buffer.get(chunk, 0, length);
+                // The parser has consumed the previous chunk once it reports NOT_AVAILABLE, so it is safe to reuse
+                feeder.feedInput(chunk, 0, length);
+                this.drain();
+            }
+            subscription.request(1);
+        } catch (IOException e) {
+            subscription.cancel();
+            body.completeExceptionally(e);
+        }
+    }
+
+    @Override
+    public void onError(Throwable throwable){
+        body.completeExceptionally(throwable);
+    }
+
+    @Override
+    public void onComplete(){
+        if (body.isDone()) return;
+        try {
+            feeder.endOfInput();
+            this.drain();
+            body.complete(reader.readValue(tokens.asParser()));
+        } catch (IOException e) {
+            body.completeExceptionally(e);
+        }
+    }
+
+    /**
+     * Moves every token the parser can produce from the input fed so far into the token buffer
+     */
+    private void drain() throws IOException {
+        JsonToken token;
+        while ((token = parser.nextToken()) != null && token != JsonToken.NOT_AVAILABLE) {
+            tokens.copyCurrentEvent(parser);
+        }
+    }
+}
@@ -0,0 +1,478 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+
+/**
+ * Local alternative to the hosted file_search tool. Files are split into overlapping passages and indexed in a BM25
+ * inverted index, so the passages most relevant to a question can be put into the message before the run instead of
+ * being searched for remotely during it, with a latency that is known and can be benchmarked offline.
+ *
+ * Every indexed content is an immutable segment file in the index directory, named after its SHA-256: a table of
+ * passages, the term dictionary, read into memory when the segment is opened, and the postings, which stay on disk and
+ * are read through a read-only memory mapping. Files with the same content share a segment. The content each file was
+ * last indexed with is appended to a sources log in the directory, so indexing a changed file moves it to the segment
+ * of its new content, and a segment is deleted once no file has its content anymore. The index is reopened from its
+ * directory on restart.
+ *
+ * Files are extracted concurrently, only writing segments is serialized. indexAsync runs on the retriever's own
+ * virtual threads, so reading files never blocks the common fork-join pool
+ */
+public class LocalRetriever {
+
+    public static final int DEFAULT_PASSAGE_WORDS = 200;
+
+    private static final int MAGIC = 0x424d3235;
+    private static final String SOURCES_FILE = "sources.log";
+    private static final double K1 = 1.2;
+    private static final double B = 0.75;
+    // Longer words are not indexed: they are hashes, encoded data or URLs rather than words a question would use, and
+    // the segment stores the length of a term in a short
+    private static final int MAX_TERM_LENGTH = 64;
+    private static final Pattern WORD = Pattern.compile("[\\p{L}\\p{N}]+");
+    private static final Set<String> STOP_WORDS = Set.of("a", "an", "and", "are", "as", "at", "be", "but", "by", "for",
+            "from", "has", "have", "how", "i", "if", "in", "into", "is", "it", "its", "of", "on", "or", "that", "the",
+            "their", "then", "there", "these", "this", "to", "was", "were", "what", "when", "where", "which", "who",
+            "why", "will", "with", "you", "your");
+
+    /**
+     * A passage of an indexed file
+     * @param source path of the file it was taken from
+     * @param score BM25 score of the passage for the query
+     */
+    public record Passage(String source, String text, double score) { }
+
+    private final Path directory;
+    private final int passageWords;
+    private final TextExtractor extractor;
+    private final Path sourcesFile;
+    private final List<Segment> segments = new CopyOnWriteArrayList<>();
+    // Hash of the content each file was last indexed with, by absolute path. Changed under writeLock
+    private final Map<String, String> hashesBySource = new ConcurrentHashMap<>();
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private final ExecutorService indexer = Executors.newVirtualThreadPerTaskExecutor();
+    private volatile String version;
+
+    public LocalRetriever(Path directory) throws IOException {
+        this(directory, DEFAULT_PASSAGE_WORDS);
+    }
+
+    /**
+     * Opens the index in directory, creating the directory if needed. The text of indexed PDFs is cached in its text
+     * subdirectory
+     * @param passageWords number of words per passage, consecutive passages overlap by a fifth of it
+     */
+    public LocalRetriever(Path directory, int passageWords) throws IOException {
+        this(directory, passageWords, new TextExtractor(directory.resolve("text")));
+    }
+
+    /**
+     * Opens the index in directory, creating the directory if needed. Segments no file has the content of anymore,
+     * left by a process that stopped between logging a file's new content and deleting its old segment, are deleted
+     * @param passageWords number of words per passage, consecutive passages overlap by a fifth of it
+     * @param extractor extractor of the text of indexed files
+     */
+    public LocalRetriever(Path directory, int passageWords, TextExtractor extractor) throws IOException {
+        this.directory = directory;
+        this.passageWords = passageWords;
+        this.extractor = extractor;
+        this.sourcesFile = directory.resolve(SOURCES_FILE);
+        Files.createDirectories(directory);
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*.seg")) {
+            for (Path file : files) segments.add(Segment.open(file));
+        }
+        if (Files.exists(sourcesFile)) {
+            for (String line : Files.readAllLines(sourcesFile, StandardCharsets.UTF_8)) {
+                // put <hash> <path>
+                String[] fields = line.split(" ", 3);
+                if (fields[0].equals("put") && fields.length == 3) hashesBySource.put(fields[2], fields[1]);
+            }
+        }
+        for (Segment segment : segments) {
+            // Written before sources were logged, its own source is the file it was indexed from
+            if (!hashesBySource.containsValue(segment.hash) && !hashesBySource.containsKey(segment.source)) {
+                hashesBySource.put(segment.source, segment.hash);
+                this.logSource(segment.source, segment.hash);
+            }
+        }
+        for (Segment segment : segments) this.release(segment.hash);
+        this.updateVersion();
+    }
+
+    /**
+     * Indexes a file, see index(Path), on a thread of this retriever
+     * @return future completing with the number of passages indexed, 0 if this content was already indexed, -1 if no
+     * text could be extracted
+     */
+    public CompletableFuture<Integer> indexAsync(Path file){
+        return CompletableFuture.supplyAsync(() -> this.index(file), indexer);
+    }
+
+    /**
+     * Extracts the text of a file with TextExtractor, splits it into passages and indexes them. If the file was
+     * indexed before with other content, its passages of that content are no longer found, unless another file still
+     * has that content
+     * @return number of passages indexed, 0 if this content was already indexed, -1 if no text could be extracted
+     */
+    public int index(Path file){
+        String hash;
+        try {
+            hash = FileHashIndex.sha256(file);
+        } catch (IOException e) {
+            System.err.println("Failed to read " + file + ": " + e.getMessage());
+            e.printStackTrace();
+            return -1;
+        }
+        String source = file.toAbsolutePath().normalize().toString();
+        if (hash.equals(hashesBySource.get(source))) return 0;
+        Path segmentFile = directory.resolve(hash + ".seg");
+
+        // Another file with this content is indexed already, otherwise the text is extracted before taking the lock.
+        // The file was just hashed, so the extractor does not read it a second time to find its cached text
+        List<String> passages = Files.exists(segmentFile) ? null : this.extract(file, hash);
+        writeLock.lock();
+        try {
+            int indexed = 0;
+            // Indexed by another thread in the meantime, or the segment was deleted before the lock was taken
+            if (!Files.exists(segmentFile)) {
+                if (passages == null) passages = this.extract(file, hash);
+                if (passages.isEmpty()) return -1;
+                Path temp = directory.resolve(hash + ".seg.tmp");
+                Files.write(temp, encode(source, passages));
+                Files.move(temp, segmentFile, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                segments.add(Segment.open(segmentFile));
+                indexed = passages.size();
+            }
+
+            // The file's earlier content is dropped unless another file has it too
+            String previous = hashesBySource.put(source, hash);
+            this.logSource(source, hash);
+            if (previous != null) this.release(previous);
+            this.release(hash);
+            this.updateVersion();
+            return indexed;
+        } catch (IOException e) {
+            System.err.println("Failed to index " + file + ": " + e.getMessage());
+            e.printStackTrace();
+            return -1;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * @return passages of the file's text, empty if no text could be extracted
+     */
+    private List<String> extract(Path file, String hash){
+        List<String> passages = passages(extractor.extract(file, hash), passageWords);
+        if (passages.isEmpty()) System.err.println("No text extracted from " + file + ", not indexed");
+        return passages;
+    }
+
+    /**
+     * Deletes the segment of this content if no file has the content anymore, otherwise makes sure its passages are
+     * reported from a file that still has it. Called under writeLock, or from the constructor
+     */
+    private void release(String hash) throws IOException {
+        Segment segment = null;
+        for (Segment candidate : segments) {
+            if (candidate.hash.equals(hash)) segment = candidate;
+        }
+        if (segment == null || hash.equals(hashesBySource.get(segment.source))) return;
+        for (Map.Entry<String, String> entry : hashesBySource.entrySet()) {
+            if (entry.getValue().equals(hash)) {
+                segment.source = entry.getKey();
+                return;
+            }
+        }
+        segments.remove(segment);
+        Files.deleteIfExists(segment.file);
+    }
+
+    /**
+     * Appends that the file was indexed with this content to the sources log, before any segment it replaces is
+     * deleted, so a restart never finds a file's segment deleted while the log still points to it
+     */
+    private void logSource(String source, String hash){
+        try {
+            Files.writeString(sourcesFile, "put " + hash + " " + source + "\n", StandardCharsets.UTF_8,
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        } catch (IOException e) {
+            System.err.println("Failed to write sources of index " + directory + ": " + e.getMessage());
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Ranks every passage of the index against the query with BM25
+     * @param k maximum number of passages returned
+     * @return best passages first, empty if nothing matches
+     */
+    public List<Passage> search(String query, int k){
+        long start = System.nanoTime();
+        List<Segment> segments = List.copyOf(this.segments);
+        long passageCount = 0;
+        long termCount = 0;
+        for (Segment segment : segments) {
+            passageCount += segment.passageCount;
+            termCount += segment.termCount;
+        }
+        Set<String> queryTerms = new LinkedHashSet<>(terms(query));
+        if (passageCount == 0 || queryTerms.isEmpty() || k <= 0) return List.of();
+        double averageLength = (double) termCount / passageCount;
+
+        // Document frequencies are summed over segments so scores are comparable across them
+        Map<String, Double> idf = new HashMap<>();
+        for (String term : queryTerms) {
+            long df = 0;
+            for (Segment segment : segments) {
+                Segment.Term entry = segment.dictionary.get(term);
+                if (entry != null) df += entry.df();
+            }
+            if (df > 0) idf.put(term, Math.log(1 + (passageCount - df + 0.5) / (df + 0.5)));
+        }
+
+        record Candidate(Segment segment, int passage, double score) { }
+        PriorityQueue<Candidate> top = new PriorityQueue<>(Comparator.comparingDouble(Candidate::score));
+        for (Segment segment : segments) {
+            double[] scores = null;
+            for (Map.Entry<String, Double> term : idf.entrySet()) {
+                Segment.Term entry = segment.dictionary.get(term.getKey());
+                if (entry == null) continue;
+                if (scores == null) scores = new double[segment.passageCount];
+                for (int i = 0; i < entry.df(); i++) {
+                    long posting = entry.offset() + (long) i * 8;
+                    int passage = segment.data.getInt((int) posting);
+                    int tf = segment.data.getInt((int) posting + 4);
+                    double norm = K1 * (1 - B + B * segment.length(passage) / averageLength);
+                    scores[passage] += term.getValue() * tf * (K1 + 1) / (tf + norm);
+                }
+            }
+            if (scores == null) continue;
+            for (int passage = 0; passage < scores.length; passage++) {
+                if (scores[passage] <= 0) continue;
+                if (top.size() < k) {
+                    top.add(new Candidate(segment, passage, scores[passage]));
+                } else if (scores[passage] > top.peek().score()) {
+                    top.poll();
+                    top.add(new Candidate(segment, passage, scores[passage]));
+                }
+            }
+        }
+
+        List<Passage> passages = new ArrayList<>();
+        while (!top.isEmpty()) {
+            Candidate candidate = top.poll();
+            passages.add(new Passage(candidate.segment().source, candidate.segment().text(candidate.passage()), candidate.score()));
+        }
+        Collections.reverse(passages);
+        Metrics.registry().recordTime("retrieval_seconds", System.nanoTime() - start);
+        return passages;
+    }
+
+    /**
+     * @return identifier of the indexed content, which changes whenever a file is indexed or replaced, e.g. to key
+     * answers given with passages of the index
+     */
+    public String version(){
+        return version;
+    }
+
+    /**
+     * Segments are named after the SHA-256 of their file, so their sorted names identify the content of the index
+     */
+    private void updateVersion(){
+        List<String> names = new ArrayList<>();
+        for (Segment segment : segments) names.add(segment.file.getFileName().toString());
+        names.sort(null);
+        version = String.join(",", names);
+    }
+
+    /**
+     * @return number of passages in the index
+     */
+    public long passageCount(){
+        long count = 0;
+        for (Segment segment : segments) count += segment.passageCount;
+        return count;
+    }
+
+    /**
+     * @return lower-cased words of the text, without stop words and words over MAX_TERM_LENGTH characters
+     */
+    static List<String> terms(String text){
+        List<String> terms = new ArrayList<>();
+        Matcher matcher = WORD.matcher(text);
+        while (matcher.find()) {
+            String term = matcher.group().toLowerCase(Locale.ROOT);
+            if (term.length() <= MAX_TERM_LENGTH && !STOP_WORDS.contains(term)) terms.add(term);
+        }
+        return terms;
+    }
+
+    /**
+     * Splits text into passages of passageWords words, each starting a fifth of a passage before the previous one ends
+     * so a sentence cut at a boundary is whole in one of them
+     */
+    static List<String> passages(String text, int passageWords){
+        String[] words = text.strip().split("\\s+");
+        List<String> passages = new ArrayList<>();
+        if (words.length == 0 || words[0].isEmpty()) return passages;
+        int step = Math.max(1, passageWords - passageWords / 5);
+        for (int start = 0; start < words.length; start += step) {
+            int end = Math.min(words.length, start + passageWords);
+            passages.add(String.join(" ", Arrays.asList(words).subList(start, end)));
+            if (end == words.length) break;
+        }
+        return passages;
+    }
+
+    /**
+     * Lays out a segment: header, source, passage table (terms, text offset, text length), dictionary (term, df,
+     * postings offset), postings (passage, term frequency) and the passages' UTF-8 text
+     */
+    private static byte[] encode(String source, List<String> passages){
+        int[] lengths = new int[passages.size()];
+        byte[][] texts = new byte[passages.size()][];
+        // term -> postings as passage, tf pairs, in passage order
+        SortedMap<String, List<int[]>> postings = new TreeMap<>();
+        for (int passage = 0; passage < passages.size(); passage++) {
+            List<String> terms = terms(passages.get(passage));
+            lengths[passage] = terms.size();
+            texts[passage] = passages.get(passage).getBytes(StandardCharsets.UTF_8);
+            Map<String, Integer> frequencies = new HashMap<>();
+            for (String term : terms) frequencies.merge(term, 1, Integer::sum);
+            for (Map.Entry<String, Integer> frequency : frequencies.entrySet()) {
+                postings.computeIfAbsent(frequency.getKey(), t -> new ArrayList<>()).add(new int[]{passage, frequency.getValue()});
+            }
+        }
+        // postings of a term are added in the order the passages were processed
+        postings.values().forEach(list -> list.sort(Comparator.comparingInt(posting -> posting[0])));
+
+        byte[] sourceBytes = source.getBytes(StandardCharsets.UTF_8);
+        Map<String, byte[]> termBytes = new LinkedHashMap<>();
+        long size = 4 + 4 + 8 + 4 + 4 + sourceBytes.length + 16L * passages.size();
+        for (Map.Entry<String, List<int[]>> entry : postings.entrySet()) {
+            byte[] bytes = entry.getKey().getBytes(StandardCharsets.UTF_8);
+            termBytes.put(entry.getKey(), bytes);
+            size += 2 + bytes.length + 4 + 8 + 8L * entry.getValue().size();
+        }
+        long textsStart = size;
+        for (byte[] text : texts) size += text.length;
+        if (size > Integer.MAX_VALUE) throw new IllegalArgumentException("Segment of " + source + " would exceed 2 GB");
+
+        ByteBuffer buffer = ByteBuffer.allocate((int) size);
+        long totalTerms = 0;
+        for (int length : lengths) totalTerms += length;
+        buffer.putInt(MAGIC).putInt(passages.size()).putLong(totalTerms).putInt(postings.size());
+        buffer.putInt(sourceBytes.length).put(sourceBytes);
+
+        long textOffset = textsStart;
+        for (int passage = 0; passage < passages.size(); passage++) {
+            buffer.putInt(lengths[passage]).putLong(textOffset).putInt(texts[passage].length);
+            textOffset += texts[passage].length;
+        }
+
+        long postingsOffset = buffer.position();
+        for (Map.Entry<String, List<int[]>> entry : postings.entrySet()) {
+            postingsOffset += 2 + termBytes.get(entry.getKey()).length + 4 + 8;
+        }
+        for (Map.Entry<String, List<int[]>> entry : postings.entrySet()) {
+            byte[] bytes = termBytes.get(entry.getKey());
+            buffer.putShort((short) bytes.length).put(bytes).putInt(entry.getValue().size()).putLong(postingsOffset);
+            postingsOffset += 8L * entry.getValue().size();
+        }
+        for (List<int[]> list : postings.values()) {
+            for (int[] posting : list) buffer.putInt(posting[0]).putInt(posting[1]);
+        }
+        for (byte[] text : texts) buffer.put(text);
+        return buffer.array();
+    }
+
+    /**
+     * An open segment. Only its dictionary is held on the heap, everything else is read from the mapping
+     */
+    private static class Segment {
+
+        private record Term(int df, long offset) { }
+
+        final Path file;
+        // SHA-256 of the content, the name of the segment's file
+        final String hash;
+        final MappedByteBuffer data;
+        // A file with this content, the one it was indexed from until that file changes
+        volatile String source;
+        final int passageCount;
+        final long termCount;
+        final Map<String, Term> dictionary;
+        private final int passageTable;
+
+        private Segment(Path file, MappedByteBuffer data, String source, int passageCount, long termCount,
+                        Map<String, Term> dictionary, int passageTable){
+            this.file = file;
+            String name = file.getFileName().toString();
+            this.hash = name.substring(0, name.length() - ".seg".length());
+            this.data = data;
+            this.source = source;
+            this.passageCount = passageCount;
+            this.termCount = termCount;
+            this.dictionary = dictionary;
+            this.passageTable = passageTable;
+        }
+
+        static Segment open(Path file) throws IOException {
+            MappedByteBuffer data;
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                // The mapping stays valid after the channel is closed
+                data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            }
+            ByteBuffer header = data.duplicate();
+            if (header.getInt() != MAGIC) throw new IOException("Not an index segment: " + file);
+            int passageCount = header.getInt();
+            long termCount = header.getLong();
+            int dictionarySize = header.getInt();
+            byte[] source = new byte[header.getInt()];
+            header.get(source);
+            int passageTable = header.position();
+            header.position(passageTable + 16 * passageCount);
+
+            Map<String, Term> dictionary = new HashMap<>(dictionarySize * 2);
+            for (int i = 0; i < dictionarySize; i++) {
+                byte[] term = new byte[header.getShort()];
+                header.get(term);
+                dictionary.put(new String(term, StandardCharsets.UTF_8), new Term(header.getInt(), header.getLong()));
+            }
+            return new Segment(file, data, new String(source, StandardCharsets.UTF_8), passageCount, termCount, dictionary, passageTable);
+        }
+
+        /**
+         * @return number of terms in a passage
+         */
+        int length(int passage){
+            return data.getInt(passageTable + 16 * passage);
+        }
+
+        String text(int passage){
+            int entry = passageTable + 16 * passage;
+            byte[] text = new byte[data.getInt(entry + 12)];
+            data.get((int) data.getLong(entry + 4), text);
+            return new String(text, StandardCharsets.UTF_8);
+        }
+    }
+}
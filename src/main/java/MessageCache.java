@@ -0,0 +1,126 @@
+import java.net.http.HttpResponse;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+
+
+/**
+ * Local copy of the most recent messages of one thread, oldest first. Messages the conversation creates itself are
+ * added as they are returned by the API, and sync only asks for messages after the last one a previous sync read, so
+ * the cost of a sync does not grow with the length of the thread. Like ConversationHistory, the cache is bounded: the
+ * oldest messages are dropped once it holds more than its maximum
+ */
+public class MessageCache {
+
+    /** Default maximum number of messages, the same as the default retention of a conversation's history */
+    public static final int DEFAULT_MAX_MESSAGES = ConversationHistory.Retention.DEFAULT.maxMessages();
+
+    private static final int PAGE_SIZE = 100;
+
+    private final OpenAITransport transport;
+    private final String threadId;
+    private final int maxMessages;
+
+    private final ArrayDeque<ApiTypes.Message> messages = new ArrayDeque<>();
+    private final Set<String> messageIds = new HashSet<>();
+    // Last message read by a sync. Messages added locally do not move it, others may have been posted before them
+    private String syncCursor;
+    // Number of messages at the end added locally since the last sync, which places them in the thread's order
+    private int unsynced;
+
+    public MessageCache(OpenAITransport transport, String threadId){
+        this(transport, threadId, DEFAULT_MAX_MESSAGES);
+    }
+
+    /**
+     * @param maxMessages maximum number of messages kept
+     */
+    public MessageCache(OpenAITransport transport, String threadId, int maxMessages){
+        assert maxMessages > 0 : "Maximum number of messages must be positive";
+        this.transport = transport;
+        this.threadId = threadId;
+        this.maxMessages = maxMessages;
+    }
+
+    public String getThreadId(){
+        return threadId;
+    }
+
+    /**
+     * Appends a message received from the API, e.g. the response to a create message request or the message of a
+     * thread.message.completed event. Messages already held are ignored
+     * @param message message of this cache's thread
+     */
+    public synchronized void add(ApiTypes.Message message){
+        if (message == null || message.id() == null || !messageIds.add(message.id())) return;
+        messages.addLast(message);
+        unsynced++;
+        this.trim();
+    }
+
+    private void trim(){
+        while (messages.size() > maxMessages) messageIds.remove(messages.removeFirst().id());
+        unsynced = Math.min(unsynced, messages.size());
+    }
+
+    /**
+     * @return copy of the cached messages, oldest first
+     */
+    public synchronized List<ApiTypes.Message> getMessages(){
+        return new ArrayList<>(messages);
+    }
+
+    /**
+     * @return most recent cached message, null if none is cached
+     */
+    public synchronized ApiTypes.Message getLatest(){
+        return messages.isEmpty() ? null : messages.getLast();
+    }
+
+    /**
+     * Fetches the messages added to the thread since the last sync, following the after cursor page by page. The first
+     * sync reads the whole thread, keeping its most recent messages
+     * @return future completing with the messages that were not cached yet, oldest first
+     */
+    public CompletableFuture<List<ApiTypes.Message>> sync(){
+        String after;
+        synchronized (this) {
+            after = syncCursor;
+        }
+        return this.fetchAfter(after, new ArrayList<>());
+    }
+
+    private CompletableFuture<List<ApiTypes.Message>> fetchAfter(String after, List<ApiTypes.Message> added){
+        String path = "/threads/" + threadId + "/messages?order=asc&limit=" + PAGE_SIZE + (after == null ? "" : "&after=" + after);
+        return transport.<ApiTypes.ListPage<ApiTypes.Message>>getAsync(path, Json.MESSAGE_LIST)
+                .thenApply(HttpResponse::body)
+                .thenCompose(page -> {
+                    if (page == null || page.data() == null || page.data().isEmpty()) {
+                        return CompletableFuture.completedFuture(added);
+                    }
+                    synchronized (this) {
+                        // The page lists messages in the thread's order, so those added locally are put back after it
+                        List<ApiTypes.Message> local = new ArrayList<>(unsynced);
+                        for (; unsynced > 0; unsynced--) local.addFirst(messages.removeLast());
+                        Set<String> localIds = new HashSet<>();
+                        for (ApiTypes.Message message : local) localIds.add(message.id());
+                        for (ApiTypes.Message message : page.data()) {
+                            if (localIds.remove(message.id())) {
+                                messages.addLast(message);
+                            } else if (messageIds.add(message.id())) {
+                                messages.addLast(message);
+                                added.add(message);
+                            }
+                        }
+                        for (ApiTypes.Message message : local) {
+                            if (localIds.contains(message.id())) {
+                                messages.addLast(message);
+                                unsynced++;
+                            }
+                        }
+                        this.trim();
+                        syncCursor = page.data().getLast().id();
+                    }
+                    return page.hasMore() ? this.fetchAfter(page.data().getLast().id(), added) : CompletableFuture.completedFuture(added);
+                });
+    }
+}
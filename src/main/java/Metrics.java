@@ -0,0 +1,54 @@
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
+
+
+/**
+ * Entry point for recording metrics. Everything is recorded into the JVM-wide registry, an InMemoryMetrics (also
+ * published over JMX and rendered by ConversationServer's /metrics) unless another one has been set
+ */
+public final class Metrics {
+
+    private static final InMemoryMetrics IN_MEMORY = new InMemoryMetrics();
+    private static volatile MetricsRegistry registry = IN_MEMORY;
+
+    static {
+        IN_MEMORY.registerMBean();
+    }
+
+    private Metrics(){
+    }
+
+    public static MetricsRegistry registry(){
+        return registry;
+    }
+
+    /**
+     * Replaces the registry metrics are recorded into
+     */
+    public static void setRegistry(MetricsRegistry registry){
+        Metrics.registry = registry;
+    }
+
+    /**
+     * @return the built-in registry, which only receives metrics while it is the current registry
+     */
+    public static InMemoryMetrics inMemory(){
+        return IN_MEMORY;
+    }
+
+    /**
+     * Times an asynchronous operation, from this call until the returned future completes, in
+     * operation_seconds{operation=...}. Operations that complete exceptionally or with the null or empty string
+     * sentinel are also counted in operation_errors_total
+     * @param operation name of the operation, e.g. createThread
+     * @param call starts the operation
+     */
+    public static <T> CompletableFuture<T> timed(String operation, Supplier<CompletableFuture<T>> call){
+        long start = System.nanoTime();
+        return call.get().whenComplete((result, e) -> {
+            MetricsRegistry metrics = registry;
+            metrics.recordTime("operation_seconds", System.nanoTime() - start, "operation", operation);
+            if (e != null || result == null || "".equals(result)) metrics.increment("operation_errors_total", 1, "operation", operation);
+        });
+    }
+}
@@ -0,0 +1,23 @@
+/**
+ * Destination of the client's metrics. Metric names follow Prometheus conventions (snake case, unit suffix) and
+ * labels are passed as alternating names and values, e.g. recordTime("api_request_seconds", nanos, "endpoint",
+ * "POST /threads"). Implementations must be thread-safe and cheap, they are called on the request path. Install one
+ * with Metrics.setRegistry, e.g. to forward to an existing monitoring system
+ */
+public interface MetricsRegistry {
+
+    /**
+     * Records a duration in a histogram
+     */
+    void recordTime(String name, long nanos, String... labels);
+
+    /**
+     * Adds to a counter that only goes up, e.g. bytes sent
+     */
+    void increment(String name, long amount, String... labels);
+
+    /**
+     * Adds to a gauge that goes up and down, e.g. requests in flight
+     */
+    void adjust(String name, long delta, String... labels);
+}
@@ -0,0 +1,710 @@
+import com.sun.net.httpserver.Filter;
+import com.sun.net.httpserver.HttpContext;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+
+
+/**
+ * In-process stand-in for the parts of the OpenAI Assistants API used by AssistantConversation: assistants, threads,
+ * messages, streamed runs, files and uploads. Conversations (and the ConversationServer hosting them) can be exercised
+ * end to end, load tested and benchmarked without an API key. Point a transport at it with
+ * OpenAITransport.builder().baseUrl(mock.getBaseUrl()), or run it on its own with main and set OPENAI_BASE_URL
+ *
+ * Runs answer by echoing the last user message, streamed word by word as thread.message.delta events, one word per
+ * token. Uploads made through the Uploads API are assembled from their parts.
+ *
+ * By default every request is answered at once. To look more like the real API, every request can be delayed, runs
+ * can stream at a given token rate, a share of requests can fail with a 500, a share of POSTs can be applied and
+ * then answered with a 500 (as when a connection drops after the server handled a create), and requests can be held
+ * to a rate limit, answered with the x-ratelimit headers and 429s past it. Part requests of uploads can be made to fail
+ * partway through their body to exercise resumable uploads
+ */
+public class MockAssistantsServer {
+
+    private static final Map<String, Object> SERVER_ERROR = Map.of("error", Map.of(
+            "message", "The server had an error while processing your request. Sorry about that!", "type", "server_error"));
+
+    private final HttpServer server;
+    private final AtomicLong ids = new AtomicLong();
+
+    // assistant id -> assistant, in order of creation
+    private final Map<String, ApiTypes.Assistant> assistants = Collections.synchronizedMap(new LinkedHashMap<>());
+    // assistant id -> ids of the files attached to it
+    private final Map<String, Set<String>> assistantFiles = new ConcurrentHashMap<>();
+    // thread id -> messages of the thread, oldest first
+    private final Map<String, List<ApiTypes.Message>> threads = new ConcurrentHashMap<>();
+    // upload id -> pending upload
+    private final Map<String, PendingUpload> uploads = new ConcurrentHashMap<>();
+    // file id -> file uploaded with POST /files or created by a completed upload, in order of creation
+    private final Map<String, StoredFile> files = Collections.synchronizedMap(new LinkedHashMap<>());
+    // POSTs being handled that are answered with SERVER_ERROR once applied. Not an exchange attribute, as those are
+    // shared by every exchange of a context
+    private final Set<HttpExchange> failingAfterApply = ConcurrentHashMap.newKeySet();
+
+    private volatile double partFailureRate;
+    private volatile Duration latency = Duration.ZERO;
+    private volatile Duration latencyJitter = Duration.ZERO;
+    private volatile double tokensPerSecond;
+    private volatile double errorRate;
+    private volatile double errorAfterApplyRate;
+    private volatile RateLimiter rateLimiter;
+
+    private record PendingUpload(ApiTypes.CreateUpload request, Map<String, byte[]> parts) { }
+
+    private record StoredFile(AssistantConversation.FileResponse info, byte[] content) { }
+
+    // Part of a multipart/form-data body, filename is null for plain fields
+    private record FormPart(String filename, byte[] content) { }
+
+    public MockAssistantsServer(int port) throws IOException {
+        this.server = HttpServer.create(new InetSocketAddress("localhost", port), 0);
+        this.server.setExecutor(Executors.newVirtualThreadPerTaskExecutor());
+        this.addContext("/v1/assistants", this::handleAssistants);
+        this.addContext("/v1/threads", this::handleThreads);
+        this.addContext("/v1/files", this::handleFiles);
+        this.addContext("/v1/uploads", this::handleUploads);
+    }
+
+    private void addContext(String path, com.sun.net.httpserver.HttpHandler handler){
+        HttpContext context = this.server.createContext(path, handler);
+        context.getFilters().add(new ApiBehaviour());
+    }
+
+    /**
+     * Delays every request before it is handled
+     * @param latency time every request waits
+     * @param jitter upper bound of a uniformly random extra wait, zero for none
+     */
+    public void setLatency(Duration latency, Duration jitter){
+        this.latency = latency;
+        this.latencyJitter = jitter;
+    }
+
+    /**
+     * Paces the thread.message.delta events of runs
+     * @param tokensPerSecond rate at which words of the reply are sent, 0 to send them as fast as possible
+     */
+    public void setTokensPerSecond(double tokensPerSecond){
+        this.tokensPerSecond = tokensPerSecond;
+    }
+
+    /**
+     * Makes a share of all requests fail with a 500 server_error before they are handled
+     * @param errorRate probability between 0 and 1 that a request fails
+     */
+    public void setErrorRate(double errorRate){
+        this.errorRate = errorRate;
+    }
+
+    /**
+     * Makes a share of POST requests fail with a 500 server_error after they are handled: the thread, message, run,
+     * assistant or file is created, but the client is not told, so resending the request creates it again
+     * @param errorAfterApplyRate probability between 0 and 1 that a POST fails after it is applied
+     */
+    public void setErrorAfterApplyRate(double errorAfterApplyRate){
+        this.errorAfterApplyRate = errorAfterApplyRate;
+    }
+
+    /**
+     * Holds requests to a rate limit, reported on every response in the x-ratelimit-*-requests headers the way the
+     * API does. The budget refills continuously, and requests past it are answered with a 429 and a retry-after-ms
+     * of the time until the next request is allowed
+     * @param requestsPerMinute size of the budget, 0 for no limit
+     */
+    public void setRequestsPerMinute(int requestsPerMinute){
+        this.rateLimiter = requestsPerMinute > 0 ? new RateLimiter(requestsPerMinute) : null;
+    }
+
+    /**
+     * Makes a share of upload part requests fail: the server reads half of the part and drops the connection without
+     * answering
+     * @param partFailureRate probability between 0 and 1 that a part request fails
+     */
+    public void setPartFailureRate(double partFailureRate){
+        this.partFailureRate = partFailureRate;
+    }
+
+    /**
+     * @return content of a file created by a completed upload, null if there is no such file
+     */
+    public byte[] getFileContent(String fileId){
+        StoredFile file = files.get(fileId);
+        return file == null ? null : file.content();
+    }
+
+    /**
+     * @return ids of the files attached to an assistant
+     */
+    public Set<String> getAssistantFiles(String assistantId){
+        return Set.copyOf(assistantFiles.getOrDefault(assistantId, Set.of()));
+    }
+
+    public void start(){
+        server.start();
+    }
+
+    public void stop(){
+        server.stop(0);
+    }
+
+    public int getPort(){
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * @return base URL to be passed to OpenAITransport.Builder.baseUrl
+     */
+    public String getBaseUrl(){
+        return "http://localhost:" + getPort() + "/v1";
+    }
+
+    private void handleAssistants(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            // /v1/assistants[/{assistant_id}[/files]]
+            String[] path = exchange.getRequestURI().getPath().split("/");
+            String method = exchange.getRequestMethod();
+            String assistantId = path.length > 3 ? path[3] : null;
+            String resource = path.length > 4 ? path[4] : null;
+
+            if (assistantId == null && method.equals("POST")) {
+                ApiTypes.CreateAssistant body = Json.MAPPER.readValue(exchange.getRequestBody(), ApiTypes.CreateAssistant.class);
+                String id = "asst_" + ids.incrementAndGet();
+                ApiTypes.Assistant assistant = new ApiTypes.Assistant(id, "assistant", now(), body.name(), null,
+                        body.model(), body.instructions(), body.tools(), null, List.of());
+                assistants.put(id, assistant);
+                sendJson(exchange, 200, assistant);
+                return;
+            }
+            if (assistantId == null && method.equals("GET")) {
+                List<ApiTypes.Assistant> all;
+                synchronized (assistants) {
+                    all = new ArrayList<>(assistants.values());
+                }
+                sendJson(exchange, 200, listPage(all, ApiTypes.Assistant::id, queryParameters(exchange)));
+                return;
+            }
+
+            ApiTypes.Assistant assistant = assistantId == null ? null : assistants.get(assistantId);
+            if (assistant == null) {
+                sendJson(exchange, 404, Map.of("error", Map.of("message", "No assistant found with id '" + assistantId + "'.")));
+                return;
+            }
+
+            if (resource == null && method.equals("GET")) {
+                sendJson(exchange, 200, assistant);
+            } else if (resource == null && method.equals("POST")) {
+                ApiTypes.ModifyAssistant body = Json.MAPPER.readValue(exchange.getRequestBody(), ApiTypes.ModifyAssistant.class);
+                ApiTypes.Assistant modified = new ApiTypes.Assistant(assistant.id(), assistant.object(), assistant.createdAt(),
+                        assistant.name(), body.description() != null ? body.description() : assistant.description(),
+                        assistant.model(), assistant.instructions(), assistant.tools(),
+                        body.temperature() != null ? body.temperature() : assistant.temperature(), assistant.fileIds());
+                assistants.put(assistantId, modified);
+                sendJson(exchange, 200, modified);
+            } else if (resource == null && method.equals("DELETE")) {
+                assistants.remove(assistantId);
+                assistantFiles.remove(assistantId);
+                sendJson(exchange, 200, new ApiTypes.Deleted(assistantId, "assistant.deleted", true));
+            } else if ("files".equals(resource) && method.equals("POST")) {
+                ApiTypes.AttachFile body = Json.MAPPER.readValue(exchange.getRequestBody(), ApiTypes.AttachFile.class);
+                if (body.fileId() == null || !files.containsKey(body.fileId())) {
+                    sendJson(exchange, 404, Map.of("error", Map.of("message", "No file found with id '" + body.fileId() + "'.")));
+                    return;
+                }
+                assistantFiles.computeIfAbsent(assistantId, id -> ConcurrentHashMap.newKeySet()).add(body.fileId());
+                this.updateFileIds(assistantId);
+                sendJson(exchange, 200, Map.of("id", body.fileId(), "object", "assistant.file", "created_at", now(), "assistant_id", assistantId));
+            } else {
+                sendJson(exchange, 404, Map.of("error", Map.of("message", "Unsupported request " + method + " " + exchange.getRequestURI())));
+            }
+        }
+    }
+
+    /**
+     * Sets the file_ids of an assistant to the files attached to it
+     */
+    private void updateFileIds(String assistantId){
+        List<String> fileIds = new ArrayList<>(assistantFiles.getOrDefault(assistantId, Set.of()));
+        fileIds.sort(null);
+        assistants.computeIfPresent(assistantId, (id, a) -> new ApiTypes.Assistant(a.id(), a.object(), a.createdAt(),
+                a.name(), a.description(), a.model(), a.instructions(), a.tools(), a.temperature(), List.copyOf(fileIds)));
+    }
+
+    private void handleFiles(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            // /v1/files[/{file_id}[/content]]
+            String[] path = exchange.getRequestURI().getPath().split("/");
+            String method = exchange.getRequestMethod();
+            String fileId = path.length > 3 ? path[3] : null;
+            String resource = path.length > 4 ? path[4] : null;
+
+            if (fileId == null && method.equals("POST")) {
+                Map<String, FormPart> form = multipartParts(exchange, exchange.getRequestBody().readAllBytes());
+                FormPart file = form.get("file");
+                FormPart purpose = form.get("purpose");
+                if (file == null || file.filename() == null || purpose == null) {
+                    sendJson(exchange, 400, Map.of("error", Map.of("message", "Expected a file and a purpose")));
+                    return;
+                }
+                sendJson(exchange, 200, newFile(file.filename(), new String(purpose.content(), StandardCharsets.UTF_8), file.content()));
+                return;
+            }
+            if (fileId == null && method.equals("GET")) {
+                List<AssistantConversation.FileResponse> all = new ArrayList<>();
+                synchronized (files) {
+                    files.values().forEach(stored -> all.add(stored.info()));
+                }
+                sendJson(exchange, 200, listPage(all, AssistantConversation.FileResponse::getId, queryParameters(exchange)));
+                return;
+            }
+
+            StoredFile file = fileId == null ? null : files.get(fileId);
+            if (file == null) {
+                sendJson(exchange, 404, Map.of("error", Map.of("message", "No such File object: " + fileId)));
+                return;
+            }
+
+            if (resource == null && method.equals("GET")) {
+                sendJson(exchange, 200, file.info());
+            } else if (resource == null && method.equals("DELETE")) {
+                files.remove(fileId);
+                assistantFiles.forEach((assistantId, attached) -> {
+                    if (attached.remove(fileId)) this.updateFileIds(assistantId);
+                });
+                sendJson(exchange, 200, new ApiTypes.Deleted(fileId, "file", true));
+            } else if ("content".equals(resource) && method.equals("GET")) {
+                exchange.getResponseHeaders().set("Content-Type", "application/octet-stream");
+                exchange.sendResponseHeaders(200, file.content().length == 0 ? -1 : file.content().length);
+                exchange.getResponseBody().write(file.content());
+            } else {
+                sendJson(exchange, 404, Map.of("error", Map.of("message", "Unsupported request " + method + " " + exchange.getRequestURI())));
+            }
+        }
+    }
+
+    private void handleThreads(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            // /v1/threads[/{thread_id}[/messages|/runs]]
+            String[] path = exchange.getRequestURI().getPath().split("/");
+            String method = exchange.getRequestMethod();
+            String threadId = path.length > 3 ? path[3] : null;
+            String resource = path.length > 4 ? path[4] : null;
+
+            if (threadId == null && method.equals("POST")) {
+                String id = "thread_" + ids.incrementAndGet();
+                threads.put(id, Collections.synchronizedList(new ArrayList<>()));
+                sendJson(exchange, 200, new ApiTypes.Thread(id, "thread", now()));
+                return;
+            }
+
+            List<ApiTypes.Message> messages = threadId == null ? null : threads.get(threadId);
+            if (messages == null) {
+                sendJson(exchange, 404, Map.of("error", Map.of("message", "No thread found with id '" + threadId + "'.")));
+                return;
+            }
+
+            if (resource == null && method.equals("GET")) {
+                sendJson(exchange, 200, new ApiTypes.Thread(threadId, "thread", 0));
+            } else if (resource == null && method.equals("DELETE")) {
+                threads.remove(threadId);
+                sendJson(exchange, 200, new ApiTypes.Deleted(threadId, "thread.deleted", true));
+            } else if ("messages".equals(resource) && method.equals("POST")) {
+                ApiTypes.CreateMessage body = Json.MAPPER.readValue(exchange.getRequestBody(), ApiTypes.CreateMessage.class);
+                ApiTypes.Message message = newMessage(threadId, body.role() != null ? body.role() : "user", body.content());
+                messages.add(message);
+                sendJson(exchange, 200, message);
+            } else if ("messages".equals(resource) && method.equals("GET")) {
+                sendJson(exchange, 200, listMessages(messages, queryParameters(exchange)));
+            } else if ("runs".equals(resource) && method.equals("POST")) {
+                streamRun(exchange, threadId, messages);
+            } else {
+                sendJson(exchange, 404, Map.of("error", Map.of("message", "Unsupported request " + method + " " + exchange.getRequestURI())));
+            }
+        }
+    }
+
+    private void handleUploads(HttpExchange exchange) throws IOException {
+        // /v1/uploads[/{upload_id}/parts|/complete]
+        String[] path = exchange.getRequestURI().getPath().split("/");
+        String uploadId = path.length > 3 ? path[3] : null;
+        String resource = path.length > 4 ? path[4] : null;
+
+        if (!exchange.getRequestMethod().equals("POST")) {
+            sendJson(exchange, 405, Map.of("error", Map.of("message", "Method not allowed")));
+            exchange.close();
+            return;
+        }
+        if (uploadId == null) {
+            ApiTypes.CreateUpload body = Json.MAPPER.readValue(exchange.getRequestBody(), ApiTypes.CreateUpload.class);
+            String id = "upload_" + ids.incrementAndGet();
+            uploads.put(id, new PendingUpload(body, new ConcurrentHashMap<>()));
+            sendJson(exchange, 200, newUpload(id, body, "pending", null));
+            exchange.close();
+            return;
+        }
+
+        PendingUpload upload = uploads.get(uploadId);
+        if (upload == null) {
+            sendJson(exchange, 404, Map.of("error", Map.of("message", "No upload found with id '" + uploadId + "'.")));
+            exchange.close();
+        } else if ("parts".equals(resource)) {
+            if (Math.random() < partFailureRate) {
+                // Throwing from the handler makes the server drop the connection without a response
+                exchange.getRequestBody().readNBytes(Integer.parseInt(exchange.getRequestHeaders().getFirst("Content-Length")) / 2);
+                throw new IOException("Injected failure of a part of " + uploadId);
+            }
+            FormPart data = multipartParts(exchange, exchange.getRequestBody().readAllBytes()).get("data");
+            if (data == null) {
+                sendJson(exchange, 400, Map.of("error", Map.of("message", "Expected the part as a data field")));
+                exchange.close();
+                return;
+            }
+            String partId = "part_" + ids.incrementAndGet();
+            upload.parts().put(partId, data.content());
+            sendJson(exchange, 200, new ApiTypes.UploadPart(partId, "upload.part", uploadId));
+            exchange.close();
+        } else if ("complete".equals(resource)) {
+            ApiTypes.CompleteUpload body = Json.MAPPER.readValue(exchange.getRequestBody(), ApiTypes.CompleteUpload.class);
+            ByteArrayOutputStream content = new ByteArrayOutputStream();
+            for (String partId : body.partIds()) {
+                byte[] part = partId == null ? null : upload.parts().get(partId);
+                if (part == null) {
+                    sendJson(exchange, 400, Map.of("error", Map.of("message", "Unknown part '" + partId + "'.")));
+                    exchange.close();
+                    return;
+                }
+                content.write(part);
+            }
+            if (content.size() != upload.request().bytes()) {
+                sendJson(exchange, 400, Map.of("error", Map.of("message", "Parts add up to " + content.size() + " bytes, expected " + upload.request().bytes())));
+                exchange.close();
+                return;
+            }
+            uploads.remove(uploadId);
+            AssistantConversation.FileResponse file = newFile(upload.request().filename(), upload.request().purpose(), content.toByteArray());
+            sendJson(exchange, 200, newUpload(uploadId, upload.request(), "completed", file));
+            exchange.close();
+        } else {
+            sendJson(exchange, 404, Map.of("error", Map.of("message", "Unsupported request POST " + exchange.getRequestURI())));
+            exchange.close();
+        }
+    }
+
+    private ApiTypes.Upload newUpload(String id, ApiTypes.CreateUpload request, String status, AssistantConversation.FileResponse file){
+        return new ApiTypes.Upload(id, "upload", request.bytes(), request.filename(), request.purpose(), status, now() + 3600, file);
+    }
+
+    /**
+     * Stores a new file
+     * @return File object of the new file
+     */
+    private AssistantConversation.FileResponse newFile(String filename, String purpose, byte[] content){
+        AssistantConversation.FileResponse file = new AssistantConversation.FileResponse();
+        file.setId("file-" + ids.incrementAndGet());
+        file.setObject("file");
+        file.setBytes(content.length);
+        file.setCreatedAt(now());
+        file.setFilename(filename);
+        file.setPurpose(purpose);
+        file.setStatus("processed");
+        files.put(file.getId(), new StoredFile(file, content));
+        return file;
+    }
+
+    /**
+     * Splits a multipart/form-data body into its parts
+     * @return parts by field name
+     */
+    private static Map<String, FormPart> multipartParts(HttpExchange exchange, byte[] body){
+        Map<String, FormPart> parts = new HashMap<>();
+        String contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+        if (contentType == null || !contentType.contains("boundary=")) return parts;
+        String delimiter = "--" + contentType.substring(contentType.indexOf("boundary=") + "boundary=".length());
+        // Latin-1 maps every byte to one char, so indexes in the string are indexes in the body
+        String latin1 = new String(body, StandardCharsets.ISO_8859_1);
+        int next = latin1.indexOf(delimiter);
+        while (next >= 0 && !latin1.startsWith("--", next + delimiter.length())) {
+            int headersStart = next + delimiter.length() + 2;
+            int headersEnd = latin1.indexOf("\r\n\r\n", headersStart);
+            next = latin1.indexOf("\r\n" + delimiter, headersEnd);
+            if (headersEnd < 0 || next < 0) break;
+            String headers = latin1.substring(headersStart, headersEnd);
+            String name = headerParameter(headers, "name");
+            if (name != null) parts.put(name, new FormPart(headerParameter(headers, "filename"), Arrays.copyOfRange(body, headersEnd + 4, next)));
+            next += 2;
+        }
+        return parts;
+    }
+
+    // Value of a parameter of the Content-Disposition header, e.g. name="file"
+    private static String headerParameter(String headers, String parameter){
+        String key = "; " + parameter + "=\"";
+        int start = headers.indexOf(key);
+        if (start < 0) return null;
+        start += key.length();
+        return headers.substring(start, headers.indexOf('"', start));
+    }
+
+    private ApiTypes.ListPage<ApiTypes.Message> listMessages(List<ApiTypes.Message> messages, Map<String, String> query){
+        List<ApiTypes.Message> ordered;
+        synchronized (messages) {
+            ordered = new ArrayList<>(messages);
+        }
+        return listPage(ordered, ApiTypes.Message::id, query);
+    }
+
+    /**
+     * Returns a page of a list endpoint following its order, after and limit parameters
+     * @param items every item of the list, oldest first
+     * @param id id of an item
+     */
+    private static <T> ApiTypes.ListPage<T> listPage(List<T> items, Function<T, String> id, Map<String, String> query){
+        List<T> ordered = new ArrayList<>(items);
+        if (!query.getOrDefault("order", "desc").equals("asc")) Collections.reverse(ordered);
+
+        int start = 0;
+        String after = query.get("after");
+        if (after != null) {
+            for (int i = 0; i < ordered.size(); i++) {
+                if (id.apply(ordered.get(i)).equals(after)) start = i + 1;
+            }
+        }
+        int limit = Integer.parseInt(query.getOrDefault("limit", "20"));
+        int end = Math.min(ordered.size(), start + limit);
+
+        List<T> data = ordered.subList(start, end);
+        String firstId = data.isEmpty() ? null : id.apply(data.getFirst());
+        String lastId = data.isEmpty() ? null : id.apply(data.getLast());
+        return new ApiTypes.ListPage<>("list", data, firstId, lastId, end < ordered.size());
+    }
+
+    private static Map<String, String> queryParameters(HttpExchange exchange){
+        Map<String, String> parameters = new HashMap<>();
+        String query = exchange.getRequestURI().getQuery();
+        if (query == null) return parameters;
+        for (String parameter : query.split("&")) {
+            int equals = parameter.indexOf('=');
+            if (equals > 0) parameters.put(parameter.substring(0, equals), parameter.substring(equals + 1));
+        }
+        return parameters;
+    }
+
+    /**
+     * Answers the last user message of the thread with a server-sent event stream shaped like the real one
+     */
+    private void streamRun(HttpExchange exchange, String threadId, List<ApiTypes.Message> messages) throws IOException {
+        ApiTypes.CreateRun body = Json.MAPPER.readValue(exchange.getRequestBody(), ApiTypes.CreateRun.class);
+        String question = "";
+        synchronized (messages) {
+            for (ApiTypes.Message message : messages) {
+                if (message.role().equals("user")) question = message.text();
+            }
+        }
+        String answer = "You said: " + question;
+        String runId = "run_" + ids.incrementAndGet();
+        ApiTypes.Message reply = newMessage(threadId, "assistant", answer);
+        ApiTypes.Run run = new ApiTypes.Run(runId, "thread.run", threadId, body.assistantId(), "queued", null);
+        if (failingAfterApply.contains(exchange)) {
+            // The run completes, but its stream is replaced by a 500 in sendJson
+            messages.add(reply);
+            sendJson(exchange, 200, run);
+            return;
+        }
+
+        exchange.getResponseHeaders().set("Content-Type", "text/event-stream");
+        exchange.sendResponseHeaders(200, 0);
+        OutputStream os = exchange.getResponseBody();
+        sendEvent(os, "thread.run.created", run);
+        sendEvent(os, "thread.message.created", reply);
+
+        String[] words = answer.split("(?<= )");
+        double rate = tokensPerSecond;
+        long start = System.nanoTime();
+        for (int i = 0; i < words.length; i++) {
+            String word = words[i];
+            if (rate > 0) {
+                // Paced from the start of the stream, so time spent writing does not add up over a long reply
+                long wait = start + (long) (i * 1e9 / rate) - System.nanoTime();
+                if (wait > 0) sleep(Duration.ofNanos(wait));
+            }
+            ApiTypes.Content content = new ApiTypes.Content(0, "text", new ApiTypes.Text(word, null));
+            sendEvent(os, "thread.message.delta", new ApiTypes.MessageDelta(reply.id(), "thread.message.delta", new ApiTypes.Delta(List.of(content))));
+        }
+
+        messages.add(reply);
+        sendEvent(os, "thread.message.completed", reply);
+        sendEvent(os, "thread.run.completed", new ApiTypes.Run(runId, "thread.run", threadId, body.assistantId(), "completed", null));
+        os.write("event: done\ndata: [DONE]\n\n".getBytes(StandardCharsets.UTF_8));
+        os.flush();
+    }
+
+    private void sendEvent(OutputStream os, String event, Object data) throws IOException {
+        os.write(("event: " + event + "\ndata: " + Json.write(data) + "\n\n").getBytes(StandardCharsets.UTF_8));
+        os.flush();
+    }
+
+    private void sendJson(HttpExchange exchange, int status, Object body) throws IOException {
+        if (status < 300 && failingAfterApply.contains(exchange)) {
+            status = 500;
+            body = SERVER_ERROR;
+        }
+        byte[] bytes = Json.WRITER.writeValueAsBytes(body);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, bytes.length);
+        exchange.getResponseBody().write(bytes);
+    }
+
+    private ApiTypes.Message newMessage(String threadId, String role, String text){
+        List<ApiTypes.Content> content = List.of(new ApiTypes.Content(null, "text", new ApiTypes.Text(text, List.of())));
+        return new ApiTypes.Message("msg_" + ids.incrementAndGet(), "thread.message", now(), threadId, role, content, null, null);
+    }
+
+    private static long now(){
+        return System.currentTimeMillis() / 1000;
+    }
+
+    private static void sleep(Duration duration){
+        try {
+            Thread.sleep(duration);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Applies the configured latency, rate limit and injected errors to every request before it is handled
+     */
+    private class ApiBehaviour extends Filter {
+
+        @Override
+        public void doFilter(HttpExchange exchange, Chain chain) throws IOException {
+            Duration wait = latency;
+            long jitter = latencyJitter.toNanos();
+            if (jitter > 0) wait = wait.plusNanos(ThreadLocalRandom.current().nextLong(jitter));
+            if (!wait.isZero()) sleep(wait);
+
+            RateLimiter limiter = rateLimiter;
+            if (limiter != null && !limiter.tryAcquire(exchange)) {
+                sendJson(exchange, 429, Map.of("error", Map.of("message", "Rate limit reached for requests", "type", "requests",
+                        "code", "rate_limit_exceeded")));
+                exchange.close();
+                return;
+            }
+            if (ThreadLocalRandom.current().nextDouble() < errorRate) {
+                sendJson(exchange, 500, SERVER_ERROR);
+                exchange.close();
+                return;
+            }
+            if (!exchange.getRequestMethod().equals("POST") || ThreadLocalRandom.current().nextDouble() >= errorAfterApplyRate) {
+                chain.doFilter(exchange);
+                return;
+            }
+            failingAfterApply.add(exchange);
+            try {
+                chain.doFilter(exchange);
+            } finally {
+                failingAfterApply.remove(exchange);
+            }
+        }
+
+        @Override
+        public String description(){
+            return "Mock latency, rate limit and errors";
+        }
+    }
+
+    /**
+     * Token bucket of requests, refilling continuously at requestsPerMinute / 60 per second up to requestsPerMinute
+     */
+    private static class RateLimiter {
+        private final ReentrantLock lock = new ReentrantLock();
+        private final int requestsPerMinute;
+        private final double perNano;
+        private double available;
+        private long refilledAt = System.nanoTime();
+
+        RateLimiter(int requestsPerMinute){
+            this.requestsPerMinute = requestsPerMinute;
+            this.perNano = requestsPerMinute / 60e9;
+            this.available = requestsPerMinute;
+        }
+
+        /**
+         * Takes a request from the budget and sets the x-ratelimit headers of the response, plus retry-after-ms if the
+         * budget is spent
+         * @return whether the request may be handled
+         */
+        boolean tryAcquire(HttpExchange exchange){
+            boolean acquired;
+            double remaining;
+            lock.lock();
+            try {
+                long now = System.nanoTime();
+                available = Math.min(requestsPerMinute, available + (now - refilledAt) * perNano);
+                refilledAt = now;
+                acquired = available >= 1;
+                if (acquired) available--;
+                remaining = available;
+            } finally {
+                lock.unlock();
+            }
+            long resetMillis = (long) Math.ceil((requestsPerMinute - remaining) / perNano / 1e6);
+            exchange.getResponseHeaders().set("x-ratelimit-limit-requests", String.valueOf(requestsPerMinute));
+            exchange.getResponseHeaders().set("x-ratelimit-remaining-requests", String.valueOf((long) remaining));
+            exchange.getResponseHeaders().set("x-ratelimit-reset-requests", resetMillis + "ms");
+            if (!acquired) {
+                long retryMillis = (long) Math.ceil((1 - remaining) / perNano / 1e6);
+                exchange.getResponseHeaders().set("retry-after-ms", String.valueOf(retryMillis));
+            }
+            return acquired;
+        }
+    }
+
+    /**
+     * Runs the mock on its own, e.g. to load test a ConversationServer started with OPENAI_BASE_URL set to its URL
+     * @param args [port] [--latency ms] [--jitter ms] [--tokens-per-second n] [--error-rate p]
+     *             [--error-after-apply-rate p] [--requests-per-minute n]
+     */
+    public static void main(String[] args) throws IOException {
+        int port = 8090;
+        Duration latency = Duration.ZERO;
+        Duration jitter = Duration.ZERO;
+        double tokensPerSecond = 0;
+        double errorRate = 0;
+        double errorAfterApplyRate = 0;
+        int requestsPerMinute = 0;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--latency" -> latency = Duration.ofMillis(Long.parseLong(args[++i]));
+                case "--jitter" -> jitter = Duration.ofMillis(Long.parseLong(args[++i]));
+                case "--tokens-per-second" -> tokensPerSecond = Double.parseDouble(args[++i]);
+                case "--error-rate" -> errorRate = Double.parseDouble(args[++i]);
+                case "--error-after-apply-rate" -> errorAfterApplyRate = Double.parseDouble(args[++i]);
+                case "--requests-per-minute" -> requestsPerMinute = Integer.parseInt(args[++i]);
+                default -> port = Integer.parseInt(args[i]);
+            }
+        }
+
+        MockAssistantsServer server = new MockAssistantsServer(port);
+        server.setLatency(latency, jitter);
+        server.setTokensPerSecond(tokensPerSecond);
+        server.setErrorRate(errorRate);
+        server.setErrorAfterApplyRate(errorAfterApplyRate);
+        server.setRequestsPerMinute(requestsPerMinute);
+        server.start();
+        System.out.println("Mock Assistants API listening on " + server.getBaseUrl());
+    }
+}
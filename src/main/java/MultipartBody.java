@@ -0,0 +1,178 @@
+import java.io.IOException;
+import java.net.http.HttpRequest;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Flow;
+
+
+/**
+ * multipart/form-data request body whose file parts are streamed from read-only memory mappings of the file. Only
+ * the part headers are held on the heap, file content goes from the page cache to the HttpClient one slice at a
+ * time as it asks for more, and the total length is known up front so the request is sent with a Content-Length.
+ * Memory use therefore does not depend on the size of the file
+ */
+public class MultipartBody {
+
+    private static final int SLICE_SIZE = 64 * 1024;
+    private static final long WINDOW_SIZE = 64L * 1024 * 1024;
+
+    private final String boundary = "----WebKitFormBoundary" + System.currentTimeMillis();
+    private final List<HttpRequest.BodyPublisher> parts = new ArrayList<>();
+
+    /**
+     * Adds a text field
+     */
+    public MultipartBody field(String name, String value){
+        parts.add(HttpRequest.BodyPublishers.ofString("--" + boundary + "\r\n"
+                + "Content-Disposition: form-data; name=\"" + name + "\"\r\n\r\n"
+                + value + "\r\n", StandardCharsets.UTF_8));
+        return this;
+    }
+
+    /**
+     * Adds a whole file
+     * @param name name of the form field
+     * @param file file to send, named after its file name
+     */
+    public MultipartBody file(String name, Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            return this.file(name, file.getFileName().toString(), file, 0, channel.size());
+        }
+    }
+
+    /**
+     * Adds a region of a file, e.g. one part of a chunked upload
+     * @param name name of the form field
+     * @param filename file name sent with the part
+     * @param file file to read from
+     * @param offset position of the first byte to send
+     * @param length number of bytes to send
+     */
+    public MultipartBody file(String name, String filename, Path file, long offset, long length){
+        parts.add(HttpRequest.BodyPublishers.ofString("--" + boundary + "\r\n"
+                + "Content-Disposition: form-data; name=\"" + name + "\"; filename=\"" + filename + "\"\r\n"
+                + "Content-Type: application/octet-stream\r\n\r\n", StandardCharsets.UTF_8));
+        // fromPublisher does not take a length of 0, an empty file has no content to publish
+        if (length > 0) parts.add(HttpRequest.BodyPublishers.fromPublisher(new FileRegionPublisher(file, offset, length), length));
+        parts.add(HttpRequest.BodyPublishers.ofString("\r\n"));
+        return this;
+    }
+
+    /**
+     * @return value of the request's Content-Type header
+     */
+    public String contentType(){
+        return "multipart/form-data; boundary=" + boundary;
+    }
+
+    /**
+     * @return publisher of the body, which can be subscribed again if the request is retried
+     */
+    public HttpRequest.BodyPublisher publisher(){
+        List<HttpRequest.BodyPublisher> body = new ArrayList<>(parts);
+        body.add(HttpRequest.BodyPublishers.ofString("--" + boundary + "--\r\n"));
+        return HttpRequest.BodyPublishers.concat(body.toArray(new HttpRequest.BodyPublisher[0]));
+    }
+
+    /**
+     * Publishes a region of a file as read-only slices of memory mappings. Mappings are made as the subscriber asks for
+     * data, so every subscriber reads the file from the start of the region
+     */
+    private record FileRegionPublisher(Path file, long offset, long length) implements Flow.Publisher<ByteBuffer> {
+
+        @Override
+        public void subscribe(Flow.Subscriber<? super ByteBuffer> subscriber){
+            subscriber.onSubscribe(new RegionSubscription(subscriber, file, offset, offset + length));
+        }
+    }
+
+    /**
+     * Maps the region a window at a time: a single mapping cannot exceed 2 GB, and a window is unmapped once its
+     * slices are no longer referenced, so a large file is never mapped as a whole
+     */
+    private static class RegionSubscription implements Flow.Subscription {
+        private final Flow.Subscriber<? super ByteBuffer> subscriber;
+        private final Path file;
+        private final long end;
+        // Position in the file of the next window, and the current window
+        private long next;
+        private ByteBuffer window;
+        private long demand;
+        private boolean emitting;
+        private boolean finished;
+
+        RegionSubscription(Flow.Subscriber<? super ByteBuffer> subscriber, Path file, long start, long end){
+            this.subscriber = subscriber;
+            this.file = file;
+            this.next = start;
+            this.end = end;
+        }
+
+        @Override
+        public void request(long n){
+            synchronized (this) {
+                if (finished) return;
+                if (n <= 0) {
+                    finished = true;
+                    subscriber.onError(new IllegalArgumentException("non-positive request: " + n));
+                    return;
+                }
+                demand = demand + n < 0 ? Long.MAX_VALUE : demand + n;
+                // onNext may call request again, the outer call keeps emitting for it
+                if (emitting) return;
+                emitting = true;
+            }
+            Exception error = null;
+            while (true) {
+                ByteBuffer slice;
+                synchronized (this) {
+                    if (finished || demand == 0) {
+                        emitting = false;
+                        return;
+                    }
+                    if ((window == null || !window.hasRemaining()) && next < end) {
+                        try {
+                            window = this.map();
+                        } catch (IOException | RuntimeException e) {
+                            error = e;
+                        }
+                    }
+                    if (error != null || window == null || !window.hasRemaining()) {
+                        finished = true;
+                        emitting = false;
+                        break;
+                    }
+                    demand--;
+                    int size = Math.min(SLICE_SIZE, window.remaining());
+                    slice = window.slice(window.position(), size);
+                    window.position(window.position() + size);
+                }
+                subscriber.onNext(slice);
+            }
+            if (error != null) subscriber.onError(error);
+            else subscriber.onComplete();
+        }
+
+        private ByteBuffer map() throws IOException {
+            long size = Math.min(WINDOW_SIZE, end - next);
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                if (channel.size() < next + size) throw new IOException(file + " is shorter than the region to send");
+                // The mapping stays valid after the channel is closed
+                MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, next, size);
+                next += size;
+                return mapped;
+            }
+        }
+
+        @Override
+        public synchronized void cancel(){
+            finished = true;
+        }
+    }
+}
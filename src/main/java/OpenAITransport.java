@@ -0,0 +1,225 @@
+import com.fasterxml.jackson.databind.ObjectReader;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+
+
+/**
+ * HTTP transport shared by every AssistantConversation in the JVM. Wraps a single java.net.http.HttpClient so that
+ * connections (and their TLS sessions) are kept alive and reused between calls, and holds the headers, base URL and
+ * timeouts that every Assistants API request needs. Every request goes through the transport's RequestScheduler, so
+ * all conversations sharing a transport share its view of the rate limits. background() returns a view of the
+ * transport whose requests yield to the interactive ones.
+ *
+ * The number of idle connections kept alive is a process-wide setting of the JDK, not of a transport: it is the
+ * jdk.httpclient.connectionPoolSize system property, read once when the first HttpClient is created
+ */
+public class OpenAITransport {
+
+    public static final String DEFAULT_BASE_URL = "https://api.openai.com/v1";
+
+    private static volatile OpenAITransport shared;
+
+    private final HttpClient client;
+    private final String baseUrl;
+    private final String apiKey;
+    private final Duration readTimeout;
+    private final RequestScheduler scheduler;
+    private final RequestScheduler.Priority priority;
+    private final OpenAITransport background;
+
+    private OpenAITransport(Builder builder){
+        HttpClient.Builder clientBuilder = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_2)
+                .connectTimeout(builder.connectTimeout)
+                .followRedirects(HttpClient.Redirect.NORMAL);
+        if (builder.executor != null) clientBuilder.executor(builder.executor);
+
+        this.client = clientBuilder.build();
+        this.baseUrl = builder.baseUrl.endsWith("/") ? builder.baseUrl.substring(0, builder.baseUrl.length() - 1) : builder.baseUrl;
+        this.apiKey = builder.apiKey;
+        this.readTimeout = builder.readTimeout;
+        this.scheduler = new RequestScheduler(client, builder.maxInFlight);
+        this.priority = RequestScheduler.Priority.INTERACTIVE;
+        this.background = new OpenAITransport(this, RequestScheduler.Priority.BACKGROUND);
+    }
+
+    private OpenAITransport(OpenAITransport transport, RequestScheduler.Priority priority){
+        this.client = transport.client;
+        this.baseUrl = transport.baseUrl;
+        this.apiKey = transport.apiKey;
+        this.readTimeout = transport.readTimeout;
+        this.scheduler = transport.scheduler;
+        this.priority = priority;
+        this.background = this;
+    }
+
+    /**
+     * Returns the transport used by default by every AssistantConversation, creating it from the environment
+     * (OPENAI_API_KEY and, optionally, OPENAI_BASE_URL) on first use
+     * @return JVM-wide transport
+     */
+    public static OpenAITransport shared(){
+        OpenAITransport transport = shared;
+        if (transport == null) {
+            synchronized (OpenAITransport.class) {
+                if (shared == null) shared = builder().build();
+                transport = shared;
+            }
+        }
+        return transport;
+    }
+
+    /**
+     * Replaces the JVM-wide transport. Conversations created afterwards use the new transport
+     * @param transport transport to share
+     */
+    public static void setShared(OpenAITransport transport){
+        synchronized (OpenAITransport.class) {
+            shared = transport;
+        }
+    }
+
+    public static Builder builder(){
+        return new Builder();
+    }
+
+    public String getBaseUrl(){
+        return baseUrl;
+    }
+
+    /**
+     * Returns a view of this transport for work nobody is waiting on, e.g. title generation or thread pool upkeep. Its
+     * requests share this transport's connections and rate limits but are only sent when no interactive request is
+     * queued, and leave the end of each rate limit budget to interactive requests
+     */
+    public OpenAITransport background(){
+        return background;
+    }
+
+    public RequestScheduler getScheduler(){
+        return scheduler;
+    }
+
+    /**
+     * Returns a request builder for the given API path with the authorization, beta and content type headers set
+     * @param path path relative to the base URL, e.g. "/threads"
+     * @return request builder, method still to be set
+     */
+    public HttpRequest.Builder newRequest(String path){
+        return HttpRequest.newBuilder(URI.create(baseUrl + path))
+                .timeout(readTimeout)
+                .header("Authorization", "Bearer " + apiKey)
+                .header("Content-Type", "application/json")
+                .header("OpenAI-Beta", "assistants=v2");
+    }
+
+    public HttpResponse<String> get(String path) throws IOException, InterruptedException {
+        return send(newRequest(path).GET().build());
+    }
+
+    public HttpResponse<String> post(String path, String json) throws IOException, InterruptedException {
+        return send(newRequest(path).POST(HttpRequest.BodyPublishers.ofString(json)).build());
+    }
+
+    public HttpResponse<String> delete(String path) throws IOException, InterruptedException {
+        return send(newRequest(path).DELETE().build());
+    }
+
+    /**
+     * Sends the request and reads the whole response body as a UTF-8 string
+     */
+    public HttpResponse<String> send(HttpRequest request) throws IOException, InterruptedException {
+        return await(sendAsync(request));
+    }
+
+    public CompletableFuture<HttpResponse<String>> getAsync(String path){
+        return sendAsync(newRequest(path).GET().build());
+    }
+
+    public CompletableFuture<HttpResponse<String>> postAsync(String path, String json){
+        return sendAsync(newRequest(path).POST(HttpRequest.BodyPublishers.ofString(json)).build());
+    }
+
+    public CompletableFuture<HttpResponse<String>> deleteAsync(String path){
+        return sendAsync(newRequest(path).DELETE().build());
+    }
+
+    /**
+     * Sends the request without blocking the calling thread. The future completes on one of the client's executor
+     * threads once the whole response body has been read
+     */
+    public CompletableFuture<HttpResponse<String>> sendAsync(HttpRequest request){
+        return sendAsync(request, HttpResponse.BodyHandlers.ofString());
+    }
+
+    public <T> CompletableFuture<HttpResponse<T>> getAsync(String path, ObjectReader reader){
+        return sendAsync(newRequest(path).GET().build(), JsonBodySubscriber.handler(reader));
+    }
+
+    public <T> CompletableFuture<HttpResponse<T>> postAsync(String path, String json, ObjectReader reader){
+        return sendAsync(newRequest(path).POST(HttpRequest.BodyPublishers.ofString(json)).build(), JsonBodySubscriber.handler(reader));
+    }
+
+    /**
+     * Sends the request without blocking the calling thread, handing the body to the given handler as it arrives
+     */
+    public <T> CompletableFuture<HttpResponse<T>> sendAsync(HttpRequest request, HttpResponse.BodyHandler<T> handler){
+        return scheduler.submit(priority, request, handler);
+    }
+
+    /**
+     * Sends the request and returns as soon as the response headers arrive, leaving the body to be read from the
+     * returned stream. The stream must be closed to release the connection back to the pool
+     */
+    public HttpResponse<InputStream> sendStreaming(HttpRequest request) throws IOException, InterruptedException {
+        return await(sendAsync(request, HttpResponse.BodyHandlers.ofInputStream()));
+    }
+
+    private static <T> HttpResponse<T> await(CompletableFuture<HttpResponse<T>> response) throws IOException, InterruptedException {
+        try {
+            return response.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException cause) throw cause;
+            throw new IOException(e.getCause());
+        }
+    }
+
+
+    public static class Builder {
+        private String baseUrl = System.getenv().getOrDefault("OPENAI_BASE_URL", DEFAULT_BASE_URL);
+        private String apiKey = System.getenv("OPENAI_API_KEY");
+        private Duration connectTimeout = Duration.ofSeconds(10);
+        private Duration readTimeout = Duration.ofSeconds(120);
+        private int maxInFlight = 0;
+        private Executor executor;
+
+        public Builder baseUrl(String baseUrl){ this.baseUrl = baseUrl; return this; }
+        public Builder apiKey(String apiKey){ this.apiKey = apiKey; return this; }
+        public Builder connectTimeout(Duration connectTimeout){ this.connectTimeout = connectTimeout; return this; }
+        public Builder readTimeout(Duration readTimeout){ this.readTimeout = readTimeout; return this; }
+
+        /**
+         * Maximum number of requests sent but not yet answered, further requests are queued. 0 for no limit other
+         * than the rate limits reported by the API
+         */
+        public Builder maxInFlight(int maxInFlight){ this.maxInFlight = maxInFlight; return this; }
+
+        /**
+         * Executor used by the client for asynchronous tasks, defaults to the HttpClient's own cached pool
+         */
+        public Builder executor(Executor executor){ this.executor = executor; return this; }
+
+        public OpenAITransport build(){
+            return new OpenAITransport(this);
+        }
+    }
+}
@@ -0,0 +1,449 @@
+import java.io.IOException;
+import java.net.http.HttpClient;
+import java.net.http.HttpHeaders;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+
+/**
+ * Queues and paces the requests of an OpenAITransport so that every conversation using it stays within the
+ * organisation's rate limits. The request and token budgets are taken from the x-ratelimit-* headers of each
+ * response: sending stops while a budget is exhausted, and as a budget runs low the remaining requests are spread
+ * evenly until it resets. A 429 pauses sending for its retry-after and puts the request back at the front of its
+ * queue, so the call is delayed rather than lost.
+ *
+ * Interactive requests are always sent before background ones, and background requests leave the last part of each
+ * budget to interactive ones.
+ *
+ * Idempotent requests (GETs, DELETEs and POSTs the caller gave an Idempotency-Key) are retried with jittered
+ * exponential backoff on 5xx responses, timeouts and connection errors, as long as none of the response has been handed
+ * to the caller yet. Other POSTs are never resent: the Assistants API does not deduplicate them, so a create that
+ * failed after the server applied it would be applied twice. Each endpoint has a CircuitBreaker, so while an endpoint
+ * keeps failing its requests fail immediately instead of queueing up behind it.
+ *
+ * Every attempt is recorded in Metrics per endpoint: api_request_seconds, api_responses_total by status, request and
+ * response bytes, retries, and the queued and in-flight gauges
+ */
+public class RequestScheduler {
+
+    public enum Priority { INTERACTIVE, BACKGROUND }
+
+    private static final int MAX_RATE_LIMIT_RETRIES = 5;
+    private static final int MAX_RETRIES = 3;
+    private static final long BACKOFF_BASE_MILLIS = 250;
+    private static final long BACKOFF_CAP_MILLIS = 8000;
+    // Share of the request and token budgets that background requests leave to interactive ones
+    private static final double BACKGROUND_RESERVE = 0.1;
+    // Pacing starts once less than this share of the request budget is left
+    private static final double PACING_THRESHOLD = 0.5;
+    private static final long DEFAULT_RETRY_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static final long WAIT_FOR_COMPLETION = Long.MAX_VALUE;
+
+    private static final Pattern DURATION = Pattern.compile("(\\d+(?:\\.\\d+)?)(ms|h|m|s)");
+    // Path segments that are object ids, replaced so that every thread, file, ... shares its endpoint's breaker
+    private static final Pattern OBJECT_ID = Pattern.compile("/(asst|thread|msg|run|step|file|upload|part|vs)[_-][A-Za-z0-9]+");
+
+    private final HttpClient client;
+    private final int maxInFlight;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final ArrayDeque<Task<?>> interactive = new ArrayDeque<>();
+    private final ArrayDeque<Task<?>> background = new ArrayDeque<>();
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(Thread.ofVirtual().factory());
+    private final Map<String, CircuitBreaker> breakers = new ConcurrentHashMap<>();
+
+    private int inFlight;
+    // Budgets reported by the latest response, -1 until a response carries them
+    private long limitRequests = -1;
+    private long remainingRequests = -1;
+    private long limitTokens = -1;
+    private long remainingTokens = -1;
+    // System.nanoTime() values
+    private long requestsResetAt;
+    private long tokensResetAt;
+    private long pausedUntil;
+    private long nextSendAt;
+    private long wakeupAt = Long.MAX_VALUE;
+
+    private static class Task<T> {
+        final Priority priority;
+        final HttpRequest request;
+        final HttpResponse.BodyHandler<T> handler;
+        final CircuitBreaker breaker;
+        final CompletableFuture<HttpResponse<T>> result = new CompletableFuture<>();
+        int rateLimitRetries;
+        int retries;
+        long queuedAt;
+        // Set once a response has been given to the caller's handler, after which the request is never resent
+        volatile boolean handedOver;
+
+        Task(Priority priority, HttpRequest request, HttpResponse.BodyHandler<T> handler, CircuitBreaker breaker){
+            this.priority = priority;
+            this.request = request;
+            this.handler = handler;
+            this.breaker = breaker;
+        }
+    }
+
+    /**
+     * @param client client the requests are sent with
+     * @param maxInFlight maximum number of requests sent but not answered yet, 0 for no limit
+     */
+    public RequestScheduler(HttpClient client, int maxInFlight){
+        this.client = client;
+        this.maxInFlight = maxInFlight;
+    }
+
+    /**
+     * Queues a request and sends it as soon as the rate limits allow
+     * @return future completing with the response once it is received, after any retries. Fails with
+     * CircuitBreaker.OpenException if the endpoint's circuit is open
+     */
+    public <T> CompletableFuture<HttpResponse<T>> submit(Priority priority, HttpRequest request, HttpResponse.BodyHandler<T> handler){
+        CircuitBreaker breaker = this.breaker(request);
+        if (breaker.isOpen()) {
+            Metrics.registry().increment("api_circuit_open_total", 1, "endpoint", breaker.getEndpoint());
+            return CompletableFuture.failedFuture(new CircuitBreaker.OpenException(breaker.getEndpoint()));
+        }
+
+        Task<T> task = new Task<>(priority, request, handler, breaker);
+        lock.lock();
+        try {
+            this.queue(priority).addLast(task);
+        } finally {
+            lock.unlock();
+        }
+        this.queued(task);
+        this.dispatch();
+        return task.result;
+    }
+
+    /**
+     * @return circuit breaker of the request's endpoint, e.g. "POST /threads/{id}/runs"
+     */
+    private CircuitBreaker breaker(HttpRequest request){
+        String endpoint = request.method() + " " + OBJECT_ID.matcher(request.uri().getPath()).replaceAll("/{id}");
+        return breakers.computeIfAbsent(endpoint, CircuitBreaker::new);
+    }
+
+    /**
+     * @return circuit breakers of every endpoint called so far, by endpoint
+     */
+    public Map<String, CircuitBreaker> getBreakers(){
+        return Map.copyOf(breakers);
+    }
+
+    /**
+     * @return number of requests waiting to be sent
+     */
+    public int queued(){
+        lock.lock();
+        try {
+            return interactive.size() + background.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Sends every queued request the limits currently allow, and sets a timer for when the next one will be allowed
+     */
+    private void dispatch(){
+        List<Task<?>> ready = new ArrayList<>();
+        lock.lock();
+        try {
+            long now = System.nanoTime();
+            if (remainingRequests >= 0 && limitRequests > 0 && now - requestsResetAt >= 0) remainingRequests = limitRequests;
+            if (remainingTokens >= 0 && limitTokens > 0 && now - tokensResetAt >= 0) remainingTokens = limitTokens;
+
+            while (true) {
+                ArrayDeque<Task<?>> queue = !interactive.isEmpty() ? interactive : background;
+                Task<?> task = queue.peekFirst();
+                if (task == null) break;
+                long wait = this.delay(task.priority, now);
+                if (wait == WAIT_FOR_COMPLETION) break;
+                if (wait > 0) {
+                    this.wakeUpIn(now, wait);
+                    break;
+                }
+                queue.pollFirst();
+                inFlight++;
+                Metrics.registry().adjust("api_requests_queued", -1, "priority", task.priority.name());
+                Metrics.registry().recordTime("api_queue_wait_seconds", now - task.queuedAt, "priority", task.priority.name());
+                if (remainingRequests > 0) remainingRequests--;
+                nextSendAt = now + this.pacingInterval(now);
+                ready.add(task);
+            }
+        } finally {
+            lock.unlock();
+        }
+        for (Task<?> task : ready) this.send(task);
+    }
+
+    /**
+     * @return nanoseconds until a request of the given priority may be sent, 0 if it may be sent now,
+     * WAIT_FOR_COMPLETION if it has to wait for a request in flight to complete
+     */
+    private long delay(Priority priority, long now){
+        if (maxInFlight > 0 && inFlight >= maxInFlight) return WAIT_FOR_COMPLETION;
+        if (now - pausedUntil < 0) return pausedUntil - now;
+        if (remainingRequests == 0 && now - requestsResetAt < 0) return requestsResetAt - now;
+        if (remainingTokens == 0 && now - tokensResetAt < 0) return tokensResetAt - now;
+        if (priority == Priority.BACKGROUND) {
+            if (limitRequests > 0 && remainingRequests >= 0 && remainingRequests <= limitRequests * BACKGROUND_RESERVE
+                    && now - requestsResetAt < 0) return requestsResetAt - now;
+            if (limitTokens > 0 && remainingTokens >= 0 && remainingTokens <= limitTokens * BACKGROUND_RESERVE
+                    && now - tokensResetAt < 0) return tokensResetAt - now;
+        }
+        if (now - nextSendAt < 0) return nextSendAt - now;
+        return 0;
+    }
+
+    /**
+     * @return time to leave before the next request so the remaining request budget lasts until it resets, 0 while
+     * more than PACING_THRESHOLD of the budget is left
+     */
+    private long pacingInterval(long now){
+        if (limitRequests <= 0 || remainingRequests < 0 || remainingRequests > limitRequests * PACING_THRESHOLD) return 0;
+        long untilReset = requestsResetAt - now;
+        if (untilReset <= 0) return 0;
+        return untilReset / Math.max(1, remainingRequests);
+    }
+
+    private void wakeUpIn(long now, long wait){
+        long at = now + wait;
+        if (wakeupAt != Long.MAX_VALUE && wakeupAt - at <= 0 && wakeupAt - now > 0) return;
+        wakeupAt = at;
+        timer.schedule(() -> {
+            lock.lock();
+            try {
+                if (wakeupAt == at) wakeupAt = Long.MAX_VALUE;
+            } finally {
+                lock.unlock();
+            }
+            this.dispatch();
+        }, wait, TimeUnit.NANOSECONDS);
+    }
+
+    private <T> void send(Task<T> task){
+        MetricsRegistry metrics = Metrics.registry();
+        String endpoint = task.breaker.getEndpoint();
+        if (!task.breaker.tryAcquire()) {
+            this.finished();
+            metrics.increment("api_circuit_open_total", 1, "endpoint", endpoint);
+            task.result.completeExceptionally(new CircuitBreaker.OpenException(endpoint));
+            this.dispatch();
+            return;
+        }
+        boolean idempotent = isIdempotent(task.request);
+        // A response that will be retried is not handed to the caller's handler, which only sees the final response
+        HttpResponse.BodyHandler<T> handler = responseInfo -> {
+            int status = responseInfo.statusCode();
+            if ((status == 429 && task.rateLimitRetries < MAX_RATE_LIMIT_RETRIES)
+                    || (status >= 500 && idempotent && task.retries < MAX_RETRIES)) {
+                return HttpResponse.BodySubscribers.replacing(null);
+            }
+            task.handedOver = true;
+            return new CountingSubscriber<>(task.handler.apply(responseInfo), endpoint);
+        };
+
+        long start = System.nanoTime();
+        metrics.adjust("api_requests_in_flight", 1);
+        task.request.bodyPublisher().ifPresent(body -> {
+            if (body.contentLength() > 0) metrics.increment("api_request_bytes_total", body.contentLength(), "endpoint", endpoint);
+        });
+
+        client.sendAsync(task.request, handler).whenComplete((response, e) -> {
+            metrics.adjust("api_requests_in_flight", -1);
+            metrics.recordTime("api_request_seconds", System.nanoTime() - start, "endpoint", endpoint);
+            metrics.increment("api_responses_total", 1, "endpoint", endpoint, "status", response != null ? String.valueOf(response.statusCode()) : "error");
+
+            boolean failed = e != null || response.statusCode() >= 500;
+            if (failed) task.breaker.onFailure();
+            else task.breaker.onSuccess();
+
+            boolean rateLimited = !task.handedOver && response != null && response.statusCode() == 429;
+            boolean retry = !task.handedOver && failed && idempotent && task.retries < MAX_RETRIES && (e == null || isRetryable(e));
+            lock.lock();
+            try {
+                inFlight--;
+                if (response != null) this.update(response.headers(), response.statusCode(), task.rateLimitRetries);
+                if (rateLimited) {
+                    task.rateLimitRetries++;
+                    this.queue(task.priority).addFirst(task);
+                }
+            } finally {
+                lock.unlock();
+            }
+
+            if (rateLimited) {
+                metrics.increment("api_retries_total", 1, "endpoint", endpoint, "reason", "rate_limited");
+                this.queued(task);
+                System.out.println("Rate limited, retrying " + task.request.method() + " " + task.request.uri().getPath());
+            } else if (retry) {
+                metrics.increment("api_retries_total", 1, "endpoint", endpoint, "reason", e != null ? "error" : "status");
+                this.retryLater(task, e != null ? e.toString() : "status " + response.statusCode());
+            } else if (e != null) {
+                task.result.completeExceptionally(e);
+            } else {
+                task.result.complete(response);
+            }
+            this.dispatch();
+        });
+    }
+
+    private void queued(Task<?> task){
+        task.queuedAt = System.nanoTime();
+        Metrics.registry().adjust("api_requests_queued", 1, "priority", task.priority.name());
+    }
+
+    /**
+     * Queues the task again after a jittered exponential backoff: a uniformly random delay up to
+     * BACKOFF_BASE_MILLIS * 2^retries, capped at BACKOFF_CAP_MILLIS
+     */
+    private void retryLater(Task<?> task, String cause){
+        long ceiling = Math.min(BACKOFF_CAP_MILLIS, BACKOFF_BASE_MILLIS << task.retries);
+        long delay = ThreadLocalRandom.current().nextLong(ceiling + 1);
+        task.retries++;
+        System.out.println("Retrying " + task.request.method() + " " + task.request.uri().getPath() + " in " + delay
+                + " ms after " + cause + " (retry " + task.retries + "/" + MAX_RETRIES + ")");
+        timer.schedule(() -> {
+            lock.lock();
+            try {
+                this.queue(task.priority).addFirst(task);
+            } finally {
+                lock.unlock();
+            }
+            this.queued(task);
+            this.dispatch();
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void finished(){
+        lock.lock();
+        try {
+            inFlight--;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private ArrayDeque<Task<?>> queue(Priority priority){
+        return priority == Priority.INTERACTIVE ? interactive : background;
+    }
+
+    private static boolean isIdempotent(HttpRequest request){
+        return switch (request.method()) {
+            case "GET", "HEAD", "PUT", "DELETE", "OPTIONS" -> true;
+            case "POST" -> request.headers().firstValue("Idempotency-Key").isPresent();
+            default -> false;
+        };
+    }
+
+    /**
+     * @return whether the failure is a timeout or a connection error rather than a problem with the request itself
+     */
+    private static boolean isRetryable(Throwable e){
+        Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+        return cause instanceof IOException && !(cause instanceof CircuitBreaker.OpenException);
+    }
+
+    /**
+     * Takes the budgets from a response's rate limit headers, and pauses sending if the response is a 429
+     */
+    private void update(HttpHeaders headers, int status, int rateLimitRetries){
+        long now = System.nanoTime();
+        long limit = headers.firstValueAsLong("x-ratelimit-limit-requests").orElse(-1);
+        if (limit >= 0) {
+            limitRequests = limit;
+            remainingRequests = headers.firstValueAsLong("x-ratelimit-remaining-requests").orElse(remainingRequests);
+            requestsResetAt = now + headers.firstValue("x-ratelimit-reset-requests").map(RequestScheduler::parseDuration).orElse(0L);
+        }
+        limit = headers.firstValueAsLong("x-ratelimit-limit-tokens").orElse(-1);
+        if (limit >= 0) {
+            limitTokens = limit;
+            remainingTokens = headers.firstValueAsLong("x-ratelimit-remaining-tokens").orElse(remainingTokens);
+            tokensResetAt = now + headers.firstValue("x-ratelimit-reset-tokens").map(RequestScheduler::parseDuration).orElse(0L);
+        }
+        if (status != 429) return;
+
+        long wait = headers.firstValue("retry-after-ms").map(ms -> (long) (Double.parseDouble(ms) * 1_000_000))
+                .or(() -> headers.firstValue("retry-after").map(seconds -> (long) (Double.parseDouble(seconds) * 1_000_000_000)))
+                .orElse(-1L);
+        if (wait < 0) {
+            // No retry-after: wait for whichever budget resets last, or back off exponentially without one
+            wait = Math.max(requestsResetAt - now, tokensResetAt - now);
+            if (wait <= 0) wait = DEFAULT_RETRY_NANOS << rateLimitRetries;
+        }
+        if (pausedUntil - (now + wait) < 0) pausedUntil = now + wait;
+    }
+
+    /**
+     * Passes a response body through to the caller's subscriber, counting its bytes in api_response_bytes_total
+     */
+    private static class CountingSubscriber<T> implements HttpResponse.BodySubscriber<T> {
+        private final HttpResponse.BodySubscriber<T> subscriber;
+        private final String endpoint;
+        private long bytes;
+
+        CountingSubscriber(HttpResponse.BodySubscriber<T> subscriber, String endpoint){
+            this.subscriber = subscriber;
+            this.endpoint = endpoint;
+        }
+
+        @Override
+        public CompletionStage<T> getBody(){
+            return subscriber.getBody();
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription){
+            subscriber.onSubscribe(subscription);
+        }
+
+        @Override
+        public void onNext(List<ByteBuffer> buffers){
+            for (ByteBuffer buffer : buffers) bytes += buffer.remaining();
+            subscriber.onNext(buffers);
+        }
+
+        @Override
+        public void onError(Throwable throwable){
+            Metrics.registry().increment("api_response_bytes_total", bytes, "endpoint", endpoint);
+            subscriber.onError(throwable);
+        }
+
+        @Override
+        public void onComplete(){
+            Metrics.registry().increment("api_response_bytes_total", bytes, "endpoint", endpoint);
+            subscriber.onComplete();
+        }
+    }
+
+    /**
+     * Parses the durations of the x-ratelimit-reset-* headers, e.g. "20ms", "1s" or "6m0.5s"
+     * @return duration in nanoseconds, 0 if it cannot be parsed
+     */
+    static long parseDuration(String value){
+        Matcher matcher = DURATION.matcher(value);
+        double nanos = 0;
+        while (matcher.find()) {
+            double amount = Double.parseDouble(matcher.group(1));
+            nanos += switch (matcher.group(2)) {
+                case "ms" -> amount * 1e6;
+                case "s" -> amount * 1e9;
+                case "m" -> amount * 60e9;
+                default -> amount * 3600e9;
+            };
+        }
+        return (long) nanos;
+    }
+}
@@ -0,0 +1,202 @@
+import java.io.IOException;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Flow;
+import java.util.function.Consumer;
+
+
+/**
+ * Reads the server-sent event stream returned by a run created with "stream": true and assembles the assistant's
+ * reply from the thread.message.delta events as they arrive. Lines are pushed to it by the HttpClient as the body
+ * is received, so no thread is blocked waiting on the stream.
+ *
+ * The reply is only complete if the stream reports thread.run.completed. A thread.run.failed or error event, a body
+ * that cannot be parsed and a stream that ends or breaks before the run completed all fail the run, so partial text is
+ * never mistaken for a reply
+ */
+public class RunStreamReader implements Flow.Subscriber<String> {
+
+    /**
+     * Failure of a streamed run, with the payload of the error event or a description of what went wrong
+     */
+    public static class RunFailedException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public RunFailedException(String message){
+            super(message);
+        }
+    }
+
+    private final Consumer<String> onDelta;
+    private final CompletableFuture<String> result = new CompletableFuture<>();
+
+    private final StringBuilder message = new StringBuilder();
+    private Flow.Subscription subscription;
+    private ApiTypes.Message completedMessage;
+    private String error;
+    private String event;
+    private boolean done;
+    private boolean runCompleted;
+
+    /**
+     * @param onDelta called with every text fragment of the reply, in order, as soon as it is received
+     */
+    public RunStreamReader(Consumer<String> onDelta){
+        this.onDelta = onDelta;
+    }
+
+    /**
+     * @return body subscriber of a run's event stream, completing with the reply once the stream ends, exceptionally
+     * with a RunFailedException if the run did not complete
+     */
+    public HttpResponse.BodySubscriber<String> bodySubscriber(){
+        HttpResponse.BodySubscriber<Void> lines = HttpResponse.BodySubscribers.fromLineSubscriber(this, reader -> null, StandardCharsets.UTF_8, null);
+        return new HttpResponse.BodySubscriber<>() {
+            // The line adapter's own body never completes once this reader cancels, so result is used instead
+            @Override
+            public CompletionStage<String> getBody(){
+                return result;
+            }
+
+            @Override
+            public void onSubscribe(Flow.Subscription subscription){
+                lines.onSubscribe(subscription);
+            }
+
+            @Override
+            public void onNext(List<ByteBuffer> buffers){
+                lines.onNext(buffers);
+            }
+
+            @Override
+            public void onError(Throwable throwable){
+                lines.onError(throwable);
+            }
+
+            @Override
+            public void onComplete(){
+                lines.onComplete();
+            }
+        };
+    }
+
+    @Override
+    public void onSubscribe(Flow.Subscription subscription){
+        this.subscription = subscription;
+        subscription.request(Long.MAX_VALUE);
+    }
+
+    /**
+     * Handles a line, cancelling the stream if it cannot be handled: a subscriber must not throw
+     */
+    @Override
+    public void onNext(String line){
+        try {
+            this.onLine(line);
+        } catch (IOException | RuntimeException e) {
+            done = true;
+            subscription.cancel();
+            this.fail("Unreadable run stream: " + e);
+        }
+    }
+
+    @Override
+    public void onError(Throwable throwable){
+        this.fail("Run stream broke: " + throwable);
+    }
+
+    @Override
+    public void onComplete(){
+        if (error != null) this.fail(error);
+        else if (!runCompleted) this.fail("Run stream ended before thread.run.completed");
+        else result.complete(this.getMessage());
+    }
+
+    private void fail(String reason){
+        if (error == null) error = reason;
+        result.completeExceptionally(new RunFailedException(reason));
+    }
+
+    /**
+     * Handles a single line of the event stream. Lines after [DONE] are ignored
+     * @param line line of the response body, without its line terminator
+     */
+    public void onLine(String line) throws IOException {
+        if (done) return;
+        if (line.startsWith("event:")) {
+            event = line.substring("event:".length()).trim();
+        } else if (line.startsWith("data:")) {
+            String data = line.substring("data:".length()).trim();
+            if (data.equals("[DONE]")) {
+                done = true;
+                return;
+            }
+            this.onEvent(event, data);
+        } else if (line.isEmpty()) {
+            event = null;
+        }
+    }
+
+    /**
+     * Handles a single event of the stream
+     * @param event event name, e.g. thread.message.delta
+     * @param data JSON payload of the event
+     */
+    void onEvent(String event, String data) throws IOException {
+        if (event == null) return;
+        switch (event) {
+            case "thread.message.delta" -> {
+                ApiTypes.MessageDelta messageDelta = Json.MESSAGE_DELTA.readValue(data);
+                if (messageDelta.delta() == null || messageDelta.delta().content() == null) return;
+                for (ApiTypes.Content part : messageDelta.delta().content()) {
+                    if (part.text() == null || part.text().value() == null || part.text().value().isEmpty()) continue;
+                    String text = part.text().value();
+                    message.append(text);
+                    onDelta.accept(text);
+                }
+            }
+            case "thread.message.completed" -> {
+                completedMessage = Json.MESSAGE.readValue(data);
+            }
+            case "thread.run.completed" -> runCompleted = true;
+            case "thread.run.failed", "error" -> {
+                error = data;
+                System.out.println("Run stream error: " + data);
+            }
+            default -> { }
+        }
+    }
+
+    /**
+     * @return the completed message sent by the server if one was received, otherwise the text assembled from the
+     * deltas so far
+     */
+    public String getMessage(){
+        return completedMessage != null ? completedMessage.text() : message.toString();
+    }
+
+    /**
+     * @return the message of the thread.message.completed event, null if none was received
+     */
+    public ApiTypes.Message getCompletedMessage(){
+        return completedMessage;
+    }
+
+    /**
+     * @return payload of the error or thread.run.failed event, or why the stream failed, null if the run did not fail
+     */
+    public String getError(){
+        return error;
+    }
+
+    /**
+     * @return whether the stream reported thread.run.completed
+     */
+    public boolean isRunCompleted(){
+        return runCompleted;
+    }
+}
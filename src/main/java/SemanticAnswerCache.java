@@ -0,0 +1,200 @@
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.jelmerk.knn.DistanceFunctions;
+import com.github.jelmerk.knn.Item;
+import com.github.jelmerk.knn.SearchResult;
+import com.github.jelmerk.knn.hnsw.HnswIndex;
+import com.github.jelmerk.knn.hnsw.SizeLimitExceededException;
+import dev.langchain4j.model.embedding.AllMiniLmL6V2EmbeddingModel;
+import dev.langchain4j.model.embedding.EmbeddingModel;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+
+/**
+ * AnswerCache that also answers paraphrases of cached questions. Questions are embedded with the all-MiniLM-L6-v2
+ * model, run in process on the CPU, and a miss is answered with the answer of the nearest cached question of the same
+ * version of the same assistant if their cosine similarity reaches the threshold. Nearest neighbours are found in an
+ * HNSW graph per assistant version, so the search stays under a millisecond with many thousands of questions and a
+ * miss costs little more than embedding the question (milliseconds on a CPU) next to a run. The graph of a version is
+ * dropped with its last question, so versions left behind by edits to the assistant or its index do not stay in memory.
+ *
+ * Questions mentioning different numbers ("problem 3" and "problem 4") embed almost identically, so a cached question
+ * only matches if it mentions the same numbers
+ */
+public class SemanticAnswerCache extends AnswerCache {
+
+    public static final double DEFAULT_THRESHOLD = 0.9;
+
+    private static final int DIMENSIONS = 384;
+    private static final int INITIAL_CAPACITY = 1024;
+    private static final Pattern NUMBER = Pattern.compile("\\d+(?:[.,]\\d+)*");
+
+    private final double threshold;
+    // Embeddings of recent questions, so a miss that is then answered and put is embedded once
+    private final Cache<String, float[]> embeddings = Caffeine.newBuilder().maximumSize(1024).build();
+    // Graphs of the scopes with at least one question. A graph is only changed inside a compute of its mapping, so
+    // adding to a graph and dropping it once it is empty cannot interleave
+    private final Map<Scope, ScopeIndex> indexes = new ConcurrentHashMap<>();
+
+    /**
+     * Everything of a key but its question: only answers of the same scope can be served for each other
+     */
+    private record Scope(String assistantId, String version) {
+        static Scope of(Key key){
+            return new Scope(key.assistantId(), key.version());
+        }
+    }
+
+    private record QueryItem(Key id, float[] vector) implements Item<Key, float[]> {
+        @Override
+        public int dimensions(){
+            return vector.length;
+        }
+    }
+
+    private static class ModelHolder {
+        static final EmbeddingModel MODEL = new AllMiniLmL6V2EmbeddingModel();
+    }
+
+    private SemanticAnswerCache(long maximumSize, Duration timeToLive, double threshold){
+        super(maximumSize, timeToLive);
+        this.threshold = threshold;
+    }
+
+    /**
+     * @param maximumSize maximum number of answers kept
+     * @param timeToLive time after which an answer is asked again
+     * @param threshold minimum cosine similarity between two questions for one to be answered with the other's answer,
+     *                  e.g. DEFAULT_THRESHOLD
+     */
+    public static SemanticAnswerCache create(long maximumSize, Duration timeToLive, double threshold){
+        return register(new SemanticAnswerCache(maximumSize, timeToLive, threshold));
+    }
+
+    @Override
+    protected String getSimilar(Key key){
+        ScopeIndex index = indexes.get(Scope.of(key));
+        if (index == null) return null;
+        List<SearchResult<QueryItem, Float>> nearest = index.findNearest(this.embed(key.query()), 4);
+        List<String> numbers = numbers(key.query());
+        for (SearchResult<QueryItem, Float> result : nearest) {
+            // Inner product distance of unit vectors is 1 - cosine similarity
+            if (1 - result.distance() < threshold) break;
+            Key similar = result.item().id();
+            if (!numbers.equals(numbers(similar.query()))) continue;
+            String answer = this.getExact(similar);
+            if (answer != null) return answer;
+        }
+        return null;
+    }
+
+    @Override
+    protected void added(Key key){
+        QueryItem item = new QueryItem(key, this.embed(key.query()));
+        indexes.compute(Scope.of(key), (scope, index) -> {
+            if (index == null) index = new ScopeIndex();
+            index.add(item);
+            return index;
+        });
+    }
+
+    @Override
+    protected void removed(Key key){
+        indexes.computeIfPresent(Scope.of(key), (scope, index) -> {
+            index.remove(key);
+            return index.isEmpty() ? null : index;
+        });
+    }
+
+    /**
+     * @return number of assistant versions with questions in the cache
+     */
+    int scopeCount(){
+        return indexes.size();
+    }
+
+    /**
+     * @return unit-length embedding of a normalised question
+     */
+    private float[] embed(String query){
+        return embeddings.get(query, text -> {
+            float[] vector = ModelHolder.MODEL.embed(text).content().vector();
+            double norm = 0;
+            for (float value : vector) norm += value * value;
+            norm = Math.sqrt(norm);
+            if (norm > 0) {
+                for (int i = 0; i < vector.length; i++) vector[i] /= (float) norm;
+            }
+            return vector;
+        });
+    }
+
+    private static List<String> numbers(String query){
+        List<String> numbers = new ArrayList<>();
+        Matcher matcher = NUMBER.matcher(query);
+        while (matcher.find()) numbers.add(matcher.group());
+        return numbers;
+    }
+
+    /**
+     * HNSW graph of the questions of one scope. Removed questions keep their slot in the graph until it is full, it is
+     * then rebuilt from the remaining ones, or doubled in size if most are still there. Changes are serialised by the
+     * caller, searches read whichever graph is current
+     */
+    private static class ScopeIndex {
+        private volatile HnswIndex<Key, float[], QueryItem, Float> index = newIndex(INITIAL_CAPACITY);
+
+        private static HnswIndex<Key, float[], QueryItem, Float> newIndex(int capacity){
+            return HnswIndex.newBuilder(DIMENSIONS, DistanceFunctions.FLOAT_INNER_PRODUCT, capacity)
+                    .withM(16)
+                    .withEfConstruction(100)
+                    .withEf(16)
+                    .withRemoveEnabled()
+                    .build();
+        }
+
+        List<SearchResult<QueryItem, Float>> findNearest(float[] vector, int k){
+            return index.findNearest(vector, k);
+        }
+
+        void add(QueryItem item){
+            while (true) {
+                try {
+                    index.add(item);
+                    return;
+                } catch (SizeLimitExceededException e) {
+                    this.grow();
+                }
+            }
+        }
+
+        void remove(Key key){
+            index.remove(key, 0);
+        }
+
+        /**
+         * @return whether every question of the scope was removed, the size of the graph only counts the others
+         */
+        boolean isEmpty(){
+            return index.size() == 0;
+        }
+
+        private void grow(){
+            HnswIndex<Key, float[], QueryItem, Float> full = index;
+            if (full.size() > full.getMaxItemCount() / 2) {
+                full.resize(full.getMaxItemCount() * 2);
+                return;
+            }
+            HnswIndex<Key, float[], QueryItem, Float> rebuilt = newIndex(full.getMaxItemCount());
+            for (QueryItem item : full.items()) rebuilt.add(item);
+            index = rebuilt;
+        }
+    }
+}
@@ -0,0 +1,197 @@
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.text.PDFTextStripper;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+
+/**
+ * Extracts the plain text of files, e.g. to be indexed by LocalRetriever: PDFs page by page with PDFBox, anything else
+ * that decodes as UTF-8 (text, markdown, source code, ...) as is.
+ *
+ * The pages of a PDF are split into one contiguous range per worker of a fork-join pool, extracted in parallel, each
+ * from its own copy of the document as PDFBox documents are not thread-safe. The document is parsed once per range,
+ * and the first range reuses the copy that counted the pages. The text of every PDF is cached in a directory under the
+ * SHA-256 of its content, so extracting a corpus again only parses the PDFs that changed
+ */
+public class TextExtractor {
+
+    // Below this, parsing the document once more for a range costs more than the pages it extracts
+    private static final int MIN_PAGES_PER_TASK = 4;
+    private static final String PAGE_BREAK = "\f";
+
+    private final Path cacheDirectory;
+    private final ForkJoinPool pool;
+
+    /**
+     * Extracts PDFs on the common fork-join pool
+     * @param cacheDirectory directory the text of PDFs is cached in, created if needed
+     */
+    public TextExtractor(Path cacheDirectory) throws IOException {
+        this(cacheDirectory, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * @param cacheDirectory directory the text of PDFs is cached in, created if needed
+     * @param pool pool the pages of PDFs are extracted on
+     */
+    public TextExtractor(Path cacheDirectory, ForkJoinPool pool) throws IOException {
+        this.cacheDirectory = cacheDirectory;
+        this.pool = pool;
+        Files.createDirectories(cacheDirectory);
+    }
+
+    /**
+     * @return text of the file, pages separated by a blank line, empty string if it could not be read or is neither
+     * a PDF nor UTF-8 text
+     */
+    public String extract(Path file){
+        return String.join("\n\n", this.extractPages(file));
+    }
+
+    /**
+     * See extract(Path)
+     * @param sha256 SHA-256 of the file's content, hex-encoded, if the caller already computed it
+     */
+    public String extract(Path file, String sha256){
+        return String.join("\n\n", this.extractPages(file, sha256));
+    }
+
+    /**
+     * @return text of each page of a PDF, or a single page with the whole text of any other file, no pages if it
+     * could not be read or is neither a PDF nor UTF-8 text
+     */
+    public List<String> extractPages(Path file){
+        return this.extractPages(file, null);
+    }
+
+    /**
+     * See extractPages(Path)
+     * @param sha256 SHA-256 of the file's content, hex-encoded, null to compute it if the file is a PDF
+     */
+    public List<String> extractPages(Path file, String sha256){
+        long start = System.nanoTime();
+        try {
+            if (!file.getFileName().toString().toLowerCase(Locale.ROOT).endsWith(".pdf")) {
+                byte[] bytes = Files.readAllBytes(file);
+                return List.of(StandardCharsets.UTF_8.newDecoder()
+                        .onMalformedInput(CodingErrorAction.REPORT)
+                        .onUnmappableCharacter(CodingErrorAction.REPORT)
+                        .decode(ByteBuffer.wrap(bytes))
+                        .toString());
+            }
+
+            Path cached = cacheDirectory.resolve((sha256 != null ? sha256 : FileHashIndex.sha256(file)) + ".txt");
+            if (Files.exists(cached)) {
+                List<String> pages = List.of(Files.readString(cached, StandardCharsets.UTF_8).split(PAGE_BREAK, -1));
+                Metrics.registry().recordTime("text_extraction_seconds", System.nanoTime() - start, "cache", "hit");
+                return pages;
+            }
+            List<String> pages = this.extractPdf(Files.readAllBytes(file));
+            this.cache(cached, pages);
+            Metrics.registry().recordTime("text_extraction_seconds", System.nanoTime() - start, "cache", "miss");
+            return pages;
+        } catch (CharacterCodingException e) {
+            System.err.println("Not a PDF or UTF-8 text file, not extracted: " + file);
+            return List.of();
+        } catch (Exception e) {
+            System.err.println("Failed to extract text from " + file + ": " + e.getMessage());
+            e.printStackTrace();
+            return List.of();
+        }
+    }
+
+    private List<String> extractPdf(byte[] pdf) throws IOException {
+        try (PDDocument document = load(pdf)) {
+            int pageCount = document.getNumberOfPages();
+            int pagesPerTask = Math.max(MIN_PAGES_PER_TASK, -Math.floorDiv(-pageCount, pool.getParallelism()));
+            // Not worth a second parse
+            if (pageCount <= pagesPerTask) return extractPages(document, 1, pageCount);
+
+            List<PageRange> ranges = new ArrayList<>();
+            for (int first = pagesPerTask + 1; first <= pageCount; first += pagesPerTask) {
+                PageRange range = new PageRange(pdf, first, Math.min(pageCount, first + pagesPerTask - 1));
+                pool.execute(range);
+                ranges.add(range);
+            }
+            List<String> pages = new ArrayList<>(pageCount);
+            pages.addAll(extractPages(document, 1, pagesPerTask));
+            for (PageRange range : ranges) pages.addAll(range.join());
+            return pages;
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Writes the pages to a temporary file of its own first, so a cache file is never read half-written, even if the
+     * same PDF is extracted by two threads at once
+     */
+    private void cache(Path cached, List<String> pages){
+        try {
+            Path temp = Files.createTempFile(cacheDirectory, cached.getFileName().toString(), ".tmp");
+            Files.writeString(temp, String.join(PAGE_BREAK, pages), StandardCharsets.UTF_8);
+            Files.move(temp, cached, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            System.err.println("Failed to cache extracted text in " + cached + ": " + e.getMessage());
+            e.printStackTrace();
+        }
+    }
+
+    private static PDDocument load(byte[] pdf) throws IOException {
+        return PDDocument.load(pdf);
+    }
+
+    /**
+     * @param first number of the first page, from 1
+     * @param last number of the last page, inclusive
+     */
+    private static List<String> extractPages(PDDocument document, int first, int last) throws IOException {
+        PDFTextStripper stripper = new PDFTextStripper();
+        List<String> pages = new ArrayList<>(last - first + 1);
+        for (int page = first; page <= last; page++) {
+            stripper.setStartPage(page);
+            stripper.setEndPage(page);
+            pages.add(stripper.getText(document).strip());
+        }
+        return pages;
+    }
+
+    /**
+     * Extracts a range of pages from a copy of the document of its own
+     */
+    private static class PageRange extends RecursiveTask<List<String>> {
+        private static final long serialVersionUID = 1L;
+
+        private final byte[] pdf;
+        private final int first;
+        private final int last;
+
+        PageRange(byte[] pdf, int first, int last){
+            this.pdf = pdf;
+            this.first = first;
+            this.last = last;
+        }
+
+        @Override
+        protected List<String> compute(){
+            try (PDDocument document = load(pdf)) {
+                return extractPages(document, first, last);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,193 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * Keeps a number of empty OpenAI threads created ahead of time, so a conversation that needs a thread can take one
+ * without waiting on POST /threads. The pool is refilled in the background every time a thread is taken. While
+ * threads cannot be created (e.g. the endpoint's circuit is open), refills are retried with an exponential backoff
+ *
+ * Threads that were only needed for a single run (e.g. title and description generation) are handed back with
+ * release and deleted in batches by a background task, so neither creating nor deleting them is on the request path.
+ * Refills and deletes are sent as background requests, so they give way to conversations under rate limiting
+ */
+public class WarmThreadPool implements AutoCloseable {
+
+    private static final int SCRATCH_POOL_SIZE = 2;
+    private static final int DELETE_BATCH_SIZE = 16;
+    private static final long DELETE_INTERVAL_SECONDS = 5;
+    private static final long MAX_REFILL_DELAY_SECONDS = 16;
+
+    private static final Map<OpenAITransport, WarmThreadPool> scratchPools = new ConcurrentHashMap<>();
+
+    private final OpenAITransport transport;
+    private final int targetSize;
+
+    private final ConcurrentLinkedQueue<String> ready = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger creating = new AtomicInteger();
+    // Refills failed in a row, and whether a refill is scheduled after them
+    private final AtomicInteger failedRefills = new AtomicInteger();
+    private final AtomicBoolean refillScheduled = new AtomicBoolean();
+    private volatile boolean closed;
+
+    private final ConcurrentLinkedQueue<String> released = new ConcurrentLinkedQueue<>();
+    // Runs the batched deletes and the delayed refills
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(Thread.ofVirtual().factory());
+
+    private WarmThreadPool(OpenAITransport transport, int targetSize){
+        this.transport = transport;
+        this.targetSize = targetSize;
+    }
+
+    /**
+     * Creates a pool and starts filling it
+     * @param transport transport used to create the threads
+     * @param targetSize number of threads kept ready
+     */
+    public static WarmThreadPool start(OpenAITransport transport, int targetSize){
+        WarmThreadPool pool = new WarmThreadPool(transport, targetSize);
+        pool.refill();
+        pool.executor.scheduleWithFixedDelay(pool::deleteReleased, DELETE_INTERVAL_SECONDS, DELETE_INTERVAL_SECONDS, TimeUnit.SECONDS);
+        return pool;
+    }
+
+    /**
+     * Returns the JVM-wide pool of scratch threads for the given transport, creating it on first use
+     * @param transport transport the pool's threads are created with
+     * @return pool shared by every conversation using transport
+     */
+    public static WarmThreadPool scratch(OpenAITransport transport){
+        return scratchPools.computeIfAbsent(transport, t -> start(t, SCRATCH_POOL_SIZE));
+    }
+
+    /**
+     * Closes every scratch pool, deleting their threads. Called before the JVM exits so released threads are not
+     * left behind
+     */
+    public static void closeScratchPools(){
+        for (WarmThreadPool pool : List.copyOf(scratchPools.values())) pool.close();
+    }
+
+    /**
+     * Takes a ready thread from the pool, or creates one if the pool is empty, and starts refilling the pool
+     * @return future completing with the thread's ID, empty string if a thread could not be created
+     */
+    public CompletableFuture<String> take(){
+        String threadId = ready.poll();
+        this.refill();
+        return threadId != null ? CompletableFuture.completedFuture(threadId) : this.createThread(transport);
+    }
+
+    /**
+     * Hands back a thread that is no longer needed. It is deleted with the next batch rather than by the caller
+     * @param threadId ID of the thread, ignored if empty
+     */
+    public void release(String threadId){
+        if (threadId == null || threadId.isEmpty()) return;
+        released.add(threadId);
+        if (released.size() >= DELETE_BATCH_SIZE && !executor.isShutdown()) executor.execute(this::deleteReleased);
+    }
+
+    /**
+     * Stops refilling, deletes every released thread plus the ready ones, and stops the background tasks. Threads
+     * still being created are deleted as soon as they are
+     */
+    @Override
+    public void close(){
+        closed = true;
+        scratchPools.values().remove(this);
+        String threadId;
+        while ((threadId = ready.poll()) != null) released.add(threadId);
+        executor.shutdown();
+        this.deleteReleased();
+    }
+
+    /**
+     * @return number of threads ready to be taken without a request
+     */
+    public int available(){
+        return ready.size();
+    }
+
+    /**
+     * Starts creating threads until the ready and in-flight threads add up to the target size. Stops at the first
+     * failure, the refill is then tried again after a backoff
+     */
+    public void refill(){
+        for (int attempt = 0; attempt < targetSize && !closed; attempt++) {
+            int inFlight = creating.get();
+            if (ready.size() + inFlight >= targetSize) return;
+            if (!creating.compareAndSet(inFlight, inFlight + 1)) continue;
+            CompletableFuture<String> created = this.createThread(transport.background()).whenComplete((threadId, e) -> {
+                creating.decrementAndGet();
+                if (threadId == null || threadId.isEmpty()) {
+                    this.refillLater();
+                } else if (closed) {
+                    this.delete(threadId);
+                } else {
+                    failedRefills.set(0);
+                    ready.add(threadId);
+                }
+            });
+            // Failed without a request, e.g. because the circuit is open
+            if (created.isDone() && created.join().isEmpty()) return;
+        }
+    }
+
+    /**
+     * Schedules a refill after a delay doubling with every failed refill, from 1 second to MAX_REFILL_DELAY_SECONDS
+     */
+    private void refillLater(){
+        if (closed || !refillScheduled.compareAndSet(false, true)) return;
+        long delay = Math.min(MAX_REFILL_DELAY_SECONDS, 1L << Math.min(failedRefills.getAndIncrement(), 30));
+        try {
+            executor.schedule(() -> {
+                refillScheduled.set(false);
+                this.refill();
+            }, delay, TimeUnit.SECONDS);
+        } catch (RejectedExecutionException e) {
+            // Closed meanwhile
+        }
+    }
+
+    /**
+     * Sends the deletes for everything released since the last batch concurrently and waits for them to finish
+     */
+    private void deleteReleased(){
+        List<CompletableFuture<?>> deletes = new ArrayList<>();
+        String threadId;
+        while ((threadId = released.poll()) != null) deletes.add(this.delete(threadId));
+        CompletableFuture.allOf(deletes.toArray(CompletableFuture[]::new)).join();
+    }
+
+    private CompletableFuture<Void> delete(String threadId){
+        return transport.background().deleteAsync("/threads/" + threadId)
+                .thenAccept(response -> {
+                    if (response.statusCode() != 200) {
+                        System.out.println("Error in deleting thread " + threadId + ": " + response.statusCode());
+                    }
+                })
+                .exceptionally(e -> {
+                    e.printStackTrace();
+                    return null;
+                });
+    }
+
+    /**
+     * @param transport this.transport if a caller is waiting on the thread, its background view for refills
+     */
+    private CompletableFuture<String> createThread(OpenAITransport transport){
+        return transport.<ApiTypes.Thread>postAsync("/threads", "{}", Json.THREAD)
+                .thenApply(response -> response.body() == null ? "" : response.body().id())
+                .exceptionally(e -> {
+                    Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+                    if (cause instanceof CircuitBreaker.OpenException) System.err.println("Thread not created: " + cause.getMessage());
+                    else e.printStackTrace();
+                    return "";
+                });
+    }
+}
@@ -0,0 +1,110 @@
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+
+/**
+ * Normalisation of questions and keying of answers by assistant version in AnswerCache
+ */
+class AnswerCacheTest {
+
+    private static final ApiTypes.Assistant ASSISTANT = new ApiTypes.Assistant("asst_1", "assistant", 1_700_000_000L, "Helper",
+            null, "gpt-4o", "Answer briefly", List.of(new ApiTypes.Tool("file_search")), 0.2, List.of("file-1"));
+
+    /**
+     * Records the keys the hooks are called with
+     */
+    private static class RecordingCache extends AnswerCache {
+        final List<Key> added = new ArrayList<>();
+        final List<Key> removed = new ArrayList<>();
+
+        private RecordingCache(){
+            super(100, Duration.ofMinutes(10));
+        }
+
+        @Override
+        protected void added(Key key){
+            added.add(key);
+        }
+
+        @Override
+        protected void removed(Key key){
+            removed.add(key);
+        }
+    }
+
+    @Test
+    void trivialDifferencesAreNormalisedAway(){
+        String expected = "what is the refund policy";
+        assertEquals(expected, AnswerCache.normalize("What is the refund policy?"));
+        assertEquals(expected, AnswerCache.normalize("  WHAT is\tthe\n\nrefund   policy ?!. "));
+        // Full-width letters are a compatibility form of ASCII ones
+        assertEquals(expected, AnswerCache.normalize("Ｗｈａｔ is the refund policy"));
+        assertEquals("what about v1.2", AnswerCache.normalize("What about v1.2?"));
+        assertEquals("", AnswerCache.normalize("???"));
+        assertNotEquals(expected, AnswerCache.normalize("What is the refund policy for gifts?"));
+    }
+
+    @Test
+    void answersAreKeyedByAssistantVersionAndQuestion(){
+        AnswerCache cache = AnswerCache.create(100, Duration.ofMinutes(10));
+        String version = AnswerCache.version(ASSISTANT, null);
+        cache.put(AnswerCache.Key.of("asst_1", version, "What is the refund policy?"), "30 days");
+
+        assertEquals("30 days", cache.get(AnswerCache.Key.of("asst_1", version, "what is the refund policy")));
+        assertNull(cache.get(AnswerCache.Key.of("asst_2", version, "What is the refund policy?")));
+        assertNull(cache.get(AnswerCache.Key.of("asst_1", "other", "What is the refund policy?")));
+        assertNull(cache.get(AnswerCache.Key.of("asst_1", version, "What is the shipping policy?")));
+    }
+
+    @Test
+    void emptyAnswersAreNotCached(){
+        AnswerCache cache = AnswerCache.create(100, Duration.ofMinutes(10));
+        AnswerCache.Key key = AnswerCache.Key.of("asst_1", "v1", "Hello");
+        cache.put(key, "");
+        cache.put(key, null);
+        assertNull(cache.get(key));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    void versionChangesWithTheAssistantAndTheIndex(){
+        String version = AnswerCache.version(ASSISTANT, null);
+        assertEquals(version, AnswerCache.version(new ApiTypes.Assistant("asst_1", "assistant", 1_700_000_000L, "Helper",
+                null, "gpt-4o", "Answer briefly", List.of(new ApiTypes.Tool("file_search")), 0.2, List.of("file-1")), null));
+
+        ApiTypes.Assistant instructed = new ApiTypes.Assistant("asst_1", "assistant", 1_700_000_000L, "Helper",
+                null, "gpt-4o", "Answer at length", List.of(new ApiTypes.Tool("file_search")), 0.2, List.of("file-1"));
+        ApiTypes.Assistant withFile = new ApiTypes.Assistant("asst_1", "assistant", 1_700_000_000L, "Helper",
+                null, "gpt-4o", "Answer briefly", List.of(new ApiTypes.Tool("file_search")), 0.2, List.of("file-1", "file-2"));
+        assertNotEquals(version, AnswerCache.version(instructed, null));
+        assertNotEquals(version, AnswerCache.version(withFile, null));
+        assertNotEquals(version, AnswerCache.version(ASSISTANT, "a.seg"));
+        assertNotEquals(AnswerCache.version(ASSISTANT, "a.seg"), AnswerCache.version(ASSISTANT, "a.seg,b.seg"));
+    }
+
+    @Test
+    void invalidationDropsOnlyThatAssistantsAnswers(){
+        RecordingCache cache = AnswerCache.register(new RecordingCache());
+        AnswerCache.Key first = AnswerCache.Key.of("asst_1", "v1", "Hello");
+        AnswerCache.Key second = AnswerCache.Key.of("asst_2", "v1", "Hello");
+        cache.put(first, "Hi from one");
+        cache.put(second, "Hi from two");
+        assertEquals(List.of(first, second), cache.added);
+
+        cache.invalidateAssistant("asst_1");
+        assertNull(cache.get(first));
+        assertEquals("Hi from two", cache.get(second));
+        assertEquals(List.of(first), cache.removed);
+
+        // Replacing an answer is not a removal
+        cache.put(second, "Hello again");
+        assertEquals(List.of(first), cache.removed);
+        cache.invalidateAll();
+        assertEquals(List.of(first, second), cache.removed);
+    }
+}
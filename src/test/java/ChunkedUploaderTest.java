@@ -0,0 +1,100 @@
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+
+/**
+ * Resumable uploads against a MockAssistantsServer that drops part requests halfway through
+ */
+class ChunkedUploaderTest {
+
+    private static final int PART_SIZE = 64 * 1024;
+
+    @TempDir
+    Path directory;
+
+    private MockAssistantsServer mock;
+    private Path manifests;
+
+    @BeforeEach
+    void start() throws IOException {
+        mock = new MockAssistantsServer(0);
+        mock.start();
+        manifests = directory.resolve("manifests");
+    }
+
+    @AfterEach
+    void stop(){
+        mock.stop();
+    }
+
+    @Test
+    void uploadsEveryPartInOrder() throws IOException {
+        // Not a multiple of the part size, so the last part is shorter
+        byte[] content = randomBytes(10 * PART_SIZE + 123);
+        Path file = Files.write(directory.resolve("file.bin"), content);
+
+        String fileId = this.uploader().upload(file).join();
+        assertNotNull(fileId);
+        assertArrayEquals(content, mock.getFileContent(fileId));
+        assertTrue(isEmpty(manifests), "manifest of a finished upload is deleted");
+    }
+
+    @Test
+    void failedUploadKeepsItsManifestAndResumes() throws IOException {
+        byte[] content = randomBytes(16 * PART_SIZE);
+        Path file = Files.write(directory.resolve("file.bin"), content);
+
+        mock.setPartFailureRate(1);
+        assertNull(this.uploader().upload(file).join());
+        assertFalse(isEmpty(manifests), "manifest of a failed upload is kept");
+
+        // Some parts go through on every attempt, the next attempt only sends the others. Each attempt is made with
+        // a transport of its own, as by a program started again, since the failures open the circuit of the first
+        mock.setPartFailureRate(0.5);
+        String fileId = null;
+        for (int attempt = 0; attempt < 50 && fileId == null; attempt++) fileId = this.uploader().upload(file).join();
+        assertNotNull(fileId, "upload completes within 50 attempts");
+        assertArrayEquals(content, mock.getFileContent(fileId));
+        assertTrue(isEmpty(manifests));
+    }
+
+    @Test
+    void changedFileStartsANewUpload() throws IOException {
+        Path file = Files.write(directory.resolve("file.bin"), randomBytes(4 * PART_SIZE));
+        mock.setPartFailureRate(1);
+        assertNull(this.uploader().upload(file).join());
+
+        mock.setPartFailureRate(0);
+        byte[] changed = randomBytes(5 * PART_SIZE);
+        Files.write(file, changed);
+        String fileId = this.uploader().upload(file).join();
+        assertNotNull(fileId);
+        assertArrayEquals(changed, mock.getFileContent(fileId));
+    }
+
+    private ChunkedUploader uploader(){
+        OpenAITransport transport = OpenAITransport.builder().baseUrl(mock.getBaseUrl()).apiKey("mock").build();
+        return new ChunkedUploader(transport, manifests, PART_SIZE, 4);
+    }
+
+    private static byte[] randomBytes(int length){
+        byte[] bytes = new byte[length];
+        new Random(length).nextBytes(bytes);
+        return bytes;
+    }
+
+    private static boolean isEmpty(Path directory) throws IOException {
+        try (var files = Files.list(directory)) {
+            return files.findAny().isEmpty();
+        }
+    }
+}
@@ -0,0 +1,129 @@
+import com.fasterxml.jackson.databind.JsonNode;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+
+/**
+ * Sessions of a ConversationServer backed by a MockAssistantsServer, over HTTP as a client would use them
+ */
+class ConversationServerTest {
+
+    private final HttpClient client = HttpClient.newHttpClient();
+
+    private MockAssistantsServer mock;
+    private OpenAITransport transport;
+    private ConversationServer server;
+
+    @BeforeEach
+    void startMock() throws IOException {
+        mock = new MockAssistantsServer(0);
+        mock.start();
+        transport = OpenAITransport.builder().baseUrl(mock.getBaseUrl()).apiKey("mock").build();
+    }
+
+    @AfterEach
+    void stop(){
+        if (server != null) server.stop();
+        mock.stop();
+    }
+
+    @Test
+    void sessionStreamsRepliesAndKeepsItsHistory() throws Exception {
+        server = this.startServer(null);
+        String sessionId = this.createSession();
+
+        HttpResponse<String> reply = this.send("POST", "/sessions/" + sessionId + "/messages", "{\"content\": \"Hello there\"}");
+        assertEquals(200, reply.statusCode());
+        assertEquals("text/event-stream", reply.headers().firstValue("Content-Type").orElse(null));
+        assertTrue(reply.body().contains("event: delta"), reply.body());
+        assertTrue(reply.body().contains("event: done\ndata: {\"text\":\"You said: Hello there\"}"), reply.body());
+
+        JsonNode history = Json.MAPPER.readTree(this.send("GET", "/sessions/" + sessionId + "/messages", null).body());
+        assertEquals(2, history.get("messages").size());
+        assertEquals("USER", history.get("messages").get(0).get("role").asText());
+        assertEquals("You said: Hello there", history.get("messages").get(1).get("text").asText());
+    }
+
+    @Test
+    void sessionsAreIndependent() throws Exception {
+        server = this.startServer(null);
+        String first = this.createSession();
+        String second = this.createSession();
+        assertNotEquals(first, second);
+
+        this.send("POST", "/sessions/" + first + "/messages", "{\"content\": \"one\"}");
+        JsonNode history = Json.MAPPER.readTree(this.send("GET", "/sessions/" + second + "/messages", null).body());
+        assertEquals(0, history.get("messages").size());
+        assertEquals(2, server.getSessionCount());
+    }
+
+    @Test
+    void deletedAndUnknownSessionsAreNotFound() throws Exception {
+        server = this.startServer(null);
+        String sessionId = this.createSession();
+
+        assertEquals(200, this.send("DELETE", "/sessions/" + sessionId, null).statusCode());
+        assertEquals(404, this.send("GET", "/sessions/" + sessionId + "/messages", null).statusCode());
+        assertEquals(404, this.send("POST", "/sessions/unknown/messages", "{\"content\": \"hi\"}").statusCode());
+        assertEquals(0, server.getSessionCount());
+    }
+
+    @Test
+    void emptyMessageIsRejected() throws Exception {
+        server = this.startServer(null);
+        String sessionId = this.createSession();
+        assertEquals(400, this.send("POST", "/sessions/" + sessionId + "/messages", "{\"content\": \"\"}").statusCode());
+    }
+
+    @Test
+    void sessionsAreResumedFromTheStore(@TempDir Path directory) throws Exception {
+        String sessionId;
+        try (ConversationStore store = new ConversationStore(directory)) {
+            server = this.startServer(store);
+            sessionId = this.createSession();
+            this.send("POST", "/sessions/" + sessionId + "/messages", "{\"content\": \"Remember me\"}");
+            server.stop();
+        }
+
+        try (ConversationStore store = new ConversationStore(directory)) {
+            server = this.startServer(store);
+            assertEquals(1, server.getSessionCount());
+            JsonNode history = Json.MAPPER.readTree(this.send("GET", "/sessions/" + sessionId + "/messages", null).body());
+            assertEquals(2, history.get("messages").size());
+            assertEquals("Remember me", history.get("messages").get(0).get("text").asText());
+
+            HttpResponse<String> reply = this.send("POST", "/sessions/" + sessionId + "/messages", "{\"content\": \"Again\"}");
+            assertTrue(reply.body().contains("You said: Again"), reply.body());
+        }
+    }
+
+    private ConversationServer startServer(ConversationStore store) throws IOException {
+        ConversationServer server = new ConversationServer(0, "asst_test", transport, 0, store);
+        server.start();
+        return server;
+    }
+
+    private String createSession() throws Exception {
+        HttpResponse<String> response = this.send("POST", "/sessions", null);
+        assertEquals(201, response.statusCode());
+        return Json.MAPPER.readTree(response.body()).get("session_id").asText();
+    }
+
+    private HttpResponse<String> send(String method, String path, String json) throws Exception {
+        HttpRequest request = HttpRequest.newBuilder(URI.create("http://localhost:" + server.getPort() + path))
+                .method(method, json == null ? HttpRequest.BodyPublishers.noBody() : HttpRequest.BodyPublishers.ofString(json))
+                .build();
+        return client.send(request, HttpResponse.BodyHandlers.ofString());
+    }
+}
@@ -0,0 +1,157 @@
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+
+/**
+ * Recovery of a ConversationStore from what a crash can leave on disk: torn records and unfinished compactions
+ */
+class ConversationStoreTest {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void conversationsAreLoadedAgain() throws IOException {
+        try (ConversationStore store = new ConversationStore(directory)) {
+            assertTrue(store.open("thread_1", "asst_1", "first"));
+            assertTrue(store.append("thread_1", entry(ConversationHistory.Role.USER, "Hello")));
+            assertTrue(store.open("thread_2", "asst_1", "second"));
+            assertTrue(store.append("thread_1", entry(ConversationHistory.Role.ASSISTANT, "Hi")));
+            assertTrue(store.delete("thread_2"));
+        }
+
+        try (ConversationStore store = new ConversationStore(directory)) {
+            Map<String, ConversationStore.ThreadRecord> threads = store.load();
+            assertEquals(List.of("thread_1"), List.copyOf(threads.keySet()));
+            ConversationStore.ThreadRecord thread = threads.get("thread_1");
+            assertEquals("asst_1", thread.assistantId());
+            assertEquals("first", thread.label());
+            assertEquals(List.of(entry(ConversationHistory.Role.USER, "Hello"), entry(ConversationHistory.Role.ASSISTANT, "Hi")), thread.messages());
+        }
+    }
+
+    @Test
+    void tornRecordIsCutOff() throws IOException {
+        try (ConversationStore store = new ConversationStore(directory)) {
+            store.open("thread_1", "asst_1", "label");
+            store.append("thread_1", entry(ConversationHistory.Role.USER, "Complete"));
+            store.append("thread_1", entry(ConversationHistory.Role.ASSISTANT, "Torn by a crash"));
+        }
+        // Cut the last record short, as a crash in the middle of writing it would
+        Path segment = this.segments().getLast();
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+            channel.truncate(channel.size() - 5);
+        }
+
+        try (ConversationStore store = new ConversationStore(directory)) {
+            assertEquals(List.of(entry(ConversationHistory.Role.USER, "Complete")), store.load().get("thread_1").messages());
+            // Appended after the last complete record, not after the torn one
+            store.append("thread_1", entry(ConversationHistory.Role.ASSISTANT, "Written again"));
+        }
+
+        try (ConversationStore store = new ConversationStore(directory)) {
+            assertEquals(List.of(entry(ConversationHistory.Role.USER, "Complete"), entry(ConversationHistory.Role.ASSISTANT, "Written again")),
+                    store.load().get("thread_1").messages());
+        }
+    }
+
+    @Test
+    void corruptRecordEndsTheSegment() throws IOException {
+        try (ConversationStore store = new ConversationStore(directory)) {
+            store.open("thread_1", "asst_1", "label");
+            store.append("thread_1", entry(ConversationHistory.Role.USER, "Complete"));
+            store.append("thread_1", entry(ConversationHistory.Role.ASSISTANT, "Corrupt"));
+        }
+        // Flip the last byte of the last record, so it fails its checksum
+        Path segment = this.segments().getLast();
+        byte[] bytes = Files.readAllBytes(segment);
+        bytes[bytes.length - 1] ^= 1;
+        Files.write(segment, bytes);
+
+        try (ConversationStore store = new ConversationStore(directory)) {
+            assertEquals(List.of(entry(ConversationHistory.Role.USER, "Complete")), store.load().get("thread_1").messages());
+        }
+    }
+
+    @Test
+    void compactionDropsDeletedConversations() throws IOException {
+        try (ConversationStore store = new ConversationStore(directory)) {
+            store.open("thread_1", "asst_1", "kept");
+            store.append("thread_1", entry(ConversationHistory.Role.USER, "Hello"));
+            store.open("thread_2", "asst_1", "deleted");
+            store.append("thread_2", entry(ConversationHistory.Role.USER, "Bye"));
+            store.delete("thread_2");
+
+            assertTrue(store.compact());
+            assertEquals(1, this.segments().size());
+            store.append("thread_1", entry(ConversationHistory.Role.ASSISTANT, "After compaction"));
+        }
+
+        try (ConversationStore store = new ConversationStore(directory)) {
+            Map<String, ConversationStore.ThreadRecord> threads = store.load();
+            assertEquals(List.of("thread_1"), List.copyOf(threads.keySet()));
+            assertEquals(List.of(entry(ConversationHistory.Role.USER, "Hello"), entry(ConversationHistory.Role.ASSISTANT, "After compaction")),
+                    threads.get("thread_1").messages());
+        }
+    }
+
+    @Test
+    void unfinishedCompactionIsDiscarded() throws IOException {
+        try (ConversationStore store = new ConversationStore(directory)) {
+            store.open("thread_1", "asst_1", "label");
+            store.append("thread_1", entry(ConversationHistory.Role.USER, "Hello"));
+        }
+        // Crash while the compacted segment was being written, before it was renamed into place
+        Path compaction = Files.write(directory.resolve("compaction.tmp"), new byte[]{0, 0, 0, 42, 1, 2});
+
+        try (ConversationStore store = new ConversationStore(directory)) {
+            assertFalse(Files.exists(compaction));
+            assertEquals(List.of(entry(ConversationHistory.Role.USER, "Hello")), store.load().get("thread_1").messages());
+        }
+    }
+
+    @Test
+    void segmentsLeftByACompactionAreIgnored() throws IOException {
+        try (ConversationStore store = new ConversationStore(directory)) {
+            store.open("thread_1", "asst_1", "label");
+            store.append("thread_1", entry(ConversationHistory.Role.USER, "Hello"));
+            store.open("thread_2", "asst_1", "deleted");
+            store.delete("thread_2");
+            Path first = this.segments().getFirst();
+            byte[] beforeCompaction = Files.readAllBytes(first);
+
+            assertTrue(store.compact());
+            // Crash after the compacted segment was renamed into place, before the old one was removed
+            Files.write(first, beforeCompaction);
+        }
+
+        try (ConversationStore store = new ConversationStore(directory)) {
+            assertEquals(2, this.segments().size());
+            Map<String, ConversationStore.ThreadRecord> threads = store.load();
+            assertEquals(List.of("thread_1"), List.copyOf(threads.keySet()));
+            // Not read twice
+            assertEquals(List.of(entry(ConversationHistory.Role.USER, "Hello")), threads.get("thread_1").messages());
+        }
+    }
+
+    private static ConversationHistory.Entry entry(ConversationHistory.Role role, String text){
+        return new ConversationHistory.Entry(role, 1_700_000_000_000L, text);
+    }
+
+    private List<Path> segments() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(path -> path.getFileName().toString().endsWith(".log")).sorted().toList();
+        }
+    }
+}
@@ -0,0 +1,85 @@
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+
+/**
+ * Bucket math of the InMemoryMetrics histograms, and the counters, gauges and text rendering around them
+ */
+class InMemoryMetricsTest {
+
+    @Test
+    void everyValueIsInABucketAtMostAnEighthWide(){
+        InMemoryMetrics metrics = new InMemoryMetrics();
+        for (long micros = 1; micros < 1L << 40; micros = micros < 4096 ? micros + 1 : micros * 17 / 16) {
+            // The larger value keeps the quantile from being capped at the largest value recorded
+            String name = "value_" + micros;
+            metrics.recordTime(name, micros * 1000);
+            metrics.recordTime(name, micros * 1000 * 100);
+            double upperBound = metrics.quantile(0.5, name) * 1e6;
+
+            if (micros < 8) assertEquals(micros + 1, upperBound, 1e-6, "own bucket of " + micros);
+            else {
+                assertTrue(upperBound > micros, micros + " below the upper bound of its bucket, " + upperBound);
+                assertTrue(upperBound <= micros * 1.125 + 1e-6, micros + " within an eighth of its bucket's upper bound, " + upperBound);
+            }
+        }
+    }
+
+    @Test
+    void quantilesAreWithinTheirBucket(){
+        InMemoryMetrics metrics = new InMemoryMetrics();
+        for (int millis = 1; millis <= 1000; millis++) metrics.recordTime("api_request_seconds", TimeUnit.MILLISECONDS.toNanos(millis), "endpoint", "GET /threads/{id}");
+
+        double p50 = metrics.quantile(0.5, "api_request_seconds", "endpoint", "GET /threads/{id}");
+        double p99 = metrics.quantile(0.99, "api_request_seconds", "endpoint", "GET /threads/{id}");
+        assertTrue(p50 >= 0.5 && p50 <= 0.5 * 1.125, "p50 " + p50);
+        assertTrue(p99 >= 0.99 && p99 <= 1.0, "p99 " + p99);
+        // Capped at the largest value recorded
+        assertEquals(1.0, metrics.quantile(1, "api_request_seconds", "endpoint", "GET /threads/{id}"), 1e-9);
+        assertTrue(Double.isNaN(metrics.quantile(0.5, "api_request_seconds", "endpoint", "POST /threads")));
+    }
+
+    @Test
+    void singleValueIsExact(){
+        InMemoryMetrics metrics = new InMemoryMetrics();
+        metrics.recordTime("ttft_seconds", 123_456_789);
+        assertEquals(0.123456789, metrics.quantile(0.5, "ttft_seconds"), 1e-12);
+
+        metrics.recordTime("tiny_seconds", 400);
+        assertEquals(400e-9, metrics.quantile(0.99, "tiny_seconds"), 1e-15);
+    }
+
+    @Test
+    void countersAndGaugesAreSummedPerLabels(){
+        InMemoryMetrics metrics = new InMemoryMetrics();
+        metrics.increment("api_responses_total", 1, "endpoint", "GET /threads/{id}", "status", "200");
+        metrics.increment("api_responses_total", 2, "endpoint", "GET /threads/{id}", "status", "200");
+        metrics.increment("api_responses_total", 1, "endpoint", "GET /threads/{id}", "status", "500");
+        metrics.adjust("api_requests_in_flight", 1);
+        metrics.adjust("api_requests_in_flight", 1);
+        metrics.adjust("api_requests_in_flight", -1);
+
+        assertEquals(3, metrics.value("api_responses_total", "endpoint", "GET /threads/{id}", "status", "200"));
+        assertEquals(1, metrics.value("api_responses_total", "endpoint", "GET /threads/{id}", "status", "500"));
+        assertEquals(0, metrics.value("api_responses_total", "endpoint", "POST /threads", "status", "200"));
+        assertEquals(1, metrics.value("api_requests_in_flight"));
+    }
+
+    @Test
+    void textIsPrometheusExposition(){
+        InMemoryMetrics metrics = new InMemoryMetrics();
+        metrics.recordTime("retrieval_seconds", 2_000_000);
+        metrics.increment("uploads_total", 2, "label", "quote \" and \\");
+        metrics.adjust("sessions", 3);
+
+        String text = metrics.text();
+        assertTrue(text.contains("# TYPE retrieval_seconds summary\n"), text);
+        assertTrue(text.contains("retrieval_seconds{quantile=\"0.5\"} 0.002\n"), text);
+        assertTrue(text.contains("retrieval_seconds_sum 0.002\nretrieval_seconds_count 1\n"), text);
+        assertTrue(text.contains("# TYPE uploads_total counter\nuploads_total{label=\"quote \\\" and \\\\\"} 2\n"), text);
+        assertTrue(text.contains("# TYPE sessions gauge\nsessions 3\n"), text);
+    }
+}
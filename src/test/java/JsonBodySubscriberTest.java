@@ -0,0 +1,131 @@
+import org.junit.jupiter.api.Test;
+
+import java.net.http.HttpClient;
+import java.net.http.HttpHeaders;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Flow;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+
+/**
+ * Binding of response bodies by JsonBodySubscriber, fed the way the HttpClient feeds it: in chunks that split tokens
+ * and multi-byte characters anywhere
+ */
+class JsonBodySubscriberTest {
+
+    private static final String ASSISTANT = """
+            {"id": "asst_1", "object": "assistant", "created_at": 1700000000, "name": "Résumé helper ✍️",
+             "description": null, "model": "gpt-4o", "instructions": "Answer in \\"quotes\\"\\n",
+             "tools": [{"type": "file_search"}], "temperature": 0.25, "file_ids": ["file-1", "file-2"],
+             "metadata": {"ignored": true}}""";
+
+    /**
+     * Subscription that counts what the subscriber asks for
+     */
+    private static class CountingSubscription implements Flow.Subscription {
+        long requested;
+        boolean cancelled;
+
+        @Override
+        public void request(long n){
+            requested += n;
+        }
+
+        @Override
+        public void cancel(){
+            cancelled = true;
+        }
+    }
+
+    @Test
+    void bodySplitInEveryPlaceIsBound(){
+        ApiTypes.Assistant expected = Json.read(Json.ASSISTANT, ASSISTANT);
+        assertNotNull(expected);
+        byte[] bytes = ASSISTANT.getBytes(StandardCharsets.UTF_8);
+        for (int split = 1; split < bytes.length; split++) {
+            JsonBodySubscriber<ApiTypes.Assistant> subscriber = new JsonBodySubscriber<>(Json.ASSISTANT);
+            CountingSubscription subscription = new CountingSubscription();
+            subscriber.onSubscribe(subscription);
+            subscriber.onNext(List.of(ByteBuffer.wrap(bytes, 0, split)));
+            subscriber.onNext(List.of(ByteBuffer.wrap(bytes, split, bytes.length - split)));
+            subscriber.onComplete();
+
+            assertEquals(expected, subscriber.getBody().toCompletableFuture().join(), "split at " + split);
+            // One chunk at a time
+            assertEquals(3, subscription.requested);
+        }
+    }
+
+    @Test
+    void bodyFedByteByByteIsBound(){
+        JsonBodySubscriber<ApiTypes.Assistant> subscriber = new JsonBodySubscriber<>(Json.ASSISTANT);
+        subscriber.onSubscribe(new CountingSubscription());
+        List<ByteBuffer> buffers = new ArrayList<>();
+        for (byte b : ASSISTANT.getBytes(StandardCharsets.UTF_8)) buffers.add(ByteBuffer.wrap(new byte[]{b}));
+        // Several buffers per call, as the client hands them over
+        for (int i = 0; i < buffers.size(); i += 3) subscriber.onNext(buffers.subList(i, Math.min(buffers.size(), i + 3)));
+        subscriber.onComplete();
+
+        ApiTypes.Assistant assistant = subscriber.getBody().toCompletableFuture().join();
+        assertEquals("Résumé helper ✍️", assistant.name());
+        assertEquals("Answer in \"quotes\"\n", assistant.instructions());
+        assertEquals(List.of("file-1", "file-2"), assistant.fileIds());
+    }
+
+    @Test
+    void invalidBodyFailsAndCancels(){
+        JsonBodySubscriber<ApiTypes.Assistant> subscriber = new JsonBodySubscriber<>(Json.ASSISTANT);
+        CountingSubscription subscription = new CountingSubscription();
+        subscriber.onSubscribe(subscription);
+        subscriber.onNext(List.of(ByteBuffer.wrap("{\"id\": \"asst_1\",, ".getBytes(StandardCharsets.UTF_8))));
+
+        assertTrue(subscription.cancelled);
+        assertThrows(CompletionException.class, () -> subscriber.getBody().toCompletableFuture().join());
+    }
+
+    @Test
+    void truncatedBodyFails(){
+        JsonBodySubscriber<ApiTypes.Assistant> subscriber = new JsonBodySubscriber<>(Json.ASSISTANT);
+        subscriber.onSubscribe(new CountingSubscription());
+        subscriber.onNext(List.of(ByteBuffer.wrap("{\"id\": \"asst_1\", \"name\": \"cut".getBytes(StandardCharsets.UTF_8))));
+        subscriber.onComplete();
+
+        assertThrows(CompletionException.class, () -> subscriber.getBody().toCompletableFuture().join());
+    }
+
+    @Test
+    void errorResponseIsNull(){
+        HttpResponse.BodySubscriber<ApiTypes.Assistant> subscriber = JsonBodySubscriber.<ApiTypes.Assistant>handler(Json.ASSISTANT).apply(responseInfo(404));
+        subscriber.onSubscribe(new CountingSubscription());
+        subscriber.onNext(List.of(ByteBuffer.wrap("{\"error\": {\"message\": \"No assistant found\"}}".getBytes(StandardCharsets.UTF_8))));
+        subscriber.onComplete();
+
+        assertNull(subscriber.getBody().toCompletableFuture().join());
+    }
+
+    private static HttpResponse.ResponseInfo responseInfo(int status){
+        return new HttpResponse.ResponseInfo() {
+            @Override
+            public int statusCode(){
+                return status;
+            }
+
+            @Override
+            public HttpHeaders headers(){
+                return HttpHeaders.of(Map.of(), (name, value) -> true);
+            }
+
+            @Override
+            public HttpClient.Version version(){
+                return HttpClient.Version.HTTP_1_1;
+            }
+        };
+    }
+}
@@ -0,0 +1,149 @@
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+
+/**
+ * BM25 scores and ranking of a LocalRetriever, and how its index follows the files it was built from
+ */
+class LocalRetrieverTest {
+
+    private static final double K1 = 1.2;
+    private static final double B = 0.75;
+
+    @TempDir
+    Path directory;
+
+    private Path files;
+    private LocalRetriever retriever;
+
+    @BeforeEach
+    void open() throws IOException {
+        files = Files.createDirectories(directory.resolve("files"));
+        retriever = new LocalRetriever(directory.resolve("index"));
+    }
+
+    @Test
+    void scoreIsBm25OverTheWholeIndex() throws IOException {
+        this.index("a.txt", "apple banana");
+        this.index("b.txt", "apple cherry");
+        this.index("c.txt", "durian");
+
+        List<LocalRetriever.Passage> passages = retriever.search("banana", 10);
+        assertEquals(1, passages.size());
+        assertEquals(files.resolve("a.txt").toAbsolutePath().toString(), passages.getFirst().source());
+        assertEquals("apple banana", passages.getFirst().text());
+        // 3 passages of 2, 2 and 1 terms, "banana" is in one of them once
+        double idf = Math.log(1 + (3 - 1 + 0.5) / (1 + 0.5));
+        double norm = K1 * (1 - B + B * 2 / (5 / 3.0));
+        assertEquals(idf * (K1 + 1) / (1 + norm), passages.getFirst().score(), 1e-9);
+    }
+
+    @Test
+    void passagesMatchingMoreOfTheQueryRankFirst() throws IOException {
+        this.index("both.txt", "kafka partitions rebalance consumers");
+        this.index("common.txt", "kafka brokers replicate logs");
+        this.index("repeated.txt", "partitions partitions partitions offsets");
+        this.index("unrelated.txt", "postgres vacuum tuning guide");
+
+        // Term frequency saturates, so two matching terms beat one term repeated
+        List<LocalRetriever.Passage> passages = retriever.search("How are Kafka partitions rebalanced?", 10);
+        assertEquals(List.of("both.txt", "repeated.txt", "common.txt"), passages.stream().map(LocalRetrieverTest::name).toList());
+        for (int i = 1; i < passages.size(); i++) assertTrue(passages.get(i - 1).score() >= passages.get(i).score());
+        assertEquals(List.of("repeated.txt"), retriever.search("partitions", 1).stream().map(LocalRetrieverTest::name).toList());
+        assertEquals(List.of(), retriever.search("the and of", 10));
+    }
+
+    @Test
+    void filesAreSplitIntoOverlappingPassages() throws IOException {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 25; i++) text.append("word").append(i).append(' ');
+        retriever = new LocalRetriever(directory.resolve("small"), 10);
+        // Passages start every 8 words: 0-9, 8-17, 16-24
+        assertEquals(3, retriever.index(Files.writeString(files.resolve("long.txt"), text)));
+        assertEquals(List.of("word8 word9 word10 word11 word12 word13 word14 word15 word16 word17",
+                        "word0 word1 word2 word3 word4 word5 word6 word7 word8 word9"),
+                retriever.search("word9 word10", 10).stream().map(LocalRetriever.Passage::text).toList());
+    }
+
+    @Test
+    void indexFollowsTheContentOfFiles() throws IOException {
+        Path file = this.index("notes.txt", "first draft about gardening");
+        String version = retriever.version();
+        assertEquals(0, retriever.index(file), "same content is not indexed again");
+        assertEquals(version, retriever.version());
+
+        Files.writeString(file, "second draft about sailing");
+        assertEquals(1, retriever.index(file));
+        assertNotEquals(version, retriever.version());
+        assertEquals(1, retriever.passageCount());
+        assertEquals(List.of(), retriever.search("gardening", 10));
+        assertEquals(1, retriever.search("sailing", 10).size());
+
+        LocalRetriever reopened = new LocalRetriever(directory.resolve("index"));
+        assertEquals(retriever.version(), reopened.version());
+        assertEquals("second draft about sailing", reopened.search("sailing", 10).getFirst().text());
+    }
+
+    @Test
+    void identicalFilesShareASegment() throws IOException {
+        Path first = this.index("a.txt", "shared notes about gardening");
+        Path second = Files.writeString(files.resolve("b.txt"), "shared notes about gardening");
+        assertEquals(0, retriever.index(second), "same content is not indexed again");
+        assertEquals(1, retriever.passageCount());
+
+        Files.writeString(first, "new notes about sailing");
+        assertEquals(1, retriever.index(first));
+        assertEquals(2, retriever.passageCount());
+        List<LocalRetriever.Passage> passages = retriever.search("gardening", 10);
+        assertEquals(List.of("b.txt"), passages.stream().map(LocalRetrieverTest::name).toList());
+
+        LocalRetriever reopened = new LocalRetriever(directory.resolve("index"));
+        assertEquals(retriever.version(), reopened.version());
+        assertEquals(List.of("b.txt"), reopened.search("gardening", 10).stream().map(LocalRetrieverTest::name).toList());
+    }
+
+    @Test
+    void fileChangedToMatchAnotherDropsItsOldSegment() throws IOException {
+        Path first = this.index("a.txt", "alpha release notes");
+        this.index("b.txt", "beta release notes");
+
+        Files.writeString(first, "beta release notes");
+        assertEquals(0, retriever.index(first), "same content as b.txt is not indexed again");
+        assertEquals(1, retriever.passageCount());
+        assertEquals(List.of(), retriever.search("alpha", 10));
+        assertEquals(1, retriever.search("beta", 10).size());
+
+        LocalRetriever reopened = new LocalRetriever(directory.resolve("index"));
+        assertEquals(retriever.version(), reopened.version());
+        assertEquals(List.of(), reopened.search("alpha", 10));
+    }
+
+    @Test
+    void longWordsAreNotIndexed() throws IOException {
+        String longWord = "x".repeat(100_000);
+        this.index("encoded.txt", "payload " + longWord + " checksum");
+
+        assertEquals(1, retriever.passageCount());
+        assertEquals(List.of(), retriever.search(longWord, 10));
+        assertEquals(1, retriever.search("checksum", 10).size());
+        assertEquals(List.of("payload", "checksum"), LocalRetriever.terms("The payload " + longWord + " and checksum"));
+    }
+
+    private Path index(String name, String text) throws IOException {
+        Path file = Files.writeString(files.resolve(name), text);
+        assertTrue(retriever.indexAsync(file).join() > 0);
+        return file;
+    }
+
+    private static String name(LocalRetriever.Passage passage){
+        return Path.of(passage.source()).getFileName().toString();
+    }
+}
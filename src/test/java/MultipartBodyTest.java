@@ -0,0 +1,147 @@
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.http.HttpRequest;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Flow;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+
+/**
+ * Content and Content-Length of MultipartBody request bodies, read the way the HttpClient reads them
+ */
+class MultipartBodyTest {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void bodyIsTheFieldsAndFileWithItsLength() throws IOException {
+        // Several slices long, the last one shorter
+        byte[] content = randomBytes(3 * 64 * 1024 + 17);
+        Path file = Files.write(directory.resolve("notes.bin"), content);
+        MultipartBody body = new MultipartBody().field("purpose", "assistants").file("file", file);
+        String boundary = boundary(body);
+
+        byte[] expected = concat(
+                ("--" + boundary + "\r\nContent-Disposition: form-data; name=\"purpose\"\r\n\r\nassistants\r\n"
+                        + "--" + boundary + "\r\nContent-Disposition: form-data; name=\"file\"; filename=\"notes.bin\"\r\n"
+                        + "Content-Type: application/octet-stream\r\n\r\n").getBytes(StandardCharsets.UTF_8),
+                content,
+                ("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.UTF_8));
+        HttpRequest.BodyPublisher publisher = body.publisher();
+        assertEquals(expected.length, publisher.contentLength());
+        assertArrayEquals(expected, read(publisher).join());
+    }
+
+    @Test
+    void regionIsSentAsItsOwnPart() throws IOException {
+        byte[] content = randomBytes(100_000);
+        Path file = Files.write(directory.resolve("large.bin"), content);
+        HttpRequest.BodyPublisher publisher = new MultipartBody().file("data", "part", file, 40_000, 30_000).publisher();
+
+        byte[] sent = read(publisher).join();
+        assertEquals(publisher.contentLength(), sent.length);
+        String text = new String(sent, StandardCharsets.ISO_8859_1);
+        int start = text.indexOf("\r\n\r\n") + 4;
+        assertArrayEquals(Arrays.copyOfRange(content, 40_000, 70_000), Arrays.copyOfRange(sent, start, start + 30_000));
+        assertTrue(text.endsWith("\r\n--" + firstBoundary(text) + "--\r\n"));
+    }
+
+    @Test
+    void emptyFileHasAnEmptyPart() throws IOException {
+        Path file = Files.createFile(directory.resolve("empty.txt"));
+        HttpRequest.BodyPublisher publisher = new MultipartBody().file("file", file).publisher();
+
+        String sent = new String(read(publisher).join(), StandardCharsets.UTF_8);
+        assertEquals(publisher.contentLength(), sent.length());
+        assertTrue(sent.contains("Content-Type: application/octet-stream\r\n\r\n\r\n--"), sent);
+    }
+
+    @Test
+    void bodyCanBeSentAgain() throws IOException {
+        byte[] content = randomBytes(200_000);
+        Path file = Files.write(directory.resolve("retried.bin"), content);
+        HttpRequest.BodyPublisher publisher = new MultipartBody().file("file", file).publisher();
+
+        assertArrayEquals(read(publisher).join(), read(publisher).join());
+    }
+
+    @Test
+    void fileShorterThanTheRegionFails() throws IOException {
+        Path file = Files.write(directory.resolve("truncated.bin"), randomBytes(1000));
+        HttpRequest.BodyPublisher publisher = new MultipartBody().file("data", "part", file, 500, 1000).publisher();
+
+        CompletionException e = assertThrows(CompletionException.class, () -> read(publisher).join());
+        assertInstanceOf(IOException.class, e.getCause());
+    }
+
+    /**
+     * Subscribes to the publisher, asking for one buffer at a time
+     */
+    private static CompletableFuture<byte[]> read(Flow.Publisher<ByteBuffer> publisher){
+        CompletableFuture<byte[]> result = new CompletableFuture<>();
+        publisher.subscribe(new Flow.Subscriber<>() {
+            private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            private Flow.Subscription subscription;
+
+            @Override
+            public void onSubscribe(Flow.Subscription subscription){
+                this.subscription = subscription;
+                subscription.request(1);
+            }
+
+            @Override
+            public void onNext(ByteBuffer buffer){
+                byte[] chunk = new byte[buffer.remaining()];
+                buffer.get(chunk);
+                bytes.writeBytes(chunk);
+                subscription.request(1);
+            }
+
+            @Override
+            public void onError(Throwable throwable){
+                result.completeExceptionally(throwable);
+            }
+
+            @Override
+            public void onComplete(){
+                result.complete(bytes.toByteArray());
+            }
+        });
+        return result;
+    }
+
+    private static String boundary(MultipartBody body){
+        return body.contentType().substring(body.contentType().indexOf("boundary=") + "boundary=".length());
+    }
+
+    /**
+     * @return boundary of a body, from its first line
+     */
+    private static String firstBoundary(String body){
+        return body.substring(2, body.indexOf("\r\n"));
+    }
+
+    private static byte[] concat(byte[]... arrays){
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        for (byte[] array : arrays) bytes.writeBytes(array);
+        return bytes.toByteArray();
+    }
+
+    private static byte[] randomBytes(int length){
+        byte[] bytes = new byte[length];
+        new Random(length).nextBytes(bytes);
+        return bytes;
+    }
+}
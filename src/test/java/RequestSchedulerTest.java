@@ -0,0 +1,160 @@
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+
+/**
+ * Retries, rate limiting and circuit breaking of a RequestScheduler, against a server answering with scripted statuses
+ * and headers so every attempt can be counted
+ */
+class RequestSchedulerTest {
+
+    private record Reply(int status, Map<String, String> headers) { }
+
+    private final ConcurrentLinkedQueue<Reply> replies = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger attempts = new AtomicInteger();
+
+    private HttpServer server;
+    private RequestScheduler scheduler;
+
+    @BeforeEach
+    void start() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        // Answers with the next scripted reply, 200 once there is none left
+        server.createContext("/", exchange -> {
+            attempts.incrementAndGet();
+            exchange.getRequestBody().readAllBytes();
+            Reply reply = replies.poll();
+            if (reply == null) reply = new Reply(200, Map.of());
+            reply.headers().forEach(exchange.getResponseHeaders()::set);
+            byte[] body = ("{\"status\": " + reply.status() + "}").getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(reply.status(), body.length);
+            exchange.getResponseBody().write(body);
+            exchange.close();
+        });
+        server.start();
+        scheduler = new RequestScheduler(HttpClient.newHttpClient(), 0);
+    }
+
+    @AfterEach
+    void stop(){
+        server.stop(0);
+    }
+
+    @Test
+    void idempotentRequestIsRetriedOnServerErrors(){
+        this.script(500, 503);
+        assertEquals(200, this.send(RequestScheduler.Priority.INTERACTIVE, this.get("/threads/thread_1")).statusCode());
+        assertEquals(3, attempts.get());
+    }
+
+    @Test
+    void retriesStopAfterTheLastOne(){
+        this.script(500, 500, 500, 500, 500);
+        assertEquals(500, this.send(RequestScheduler.Priority.INTERACTIVE, this.get("/threads/thread_1")).statusCode());
+        assertEquals(4, attempts.get());
+    }
+
+    @Test
+    void postIsOnlyRetriedWithAnIdempotencyKey(){
+        this.script(500);
+        assertEquals(500, this.send(RequestScheduler.Priority.INTERACTIVE, this.post("/threads", null)).statusCode());
+        assertEquals(1, attempts.get());
+
+        this.script(500);
+        assertEquals(200, this.send(RequestScheduler.Priority.INTERACTIVE, this.post("/threads", "key-1")).statusCode());
+        assertEquals(3, attempts.get());
+    }
+
+    @Test
+    void rateLimitedRequestIsDelayedNotLost(){
+        replies.add(new Reply(429, Map.of("retry-after-ms", "300")));
+        long start = System.nanoTime();
+        // Not idempotent, a 429 was not applied so it is sent again anyway
+        assertEquals(200, this.send(RequestScheduler.Priority.INTERACTIVE, this.post("/threads", null)).statusCode());
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(300), "waited for the retry-after");
+        assertEquals(2, attempts.get());
+    }
+
+    @Test
+    void backgroundRequestsLeaveTheLastOfTheBudgetToInteractiveOnes(){
+        Map<String, String> lowBudget = Map.of("x-ratelimit-limit-requests", "100", "x-ratelimit-remaining-requests", "5",
+                "x-ratelimit-reset-requests", "400ms");
+        replies.add(new Reply(200, lowBudget));
+        this.send(RequestScheduler.Priority.INTERACTIVE, this.get("/threads/thread_1"));
+
+        long start = System.nanoTime();
+        replies.add(new Reply(200, lowBudget));
+        this.send(RequestScheduler.Priority.INTERACTIVE, this.get("/threads/thread_1"));
+        assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(300), "interactive request sent at once");
+
+        start = System.nanoTime();
+        this.send(RequestScheduler.Priority.BACKGROUND, this.get("/threads/thread_1"));
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(300), "background request waited for the reset");
+    }
+
+    @Test
+    void circuitOpensAfterConsecutiveFailures(){
+        for (int i = 0; i < 5; i++) {
+            this.script(500);
+            assertEquals(500, this.send(RequestScheduler.Priority.INTERACTIVE, this.post("/threads/thread_" + i + "/runs", null)).statusCode());
+        }
+        CompletionException e = assertThrows(CompletionException.class,
+                () -> scheduler.submit(RequestScheduler.Priority.INTERACTIVE, this.post("/threads/thread_9/runs", null), HttpResponse.BodyHandlers.ofString()).join());
+        assertInstanceOf(CircuitBreaker.OpenException.class, e.getCause());
+        assertEquals(5, attempts.get());
+        assertTrue(scheduler.getBreakers().get("POST /threads/{id}/runs").isOpen());
+        // Other endpoints are not affected
+        assertEquals(200, this.send(RequestScheduler.Priority.INTERACTIVE, this.get("/threads/thread_1")).statusCode());
+    }
+
+    @Test
+    void parsesRateLimitResetDurations(){
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(20), RequestScheduler.parseDuration("20ms"));
+        assertEquals(TimeUnit.SECONDS.toNanos(1), RequestScheduler.parseDuration("1s"));
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(360_500), RequestScheduler.parseDuration("6m0.5s"));
+        assertEquals(TimeUnit.MINUTES.toNanos(90), RequestScheduler.parseDuration("1h30m"));
+        assertEquals(0, RequestScheduler.parseDuration("soon"));
+    }
+
+    private void script(int... statuses){
+        for (int status : statuses) replies.add(new Reply(status, Map.of()));
+    }
+
+    private HttpResponse<String> send(RequestScheduler.Priority priority, HttpRequest request){
+        return scheduler.submit(priority, request, HttpResponse.BodyHandlers.ofString()).join();
+    }
+
+    private HttpRequest get(String path){
+        return HttpRequest.newBuilder(this.uri(path)).GET().build();
+    }
+
+    /**
+     * @param idempotencyKey null to send the POST without one
+     */
+    private HttpRequest post(String path, String idempotencyKey){
+        HttpRequest.Builder builder = HttpRequest.newBuilder(this.uri(path)).POST(HttpRequest.BodyPublishers.ofString("{}"));
+        if (idempotencyKey != null) builder.header("Idempotency-Key", idempotencyKey);
+        return builder.build();
+    }
+
+    private URI uri(String path){
+        return URI.create("http://localhost:" + server.getAddress().getPort() + path);
+    }
+}
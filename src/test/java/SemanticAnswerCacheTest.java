@@ -0,0 +1,52 @@
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+
+/**
+ * Paraphrase matching of SemanticAnswerCache within an assistant version, and release of the graphs of versions
+ * without questions
+ */
+class SemanticAnswerCacheTest {
+
+    @Test
+    void paraphraseIsAnsweredWithinItsVersionOnly(){
+        SemanticAnswerCache cache = SemanticAnswerCache.create(100, Duration.ofMinutes(10), 0.8);
+        cache.put(AnswerCache.Key.of("asst_1", "v1", "What is the refund policy?"), "30 days");
+
+        assertEquals("30 days", cache.get(AnswerCache.Key.of("asst_1", "v1", "What's your refund policy?")));
+        assertNull(cache.get(AnswerCache.Key.of("asst_1", "v2", "What's your refund policy?")));
+        assertNull(cache.get(AnswerCache.Key.of("asst_2", "v1", "What's your refund policy?")));
+    }
+
+    @Test
+    void questionsWithOtherNumbersAreNotMatched(){
+        SemanticAnswerCache cache = SemanticAnswerCache.create(100, Duration.ofMinutes(10), 0.8);
+        cache.put(AnswerCache.Key.of("asst_1", "v1", "How do I solve problem 3?"), "Use induction");
+
+        assertNull(cache.get(AnswerCache.Key.of("asst_1", "v1", "How do I solve problem 4?")));
+    }
+
+    @Test
+    void versionsWithoutQuestionsAreDropped(){
+        SemanticAnswerCache cache = SemanticAnswerCache.create(100, Duration.ofMinutes(10), SemanticAnswerCache.DEFAULT_THRESHOLD);
+        AnswerCache.Key old = AnswerCache.Key.of("asst_1", "v1", "Hello");
+        cache.put(old, "Hi");
+        cache.put(AnswerCache.Key.of("asst_1", "v2", "Hello"), "Hi again");
+        cache.put(AnswerCache.Key.of("asst_2", "v1", "Hello"), "Hi from two");
+        assertEquals(3, cache.scopeCount());
+
+        cache.put(old, "Hi, replaced");
+        assertEquals(3, cache.scopeCount());
+
+        cache.invalidateAssistant("asst_1");
+        assertEquals(1, cache.scopeCount());
+        assertNull(cache.get(AnswerCache.Key.of("asst_1", "v2", "Hello")));
+
+        cache.invalidateAll();
+        assertEquals(0, cache.scopeCount());
+        assertNull(cache.get(AnswerCache.Key.of("asst_2", "v1", "Hello")));
+    }
+}